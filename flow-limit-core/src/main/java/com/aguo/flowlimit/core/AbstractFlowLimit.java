@@ -2,6 +2,11 @@ package com.aguo.flowlimit.core;
 
 import lombok.Data;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
 /**
  * @Author: wenqiaogang
  * @DateTime: 2022/7/25 10:02
@@ -60,6 +65,52 @@ public abstract class AbstractFlowLimit<T> implements IFlowLimit<T> {
         return otherHandle(obj, isReject, rejectResult);
     }
 
+    /**
+     * 异步的模板方法，流程与{@link #flowLimitProcess(Object)}一致。
+     * <br/>
+     * 等待数据源响应期间不占用调用线程，拿到限流结果后在executor中执行后续的验证、拒绝策略与放行操作。
+     * 适用于异步Controller等调用线程不宜阻塞的场景。
+     *
+     * @param obj      连接点
+     * @param executor 执行后续操作的线程池
+     * @return 执行结果，拒绝策略抛出的异常会使其异常完成
+     */
+    public final CompletionStage<Object> flowLimitProcessAsync(T obj, Executor executor) {
+        if (!enabled || filterRequest(obj)) {
+            return CompletableFuture.supplyAsync(() -> afterLimitProcess(obj, false), executor);
+        }
+        return limitProcessAsync(obj).thenApplyAsync(limited -> afterLimitProcess(obj, limited), executor);
+    }
+
+    private Object afterLimitProcess(T obj, boolean limited) {
+        try {
+            Object rejectResult = null;
+            boolean isReject = false;
+            if (limited) {
+                if (beforeLimitingHappenWhetherContinueLimit(obj)) {
+                    resetLimiter(obj);
+                } else {
+                    isReject = true;
+                    rejectResult = rejectHandle(obj);
+                }
+            }
+            return otherHandle(obj, isReject, rejectResult);
+        } catch (Throwable e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * 异步的限流逻辑，默认直接调用同步的{@link #limitProcess(Object)}。
+     * <br/>
+     * 数据源支持异步命令的子类可以重写本方法。
+     *
+     * @return true:当前请求达到计数/限流上限。
+     */
+    protected CompletionStage<Boolean> limitProcessAsync(T obj) {
+        return CompletableFuture.completedFuture(limitProcess(obj));
+    }
+
 
     /**
      * 在限制发生之前是否继续限制
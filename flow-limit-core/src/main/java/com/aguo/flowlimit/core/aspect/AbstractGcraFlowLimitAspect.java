@@ -0,0 +1,139 @@
+package com.aguo.flowlimit.core.aspect;
+
+import com.aguo.flowlimit.core.AbstractFlowLimit;
+import com.aguo.flowlimit.core.utils.FlowLimitCacheHelper;
+import com.aguo.flowlimit.core.utils.ShowUtil;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.springframework.util.StringUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/7 10:25
+ * @Description: GCRA（通用信元速率算法）限流，数据源默认是Redis。
+ * <br/>
+ * 每个用户只需要一个key，保存理论到达时间，一次脚本调用完成判断与更新。
+ * 与计数器相比没有窗口交界处的突发流量；与Google令牌桶相比，可以对每个用户单独限流，并且多个节点共享同一个限流器。
+ */
+public abstract class AbstractGcraFlowLimitAspect extends AbstractFlowLimit<JoinPoint>
+        implements IFlowLimitAspect<JoinPoint> {
+    /**
+     * 缓存帮助器
+     */
+    private FlowLimitCacheHelper cacheHelper;
+    /**
+     * 是否全局限制，即所有用户共用一个限流器.
+     * <br/>
+     * FALSE则需要传递获取用户ID的方法。
+     */
+    private boolean enabledGlobalLimit;
+    /**
+     * 限流器的key，已经拼接好全局前缀与模式
+     */
+    private String limiterKey;
+    /**
+     * 两次请求之间的理论间隔，单位微秒
+     */
+    private long emissionInterval;
+    /**
+     * 突发容忍时长，单位微秒
+     */
+    private long burstTolerance;
+
+    public AbstractGcraFlowLimitAspect() {
+
+    }
+
+    /**
+     * bean的初始化,构建本bean对象。<br/>
+     * 因为是抽象类，没办法使用建造者模式，故使用本方法模拟。
+     *
+     * @param cacheHelper        缓存帮助器
+     * @param enabledGlobalLimit 是否全局限制
+     * @param prefixKey          key前缀
+     * @param rate               每个周期允许的请求数
+     * @param period             周期时长
+     * @param periodUnit         周期时长的单位
+     * @param burst              允许连续突发的请求数，最小为1
+     */
+    public void build(FlowLimitCacheHelper cacheHelper, boolean enabledGlobalLimit, String prefixKey,
+                      long rate, long period, TimeUnit periodUnit, int burst) {
+        this.cacheHelper = cacheHelper;
+        this.enabledGlobalLimit = enabledGlobalLimit;
+        this.limiterKey = (prefixKey == null ? "" : prefixKey) + "gcra:" + appendCounterKeyWithMode();
+        if (rate > 0) {
+            this.emissionInterval = Math.max(periodUnit.toMicros(period) / rate, 1L);
+            //允许burst个请求连续到达
+            this.burstTolerance = this.emissionInterval * (Math.max(burst, 1) - 1);
+        }
+        setEnabled(cacheHelper != null && rate > 0);
+        if (isEnabled()) {
+            ShowUtil.showBanner();
+        }
+    }
+
+    /**
+     * 追加模式，有AOP模式和拦截器模式。前面要有个分号
+     *
+     * @return 模式
+     */
+    public String appendCounterKeyWithMode() {
+        return "aspect:";
+    }
+
+    /**
+     * 定义增强方式，默认使用环绕增强
+     * <br/>
+     * 不建议子类重写。如需重写，则<strong>必须</strong>回调父类的 flowLimitProcess(joinPoint)方法！
+     */
+    @Around("pointcut()")
+    public Object adviceMode(JoinPoint joinPoint) throws Throwable {
+        return this.flowLimitProcess(joinPoint);
+    }
+
+    /**
+     * 限流逻辑
+     *
+     * @param joinPoint 连接点
+     * @return TRUE 限流
+     */
+    @Override
+    public final boolean limitProcess(JoinPoint joinPoint) {
+        return cacheHelper.gcraAcquire(getFinalLimiterKey(joinPoint), emissionInterval, burstTolerance) > 0;
+    }
+
+    /**
+     * 如果未开启全局限制，那么会拼接用户的ID作为key
+     *
+     * @param joinPoint 连接点
+     * @return 最终的Key
+     */
+    private String getFinalLimiterKey(JoinPoint joinPoint) {
+        if (!enabledGlobalLimit) {
+            String userId = appendCounterKeyWithUserId(joinPoint);
+            if (StringUtils.hasText(userId)) {
+                return limiterKey.concat("userId:").concat(userId);
+            }
+        }
+        return limiterKey;
+    }
+
+    /**
+     * 重构限流器的key，未开启全局限制，即限流器要拼接的用户ID，对每一个用户单独限流
+     *
+     * @param joinPoint 连接点
+     * @return 重构逻辑
+     */
+    protected abstract String appendCounterKeyWithUserId(JoinPoint joinPoint);
+
+    /**
+     * 重置限流器，删除理论到达时间即可
+     */
+    @Override
+    public final Object resetLimiter(JoinPoint joinPoint) {
+        cacheHelper.deleteKey(getFinalLimiterKey(joinPoint));
+        return null;
+    }
+}
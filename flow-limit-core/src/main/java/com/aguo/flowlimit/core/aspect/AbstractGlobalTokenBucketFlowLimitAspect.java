@@ -1,31 +1,80 @@
 package com.aguo.flowlimit.core.aspect;
 
 import com.aguo.flowlimit.core.AbstractFlowLimit;
+import com.aguo.flowlimit.core.utils.FlowLimitCacheHelper;
+import com.aguo.flowlimit.core.utils.KeyedTokenBucketTable;
+import com.aguo.flowlimit.core.utils.LockFreeTokenBucket;
 import com.aguo.flowlimit.core.utils.ShowUtil;
-import com.google.common.util.concurrent.RateLimiter;
 import org.apache.commons.lang3.ObjectUtils;
 import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
 import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.util.StringUtils;
 
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @Author: wenqiaogang
  * @DateTime: 2022/8/19 14:25
- * @Description: 全局流量限制，使用的是Google包下的RateLimiter类，本质就是 令牌桶方式限流.
+ * @Description: 全局流量限制，本质就是 令牌桶方式限流，预热算法与Google包下的RateLimiter类相同，但获取令牌没有锁.
  * 因为令牌桶，令牌是无状态的，无法记录用户的信息，因此只能作为全局限流使用。
+ * <br/>
+ * 传入缓存帮助器时使用集群模式：令牌桶的状态保存在Redis中，所有节点共享同一个令牌桶，
+ * 每次从Redis批量预取令牌在本地消费，避免每个请求都访问Redis。
+ * <br/>
+ * 默认所有接口共用一个令牌桶。通过{@link #buildEndpoint(String, double, long)}可以为指定的接口配置单独的令牌桶，
+ * 每个桶有自己的速率与预热期，廉价的接口给高QPS，昂贵的接口给低QPS。
+ * 每个处理方法第一次访问时匹配所属的令牌桶，之后直接使用缓存。
+ * <br/>
+ * 通过{@link #buildUserBucket(double, int, int)}可以再对每个用户单独限流，用户的令牌桶保存在本地，不依赖Redis。
  */
 public abstract class AbstractGlobalTokenBucketFlowLimitAspect
         extends AbstractFlowLimit<JoinPoint> implements IFlowLimitAspect<JoinPoint> {
-    private static RateLimiter rateLimiter;
-    private static long timeout;
-    private static int tokenAcquire = 1;
+    private long timeout;
+    private int tokenAcquire = 1;
+    /**
+     * 未单独配置的接口共用的令牌桶
+     */
+    private TokenBucket defaultBucket;
+    /**
+     * 单独配置的接口与令牌桶，key是接口标识。只在初始化时修改，修改时整体替换
+     */
+    private volatile Map<String, TokenBucket> endpointBuckets = Collections.emptyMap();
+    /**
+     * 处理方法与其匹配到的令牌桶的缓存
+     */
+    private final Map<Object, TokenBucket> resolvedBuckets = new ConcurrentHashMap<>();
+    /**
+     * 集群模式下的缓存帮助器，为null则使用本地的RateLimiter
+     */
+    private FlowLimitCacheHelper cacheHelper;
+    /**
+     * 集群模式下令牌桶的key，单独配置的接口在其后拼接接口标识
+     */
+    private String bucketKey;
+    /**
+     * 集群模式下每次从Redis预取的令牌数
+     */
+    private int prefetch = 1;
+    /**
+     * 每个用户单独的令牌桶，为null则不对用户单独限流
+     */
+    private KeyedTokenBucketTable userBuckets;
 
     public AbstractGlobalTokenBucketFlowLimitAspect() {
     }
 
-    public static void setRateLimiter(double permitsPerSecond, long warmupPeriod) {
-        rateLimiter = RateLimiter.create(permitsPerSecond, warmupPeriod, TimeUnit.MILLISECONDS);
+    public void setRateLimiter(double permitsPerSecond, long warmupPeriod) {
+        defaultBucket = new TokenBucket(null, permitsPerSecond, warmupPeriod);
+        resolvedBuckets.clear();
     }
 
     /**
@@ -33,8 +82,8 @@ public abstract class AbstractGlobalTokenBucketFlowLimitAspect
      *
      * @param timeout
      */
-    public static void setTimeout(long timeout) {
-        AbstractGlobalTokenBucketFlowLimitAspect.timeout = timeout;
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
     }
 
     /**
@@ -42,8 +91,8 @@ public abstract class AbstractGlobalTokenBucketFlowLimitAspect
      *
      * @param tokenAcquire
      */
-    public static void setTokenAcquire(int tokenAcquire) {
-        AbstractGlobalTokenBucketFlowLimitAspect.tokenAcquire = tokenAcquire;
+    public void setTokenAcquire(int tokenAcquire) {
+        this.tokenAcquire = tokenAcquire;
     }
 
     /**
@@ -56,10 +105,54 @@ public abstract class AbstractGlobalTokenBucketFlowLimitAspect
         setRateLimiter(permitsPerSecond, warmupPeriod);
         setTimeout(Math.max(0, timeout));
         setTokenAcquire(tokenAcquire);
-        setEnabled(ObjectUtils.isNotEmpty(rateLimiter));
+        setEnabled(ObjectUtils.isNotEmpty(defaultBucket));
         if (isEnabled()) ShowUtil.showBanner();
     }
 
+    /**
+     * bean的初始化，集群模式。令牌桶的状态保存在Redis中，所有节点共享。
+     *
+     * @param cacheHelper 缓存帮助器
+     * @param bucketKey   令牌桶的key
+     * @param prefetch    每次从Redis预取的令牌数，1表示不预取
+     */
+    public void build(double permitsPerSecond, long warmupPeriod, long timeout, int tokenAcquire,
+                      FlowLimitCacheHelper cacheHelper, String bucketKey, int prefetch) {
+        this.cacheHelper = cacheHelper;
+        this.bucketKey = bucketKey;
+        this.prefetch = Math.max(prefetch, 1);
+        build(permitsPerSecond, warmupPeriod, timeout, tokenAcquire);
+    }
+
+    /**
+     * 为指定的接口配置单独的令牌桶。<br/>
+     * 接口标识默认按处理方法匹配，格式为“类名.方法名”，类名可以是简单类名或全限定类名，
+     * 子类可以重写{@link #matchEndpoint(JoinPoint, Collection)}改变匹配方式。
+     * 多个标识都能匹配时，先配置的优先。
+     *
+     * @param endpoint         接口标识
+     * @param permitsPerSecond 本接口的QPS
+     * @param warmupPeriod     本接口的预热期时长，单位毫秒
+     */
+    public void buildEndpoint(String endpoint, double permitsPerSecond, long warmupPeriod) {
+        Map<String, TokenBucket> buckets = new LinkedHashMap<>(endpointBuckets);
+        buckets.put(endpoint, new TokenBucket(endpoint, permitsPerSecond, warmupPeriod));
+        endpointBuckets = buckets;
+        resolvedBuckets.clear();
+    }
+
+    /**
+     * 对每个用户单独限流，需要实现{@link #appendCounterKeyWithUserId(JoinPoint)}返回用户ID。<br/>
+     * 用户先通过自己的令牌桶，再通过所在接口的令牌桶。
+     *
+     * @param permitsPerSecond 每个用户的QPS
+     * @param burst            每个用户允许连续突发的请求数
+     * @param capacity         最多同时保存的用户数，每个用户占用16字节，超出后淘汰最久没有访问的用户
+     */
+    public void buildUserBucket(double permitsPerSecond, int burst, int capacity) {
+        this.userBuckets = permitsPerSecond > 0 ? new KeyedTokenBucketTable(permitsPerSecond, burst, capacity) : null;
+    }
+
     @Around("pointcut()")
     public Object adviceMode(JoinPoint joinPoint) throws Throwable {
         return this.flowLimitProcess(joinPoint);
@@ -73,16 +166,212 @@ public abstract class AbstractGlobalTokenBucketFlowLimitAspect
      */
     @Override
     public boolean limitProcess(JoinPoint obj) {
-        return !rateLimiter.tryAcquire(tokenAcquire, timeout, TimeUnit.MILLISECONDS);
+        long wait = reserveProcess(obj, true);
+        if (wait > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                //令牌已经预约，不再等待直接放行
+                Thread.currentThread().interrupt();
+            }
+        }
+        return wait < 0;
+    }
+
+    /**
+     * 预约令牌但不等待：先从用户自己的令牌桶，再从所在接口的令牌桶获取令牌，令牌不足且预计等待时长不超过timeout则预支。
+     * 接口的令牌不足时归还用户的令牌，被拒绝的请求不占用用户的额度。<br/>
+     * 集群模式的令牌在Redis中，不能预约，仍在本方法中等待。
+     *
+     * @param obj       连接点
+     * @param allowWait FALSE则只获取能立即得到的令牌
+     * @return 大于等于0：获取成功，还需等待的毫秒数；-1：限流，未消耗任何令牌
+     */
+    protected long reserveProcess(JoinPoint obj, boolean allowWait) {
+        long maxWait = allowWait ? timeout : 0L;
+        //获取不到用户ID则不单独限流
+        String userId = userBuckets == null ? null : appendCounterKeyWithUserId(obj);
+        boolean userLimited = StringUtils.hasText(userId);
+        long userWait = userLimited ? userBuckets.tryAcquire(userId, tokenAcquire, maxWait, System.currentTimeMillis()) : 0L;
+        if (userWait < 0) {
+            return -1L;
+        }
+        long endpointWait = reserveEndpoint(bucketOf(obj), maxWait);
+        if (endpointWait < 0) {
+            if (userLimited) {
+                userBuckets.release(userId, tokenAcquire, System.currentTimeMillis());
+            }
+            return -1L;
+        }
+        return Math.max(userWait, endpointWait);
     }
 
     /**
-     * 对外提供设置限速器的速度的方法
+     * 从接口的令牌桶预约令牌。接口的令牌无法归还，因此在用户的令牌之后获取
+     *
+     * @return 大于等于0：需要等待的毫秒数；-1：令牌不足
+     */
+    private long reserveEndpoint(TokenBucket bucket, long maxWait) {
+        if (cacheHelper != null) {
+            return tryAcquireDistributed(bucket, maxWait) ? 0L : -1L;
+        }
+        long waitMicros = bucket.limiter.reserve(tokenAcquire, maxWait, TimeUnit.MILLISECONDS);
+        return waitMicros < 0 ? -1L : (waitMicros + 999) / 1000;
+    }
+
+    /**
+     * 用户ID，开启了用户单独限流时使用
+     *
+     * @param joinPoint 连接点
+     * @return 用户ID，为空则只做全局限流
+     */
+    protected String appendCounterKeyWithUserId(JoinPoint joinPoint) {
+        return null;
+    }
+
+    /**
+     * 当前请求所属的令牌桶。没有单独配置的接口，或者匹配不到，则使用共用的令牌桶
+     */
+    private TokenBucket bucketOf(JoinPoint obj) {
+        Map<String, TokenBucket> buckets = endpointBuckets;
+        if (buckets.isEmpty()) {
+            return defaultBucket;
+        }
+        Object handlerKey = resolveHandlerKey(obj);
+        if (handlerKey == null) {
+            return defaultBucket;
+        }
+        TokenBucket bucket = resolvedBuckets.get(handlerKey);
+        if (bucket == null) {
+            String endpoint = matchEndpoint(obj, buckets.keySet());
+            bucket = endpoint == null ? defaultBucket : buckets.getOrDefault(endpoint, defaultBucket);
+            resolvedBuckets.put(handlerKey, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * 处理方法的标识，作为令牌桶匹配结果的缓存key。同一个处理方法的每次调用必须返回相等的对象，
+     * 且数量有限，不能是每次请求都不同的对象，比如请求路径中带参数的URI。
+     *
+     * @param obj 连接点
+     * @return 处理方法的标识，为null则使用共用的令牌桶
+     */
+    protected Object resolveHandlerKey(JoinPoint obj) {
+        if (obj == null) {
+            return null;
+        }
+        Signature signature = obj.getSignature();
+        return signature instanceof MethodSignature ? ((MethodSignature) signature).getMethod() : signature.toLongString();
+    }
+
+    /**
+     * 匹配当前请求所属的接口，每个处理方法只在第一次访问时调用
+     *
+     * @param obj       连接点
+     * @param endpoints 所有单独配置的接口标识，按配置顺序
+     * @return 匹配到的接口标识，为null则使用共用的令牌桶
+     */
+    protected String matchEndpoint(JoinPoint obj, Collection<String> endpoints) {
+        Signature signature = obj.getSignature();
+        if (!(signature instanceof MethodSignature)) {
+            return null;
+        }
+        Method method = ((MethodSignature) signature).getMethod();
+        for (String endpoint : endpoints) {
+            if (matchMethod(endpoint, method)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 接口标识是否是该方法，标识的格式为“类名.方法名”，类名可以是简单类名或全限定类名
+     */
+    protected static boolean matchMethod(String endpoint, Method method) {
+        Class<?> declaringClass = method.getDeclaringClass();
+        return endpoint.equals(declaringClass.getSimpleName() + "." + method.getName())
+                || endpoint.equals(declaringClass.getName() + "." + method.getName());
+    }
+
+    /**
+     * 集群模式获取令牌：优先消费本地预取的令牌，不足时再从Redis获取。
+     * 令牌不足且预计等待时长不超过maxWait，则等待后再获取一次。
+     *
+     * @return TRUE 获取成功
+     */
+    private boolean tryAcquireDistributed(TokenBucket bucket, long maxWait) {
+        if (tryAcquireLocal(bucket)) {
+            return true;
+        }
+        long result = acquireFromRedis(bucket);
+        if (result < 0 && -result <= maxWait) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(-result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            result = acquireFromRedis(bucket);
+        }
+        return result > 0;
+    }
+
+    private boolean tryAcquireLocal(TokenBucket bucket) {
+        if (System.nanoTime() - bucket.localTokensDeadline > 0) {
+            bucket.localTokens.set(0);
+            return false;
+        }
+        long tokens;
+        do {
+            tokens = bucket.localTokens.get();
+            if (tokens < tokenAcquire) {
+                return false;
+            }
+        } while (!bucket.localTokens.compareAndSet(tokens, tokens - tokenAcquire));
+        return true;
+    }
+
+    /**
+     * 从Redis获取令牌，多取到的令牌放入本地
+     *
+     * @return 大于0：获取到的令牌数；小于0：令牌不足，绝对值是预计还需等待的毫秒数
+     */
+    private long acquireFromRedis(TokenBucket bucket) {
+        double permitsPerSecond = bucket.permitsPerSecond;
+        String key = bucket.endpoint == null ? bucketKey : bucketKey + ":" + bucket.endpoint;
+        long granted = cacheHelper.acquireTokens(key, permitsPerSecond, bucket.warmupPeriod, tokenAcquire, prefetch);
+        if (granted > tokenAcquire) {
+            //预取的令牌只在其生产时长内有效
+            long validNanos = (long) ((granted - tokenAcquire) * TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            bucket.localTokensDeadline = System.nanoTime() + Math.max(validNanos, TimeUnit.MILLISECONDS.toNanos(1));
+            bucket.localTokens.addAndGet(granted - tokenAcquire);
+        }
+        return granted;
+    }
+
+    /**
+     * 对外提供设置限速器的速度的方法，只修改共用的令牌桶
      *
      * @param permitsPerSecond
      */
     public void setRateLimiterRate(double permitsPerSecond) {
-        AbstractGlobalTokenBucketFlowLimitAspect.rateLimiter.setRate(permitsPerSecond);
+        defaultBucket.setRate(permitsPerSecond);
+    }
+
+    /**
+     * 对外提供设置单独配置的接口的限速器速度的方法
+     *
+     * @param endpoint         接口标识
+     * @param permitsPerSecond
+     */
+    public void setRateLimiterRate(String endpoint, double permitsPerSecond) {
+        TokenBucket bucket = endpointBuckets.get(endpoint);
+        if (bucket == null) {
+            throw new IllegalArgumentException("接口" + endpoint + "没有单独配置令牌桶");
+        }
+        bucket.setRate(permitsPerSecond);
     }
 
     /**
@@ -107,4 +396,37 @@ public abstract class AbstractGlobalTokenBucketFlowLimitAspect
         return false;
     }
 
+    /**
+     * 单个令牌桶，本地模式使用其中的无锁令牌桶，集群模式使用其中预取的令牌
+     */
+    private static final class TokenBucket {
+        /**
+         * 接口标识，共用的令牌桶为null
+         */
+        private final String endpoint;
+        private final LockFreeTokenBucket limiter;
+        private final long warmupPeriod;
+        private volatile double permitsPerSecond;
+        /**
+         * 预取到本地、尚未消费的令牌
+         */
+        private final AtomicLong localTokens = new AtomicLong();
+        /**
+         * 本地令牌的失效时间，System.nanoTime()。预取的令牌只在其对应的生产时长内有效，避免节点囤积令牌
+         */
+        private volatile long localTokensDeadline;
+
+        TokenBucket(String endpoint, double permitsPerSecond, long warmupPeriod) {
+            this.endpoint = endpoint;
+            this.limiter = new LockFreeTokenBucket(permitsPerSecond, warmupPeriod, TimeUnit.MILLISECONDS);
+            this.warmupPeriod = warmupPeriod;
+            this.permitsPerSecond = permitsPerSecond;
+        }
+
+        void setRate(double permitsPerSecond) {
+            limiter.setRate(permitsPerSecond);
+            this.permitsPerSecond = permitsPerSecond;
+        }
+    }
+
 }
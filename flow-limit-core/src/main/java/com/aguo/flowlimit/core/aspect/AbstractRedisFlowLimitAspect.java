@@ -1,16 +1,26 @@
 package com.aguo.flowlimit.core.aspect;
 
 import com.aguo.flowlimit.core.AbstractFlowLimit;
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+import com.aguo.flowlimit.core.enums.CounterKeyLayoutEnum;
+import com.aguo.flowlimit.core.utils.CounterKeyTemplate;
+import com.aguo.flowlimit.core.utils.CounterQuotaLeaser;
 import com.aguo.flowlimit.core.utils.FlowLimitCacheHelper;
+import com.aguo.flowlimit.core.utils.LocalDenyCache;
 import com.aguo.flowlimit.core.utils.ShowUtil;
+import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.springframework.util.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -19,6 +29,7 @@ import java.util.stream.Collectors;
  * @DateTime: 2022/7/25 10:33
  * @Description: Redis数据源，计数器的方式限流。
  */
+@Slf4j
 public abstract class AbstractRedisFlowLimitAspect extends AbstractFlowLimit<JoinPoint>
         implements IFlowLimitAspect<JoinPoint> {
     /**
@@ -52,10 +63,42 @@ public abstract class AbstractRedisFlowLimitAspect extends AbstractFlowLimit<Joi
      * 每个计数器的保持时长，单位是毫秒
      */
     private List<Long> counterHoldingTime;
+    /**
+     * 每个计数器的保持时长换算成的毫秒数，在build时计算好，避免每次请求都换算
+     */
+    private List<Long> counterHoldingTimeMillis;
     /**
      * 每个计数器对应的限流次数，即接口调用次数限制
      */
     private List<Integer> counterLimitNumber;
+    /**
+     * 每个计数器使用的算法，默认固定窗口
+     */
+    private List<CounterAlgorithmEnum> counterAlgorithm;
+    /**
+     * 配额租借器，为null则每个请求都访问数据源
+     */
+    private CounterQuotaLeaser quotaLeaser;
+    /**
+     * 本地拒绝缓存，为null则每个请求都访问数据源
+     */
+    private LocalDenyCache denyCache;
+    /**
+     * 计数器key的布局，默认不使用哈希标签
+     */
+    private CounterKeyLayoutEnum keyLayout = CounterKeyLayoutEnum.Default;
+    /**
+     * 全局计数器每个分片的key，默认只有一个分片，即counterKeys本身
+     */
+    private List<List<String>> globalShardKeys;
+    /**
+     * 全局计数器每个分片的限流次数，所有分片之和等于总的限流次数
+     */
+    private List<List<Integer>> globalShardLimitNumber;
+    /**
+     * 用户计数器key的模板，每个用户的key只拼接一次
+     */
+    private CounterKeyTemplate keyTemplate;
 
 
     public AbstractRedisFlowLimitAspect() {
@@ -66,13 +109,28 @@ public abstract class AbstractRedisFlowLimitAspect extends AbstractFlowLimit<Joi
         build(timeUnit, redisHelper, enabledGlobalLimit, prefixKey, counterKeys, counterHoldingTime, counterLimitNumber);
     }
 
+    public AbstractRedisFlowLimitAspect(TimeUnit timeUnit, FlowLimitCacheHelper redisHelper, boolean enabledGlobalLimit, String prefixKey, List<String> counterKeys, List<Long> counterHoldingTime, List<Integer> counterLimitNumber, List<CounterAlgorithmEnum> counterAlgorithm) {
+        build(timeUnit, redisHelper, enabledGlobalLimit, prefixKey, counterKeys, counterHoldingTime, counterLimitNumber, counterAlgorithm);
+    }
+
     /**
      * bean的初始化,构建本bean对象。<br/>
-     * 因为是抽象类，没办法使用建造者模式，故使用本方法模拟。
+     * 因为是抽象类，没办法使用建造者模式，故使用本方法模拟。所有计数器使用固定窗口。
      *
      * @return this
      */
     public void build(TimeUnit timeUnit, FlowLimitCacheHelper redisHelper, boolean enabledGlobalLimit, String prefixKey, List<String> counterKeys, List<Long> counterHoldingTime, List<Integer> counterLimitNumber) {
+        build(timeUnit, redisHelper, enabledGlobalLimit, prefixKey, counterKeys, counterHoldingTime, counterLimitNumber, null);
+    }
+
+    /**
+     * bean的初始化,构建本bean对象。<br/>
+     * 因为是抽象类，没办法使用建造者模式，故使用本方法模拟。
+     *
+     * @param counterAlgorithm 每个计数器使用的算法，为null或者缺少的计数器使用固定窗口
+     * @return this
+     */
+    public void build(TimeUnit timeUnit, FlowLimitCacheHelper redisHelper, boolean enabledGlobalLimit, String prefixKey, List<String> counterKeys, List<Long> counterHoldingTime, List<Integer> counterLimitNumber, List<CounterAlgorithmEnum> counterAlgorithm) {
         this.timeUnit = timeUnit;
         this.redisHelper = redisHelper;
         this.enabledGlobalLimit = enabledGlobalLimit;
@@ -80,12 +138,99 @@ public abstract class AbstractRedisFlowLimitAspect extends AbstractFlowLimit<Joi
         this.counterKeys = counterKeys;
         this.counterHoldingTime = counterHoldingTime;
         this.counterLimitNumber = counterLimitNumber;
+        this.counterAlgorithm = counterAlgorithm;
         initCounterKeys();
+        initCounterHoldingTimeMillis();
+        initCounterAlgorithm();
+        initGlobalShardKeys(1);
         if (enabledFlowLimit()) {
             ShowUtil.showBanner();
         }
     }
 
+    /**
+     * 开启配额租借：每个节点一次从Redis预留一批许可，在本地消费。只支持所有计数器都是固定窗口的情况。
+     * <br/>
+     * 需要在build之后调用。
+     *
+     * @param maxLeaseSize 单个租约的最大许可数，小于等于1表示不开启
+     * @param leaseTime    单个租约的最长有效时长，单位毫秒
+     */
+    public void buildQuotaLease(int maxLeaseSize, long leaseTime) {
+        if (maxLeaseSize <= 1 || redisHelper == null) {
+            this.quotaLeaser = null;
+            return;
+        }
+        if (counterAlgorithm.stream().anyMatch(algorithm -> CounterAlgorithmEnum.FixedWindow != algorithm)) {
+            log.warn("Flow-Limit-Starter：配额租借只支持固定窗口计数器，已忽略租借配置");
+            this.quotaLeaser = null;
+            return;
+        }
+        if (CounterKeyLayoutEnum.SubjectHash == keyLayout) {
+            log.warn("Flow-Limit-Starter：配额租借不支持Hash打包布局，已忽略租借配置");
+            this.quotaLeaser = null;
+            return;
+        }
+        this.quotaLeaser = new CounterQuotaLeaser(redisHelper, maxLeaseSize, leaseTime);
+    }
+
+    /**
+     * 开启本地拒绝缓存：计数器达到上限后，在其放行之前本节点直接拒绝，不再访问数据源。
+     *
+     * @param maximumSize 最多记录多少个计数器，小于等于0表示不开启
+     */
+    public void buildDenyCache(long maximumSize) {
+        this.denyCache = maximumSize > 0 ? new LocalDenyCache(maximumSize) : null;
+    }
+
+    /**
+     * 设置计数器key的布局。需要在build之后调用。
+     * <br/>
+     * 哈希标签布局下，同一用户的所有计数器落在Redis集群的同一个槽上，可以在一个脚本中一次判断；
+     * 全局计数器拆分为globalShards个分片，分布在不同的槽上，每个分片的限流次数为总数均分。
+     * 每个请求从随机的分片开始，分片用完则依次尝试下一个分片，所有分片都用完才限流，总的放行次数与不分片时一致。
+     *
+     * @param keyLayout    key的布局
+     * @param globalShards 全局计数器的分片数，只在哈希标签布局下生效，最小为1
+     */
+    public void buildKeyLayout(CounterKeyLayoutEnum keyLayout, int globalShards) {
+        this.keyLayout = Optional.ofNullable(keyLayout).orElse(CounterKeyLayoutEnum.Default);
+        if (!isEnabled()) {
+            return;
+        }
+        initGlobalShardKeys(CounterKeyLayoutEnum.ClusterHashTag == this.keyLayout ? Math.max(globalShards, 1) : 1);
+    }
+
+    /**
+     * 计算全局计数器每个分片的key与限流次数
+     */
+    private void initGlobalShardKeys(int shards) {
+        if (!enabledFlowLimit()) {
+            return;
+        }
+        List<List<String>> shardKeys = new ArrayList<>(shards);
+        if (CounterKeyLayoutEnum.ClusterHashTag != keyLayout) {
+            shardKeys.add(this.counterKeys);
+        } else {
+            for (int shard = 0; shard < shards; shard++) {
+                //同一分片的所有计数器使用同一个哈希标签
+                String hashTag = "{" + prefixKey + "global:" + shard + "}";
+                shardKeys.add(this.counterKeys.stream().map(key -> key.concat(hashTag)).collect(Collectors.toList()));
+            }
+        }
+        this.globalShardKeys = shardKeys;
+        this.keyTemplate = new CounterKeyTemplate(this.counterKeys, keyLayout, prefixKey + "subject:" + appendCounterKeyWithMode());
+        List<List<Integer>> shardLimits = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            //除不尽的余数分给前面的分片
+            int index = shard;
+            shardLimits.add(this.counterLimitNumber.stream()
+                    .map(limit -> limit / shards + (index < limit % shards ? 1 : 0))
+                    .collect(Collectors.toList()));
+        }
+        this.globalShardLimitNumber = shardLimits;
+    }
+
     /**
      * 对公共计数器key进行拼接
      */
@@ -96,6 +241,31 @@ public abstract class AbstractRedisFlowLimitAspect extends AbstractFlowLimit<Joi
                 .orElse(getCounterKeysUseUUID());
     }
 
+    /**
+     * 将计数器的保持时长统一换算成毫秒，最小为1毫秒
+     */
+    private void initCounterHoldingTimeMillis() {
+        this.counterHoldingTimeMillis = Optional.ofNullable(this.counterHoldingTime)
+                .map(times -> times.stream()
+                        .map(time -> Math.max(timeUnit.toMillis(time), 1L))
+                        .collect(Collectors.toList()))
+                .orElse(null);
+    }
+
+    /**
+     * 补齐每个计数器的算法，未配置的计数器使用固定窗口
+     */
+    private void initCounterAlgorithm() {
+        int size = Optional.ofNullable(this.counterHoldingTime).map(List::size).orElse(0);
+        List<CounterAlgorithmEnum> algorithms = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            CounterAlgorithmEnum algorithm = this.counterAlgorithm != null && i < this.counterAlgorithm.size()
+                    ? this.counterAlgorithm.get(i) : null;
+            algorithms.add(Optional.ofNullable(algorithm).orElse(CounterAlgorithmEnum.FixedWindow));
+        }
+        this.counterAlgorithm = algorithms;
+    }
+
     /**
      * 如果配置文件中没有配置counter的key，那么则会使用UUID作为key
      *
@@ -155,37 +325,122 @@ public abstract class AbstractRedisFlowLimitAspect extends AbstractFlowLimit<Joi
      */
     @Override
     public final boolean limitProcess(JoinPoint joinPoint) {
-        List<String> counterKey = getFinalCounterKeys(joinPoint);
-        //当前计数器是否限制？
-        boolean currentIsLimit = false;
-        //遍历计数器
-        for (int i = 0; i < counterKey.size() && !currentIsLimit; i++) {
-            currentIsLimit = counterProcess(counterKey.get(i), counterHoldingTime.get(i), counterLimitNumber.get(i));
+        String userId = getFinalUserId(joinPoint);
+        if (userId != null) {
+            return limitProcess(userId, keyTemplate.getKeys(userId), this.counterLimitNumber);
+        }
+        //全局计数器从随机的分片开始，分片用完则尝试下一个分片
+        int shards = globalShardKeys.size();
+        int start = firstShard(shards);
+        for (int i = 0; i < shards; i++) {
+            int shard = (start + i) % shards;
+            if (!limitProcess(null, globalShardKeys.get(shard), globalShardLimitNumber.get(shard))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean limitProcess(String userId, List<String> counterKey, List<Integer> counterLimit) {
+        //计数器仍处于拒绝期，无需访问数据源
+        if (denyCache != null && denyCache.isDenied(counterKey)) {
+            return true;
+        }
+        //所有计数器一次性交给数据源原子地判断，返回触发限制的计数器下标
+        //当且仅当所有计数器都未达到上限才不限制
+        return recordDenied(counterKey, counterProcess(userId, counterKey, counterLimit));
+    }
+
+    /**
+     * 异步的限流逻辑，等待Redis响应期间不占用调用线程。
+     * <br/>
+     * 开启租约时绝大部分请求只访问本地，直接同步执行。
+     */
+    @Override
+    protected final CompletionStage<Boolean> limitProcessAsync(JoinPoint joinPoint) {
+        String userId = getFinalUserId(joinPoint);
+        if (userId != null) {
+            return limitProcessAsync(userId, keyTemplate.getKeys(userId), this.counterLimitNumber);
+        }
+        int shards = globalShardKeys.size();
+        return limitShardAsync(firstShard(shards), shards);
+    }
+
+    /**
+     * 依次尝试全局计数器的分片，上一个分片限流后才访问下一个分片
+     *
+     * @param shard     本次尝试的分片
+     * @param remaining 包括本次在内还可以尝试的分片数
+     */
+    private CompletionStage<Boolean> limitShardAsync(int shard, int remaining) {
+        CompletionStage<Boolean> result = limitProcessAsync(null, globalShardKeys.get(shard), globalShardLimitNumber.get(shard));
+        if (remaining <= 1) {
+            return result;
+        }
+        return result.thenCompose(limited -> limited
+                ? limitShardAsync((shard + 1) % globalShardKeys.size(), remaining - 1)
+                : CompletableFuture.completedFuture(false));
+    }
+
+    private CompletionStage<Boolean> limitProcessAsync(String userId, List<String> counterKey, List<Integer> counterLimit) {
+        if (denyCache != null && denyCache.isDenied(counterKey)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (quotaLeaser != null) {
+            return CompletableFuture.completedFuture(recordDenied(counterKey, counterProcess(userId, counterKey, counterLimit)));
+        }
+        CompletionStage<long[]> result = isSubjectHash(userId)
+                ? redisHelper.increaseHashKeySafelyAsync(counterKey.get(0), counterHoldingTimeMillis, counterLimit, counterAlgorithm)
+                : redisHelper.increaseKeysSafelyAsync(counterKey, counterHoldingTimeMillis, counterLimit, counterAlgorithm);
+        return result.thenApply(r -> recordDenied(counterKey, r));
+    }
+
+    /**
+     * 记录触发限制的计数器的拒绝期
+     *
+     * @param keys   当前请求的所有计数器key
+     * @param result 数据源的判断结果
+     * @return TRUE 限流
+     */
+    private boolean recordDenied(List<String> keys, long[] result) {
+        if (result[0] < 0) {
+            return false;
+        }
+        if (denyCache != null) {
+            //Hash打包布局下只有一个key
+            denyCache.deny(keys.get(keys.size() == 1 ? 0 : (int) result[0]), result[1]);
         }
-        //当且仅当所有计数器都返回false才不限制
-        return currentIsLimit;
+        return true;
     }
 
     /**
-     * 如果开启全局限制，那么会拼接用户的ID作为key
+     * 未开启全局限制时获取用户的ID
      *
      * @param joinPoint 连接点
-     * @return 最终的Key
+     * @return 用户ID，为null则使用全局计数器
      */
-    private List<String> getFinalCounterKeys(JoinPoint joinPoint) {
+    private String getFinalUserId(JoinPoint joinPoint) {
         if (!enabledGlobalLimit) {
-            //未开启全局计数，即计数器要拼接的用户ID，对每一个用户单独限流
             String userId = appendCounterKeyWithUserId(joinPoint);
             if (StringUtils.hasText(userId)) {
-                return this.counterKeys.stream()
-                        .map(key ->
-                                key.concat("userId:").concat(Optional
-                                        .ofNullable(userId)
-                                        .orElse("")))
-                        .collect(Collectors.toList());
+                return userId;
             }
         }
-        return this.counterKeys;
+        return null;
+    }
+
+    /**
+     * 全局计数器从哪个分片开始尝试，多个分片时随机选择，分散各个槽的压力
+     */
+    private static int firstShard(int shards) {
+        return shards == 1 ? 0 : ThreadLocalRandom.current().nextInt(shards);
+    }
+
+    /**
+     * 用户计数器是否打包在一个Hash中
+     */
+    private boolean isSubjectHash(String userId) {
+        return userId != null && CounterKeyLayoutEnum.SubjectHash == keyLayout;
     }
 
     /**
@@ -197,16 +452,23 @@ public abstract class AbstractRedisFlowLimitAspect extends AbstractFlowLimit<Joi
     protected abstract String appendCounterKeyWithUserId(JoinPoint joinPoint);
 
     /**
-     * 对key进行细粒的操作,即计数器自增
-     * 会用LUA脚本实现,如果Redis宕机，那么会拦截所有请求。
+     * 对所有计数器进行细粒的操作,即计数器自增
+     * 会用一个LUA脚本一次性实现,只需一次网络往返。如果Redis宕机，那么会切换为本地数据源。
      *
-     * @param key      当前key
-     * @param timeout  超时时间
-     * @param countMax 最大计数
-     * @return ture 当前key的计数器超出限制，禁止访问
+     * @param userId 用户ID，为null表示全局计数器
+     * @param keys   当前请求的所有计数器key
+     * @param limits 每个计数器的限流次数
+     * @return [0]触发限制的计数器下标，-1表示所有计数器都未超出限制；[1]该计数器还需多久才会放行，单位毫秒
      */
-    private boolean counterProcess(String key, Long timeout, Integer countMax) {
-        return redisHelper.increaseKeySafely(key, Math.max(timeUnit.toMillis(timeout), 1L), countMax);
+    private long[] counterProcess(String userId, List<String> keys, List<Integer> limits) {
+        if (quotaLeaser != null) {
+            //从本地租约中获取许可，租约用完才访问数据源
+            return quotaLeaser.tryAcquire(keys, counterHoldingTimeMillis, limits);
+        }
+        if (isSubjectHash(userId)) {
+            return redisHelper.increaseHashKeySafely(keys.get(0), counterHoldingTimeMillis, limits, counterAlgorithm);
+        }
+        return redisHelper.increaseKeysSafely(keys, counterHoldingTimeMillis, limits, counterAlgorithm);
     }
 
 
@@ -215,8 +477,20 @@ public abstract class AbstractRedisFlowLimitAspect extends AbstractFlowLimit<Joi
      */
     @Override
     public final Object resetLimiter(JoinPoint joinPoint) {
-        for (String key : getFinalCounterKeys(joinPoint)) {
-            redisHelper.deleteKey(key);
+        String userId = getFinalUserId(joinPoint);
+        //全局计数器要重置所有分片
+        List<List<String>> keysList = userId != null
+                ? Collections.singletonList(keyTemplate.getKeys(userId)) : globalShardKeys;
+        for (List<String> keys : keysList) {
+            if (quotaLeaser != null) {
+                quotaLeaser.invalidate(keys);
+            }
+            if (denyCache != null) {
+                denyCache.invalidate(keys);
+            }
+            for (String key : keys) {
+                redisHelper.deleteKey(key);
+            }
         }
         return null;
     }
@@ -8,7 +8,8 @@ package com.aguo.flowlimit.core.enums;
 public enum CacheDataSourceTypeEnum {
     Redis(1, "Redis数据源"),
     Local(2, "本地数据源"),
-    MySql(3, "MySQL数据源");
+    MySql(3, "MySQL数据源"),
+    Sketch(4, "Count-Min Sketch数据源，只精确拦截高频的key");
 
     private final Integer code;
     private final String describe;
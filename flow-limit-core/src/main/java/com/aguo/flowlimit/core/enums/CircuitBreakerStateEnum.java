@@ -0,0 +1,29 @@
+package com.aguo.flowlimit.core.enums;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/10 15:20
+ * @Description: 数据源熔断器状态枚举
+ */
+public enum CircuitBreakerStateEnum {
+    Closed(1, "关闭，正常访问数据源"),
+    Open(2, "打开，使用本地数据源"),
+    HalfOpen(3, "半开，放行少量请求试探数据源");
+
+    private final Integer code;
+    private final String describe;
+
+    CircuitBreakerStateEnum(Integer code, String describe) {
+        this.code = code;
+        this.describe = describe;
+    }
+
+    public Integer getCode() {
+        return code;
+    }
+
+    public String getDescribe() {
+        return describe;
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.aguo.flowlimit.core.enums;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/5 14:20
+ * @Description: 计数器算法枚举
+ */
+public enum CounterAlgorithmEnum {
+    FixedWindow(1, "固定窗口计数器"),
+    SlidingWindow(2, "滑动窗口计数器");
+
+    private final Integer code;
+    private final String describe;
+
+    CounterAlgorithmEnum(Integer code, String describe) {
+        this.code = code;
+        this.describe = describe;
+    }
+
+    public Integer getCode() {
+        return code;
+    }
+
+    public String getDescribe() {
+        return describe;
+    }
+
+}
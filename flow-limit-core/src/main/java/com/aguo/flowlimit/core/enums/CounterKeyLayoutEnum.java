@@ -0,0 +1,39 @@
+package com.aguo.flowlimit.core.enums;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/10 10:05
+ * @Description: 计数器key的布局枚举
+ */
+public enum CounterKeyLayoutEnum {
+    /**
+     * 前缀 + 计数器key + 模式 + userId:用户ID
+     */
+    Default(1, "默认布局"),
+    /**
+     * 用户ID使用{}包裹作为哈希标签，同一用户的所有计数器落在Redis集群的同一个槽上；
+     * 全局计数器按分片数拆分到多个槽上
+     */
+    ClusterHashTag(2, "Redis集群哈希标签布局"),
+    /**
+     * 同一用户的所有计数器打包在一个Hash中，每个用户只占用一个key。全局计数器与默认布局相同
+     */
+    SubjectHash(3, "按用户打包的Hash布局");
+
+    private final Integer code;
+    private final String describe;
+
+    CounterKeyLayoutEnum(Integer code, String describe) {
+        this.code = code;
+        this.describe = describe;
+    }
+
+    public Integer getCode() {
+        return code;
+    }
+
+    public String getDescribe() {
+        return describe;
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.aguo.flowlimit.core.interceptor;
+
+import com.aguo.flowlimit.core.aspect.AbstractGcraFlowLimitAspect;
+import com.aguo.flowlimit.core.utils.FlowLimitCacheHelper;
+import com.aguo.flowlimit.core.utils.InterceptorUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.JoinPoint;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/7 11:02
+ * @Description: 使用基于类的适配器模式，在GcraAspect基础上改造
+ */
+@Slf4j
+public abstract class AbstractGcraFlowLimitInterceptor
+        implements IFlowLimitInterceptor, WebMvcConfigurer {
+
+    private AbstractGcraFlowLimitAspect gcraFlowLimitAspect = new GcraFlowLimitAspectImpl();
+
+    /**
+     * 存放HttpServletRequest，HttpServletResponse
+     */
+    private final ThreadLocal<Map<String, Object>> threadLocalMap = new ThreadLocal<>();
+    /**
+     * 标记本拦截器已经处理过请求的属性名，异步重新分派的请求不再重复计数
+     */
+    private final String handledAttribute = InterceptorUtil.handledAttribute(this);
+    /**
+     * 拦截器自己，在AutoConfiguration中获取用户实现的拦截器
+     */
+    private AbstractGcraFlowLimitInterceptor own;
+
+    @Override
+    public final boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!gcraFlowLimitAspect.isEnabled()) return true;
+        if (InterceptorUtil.isHandledBefore(request, handledAttribute)) return true;
+        HashMap<String, Object> map = new HashMap<>();
+        map.put("request", request);
+        map.put("response", response);
+        map.put("handler", handler);
+        threadLocalMap.set(map);
+        try {
+            return (boolean) gcraFlowLimitAspect.flowLimitProcess(null);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean limitProcess(JoinPoint joinPoint) {
+        return gcraFlowLimitAspect.limitProcess(null);
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        //注册用户的拦截器
+        setInterceptorPathPatterns(registry.addInterceptor(getOwn()));
+        log.info("拦截器注册成功：{}", getOwn().getClass().getName());
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
+        threadLocalMap.remove();//防止内存泄漏
+    }
+
+    /**
+     * 因为是抽象类，没办法使用建造者模式，故使用本方法模拟。
+     *
+     * @param own
+     */
+    public void build(AbstractGcraFlowLimitInterceptor own,
+                      FlowLimitCacheHelper cacheHelper,
+                      boolean enabledGlobalLimit,
+                      String prefixKey,
+                      long rate,
+                      long period,
+                      TimeUnit periodUnit,
+                      int burst) {
+        gcraFlowLimitAspect.build(cacheHelper, enabledGlobalLimit, prefixKey, rate, period, periodUnit, burst);
+        this.own = own;
+    }
+
+    /**
+     * 设置拦截器的拦截配置，比如路径配置等
+     *
+     * @param registry
+     */
+    public abstract void setInterceptorPathPatterns(InterceptorRegistration registry);
+
+    public AbstractGcraFlowLimitInterceptor getOwn() {
+        return own;
+    }
+
+    private class GcraFlowLimitAspectImpl extends AbstractGcraFlowLimitAspect {
+
+        @Override
+        protected boolean filterRequest(JoinPoint joinPoint) {
+            return InterceptorUtil.filterRequest(AbstractGcraFlowLimitInterceptor.this, threadLocalMap);
+        }
+
+        @Override
+        protected boolean beforeLimitingHappenWhetherContinueLimit(JoinPoint joinPoint) {
+            return InterceptorUtil.beforeLimitingHappenWhetherContinueLimit(AbstractGcraFlowLimitInterceptor.this, threadLocalMap);
+        }
+
+        @Override
+        protected Object rejectHandle(JoinPoint joinPoint) throws Throwable {
+            return InterceptorUtil.rejectHandle(AbstractGcraFlowLimitInterceptor.this, threadLocalMap);
+        }
+
+        @Override
+        public String appendCounterKeyWithMode() {
+            return "interceptor:";
+        }
+
+        @Override
+        protected String appendCounterKeyWithUserId(JoinPoint joinPoint) {
+            return InterceptorUtil.appendCounterKeyWithUserId(AbstractGcraFlowLimitInterceptor.this, threadLocalMap);
+        }
+
+        @Override
+        public final void pointcut() {
+        }
+
+    }
+}
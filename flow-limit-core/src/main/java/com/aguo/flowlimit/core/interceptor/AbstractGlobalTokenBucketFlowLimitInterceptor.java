@@ -1,47 +1,100 @@
 package com.aguo.flowlimit.core.interceptor;
 
 import com.aguo.flowlimit.core.aspect.AbstractGlobalTokenBucketFlowLimitAspect;
+import com.aguo.flowlimit.core.utils.FlowLimitCacheHelper;
 import com.aguo.flowlimit.core.utils.InterceptorUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.JoinPoint;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.method.HandlerMethod;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistration;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.util.UrlPathHelper;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @Author: wenqiaogang
  * @DateTime: 2022/8/22 14:38
  * @Description: 抽象的流量限制器，子类需要继承本类
+ * <br/>
+ * 开启异步等待后，需要等待令牌的请求不再阻塞Servlet线程：预约令牌后通过Servlet异步挂起请求，
+ * 令牌可用时由调度线程重新分派，等待只占用队列中的一个位置，不占用线程。
  */
 @Slf4j
 public abstract class AbstractGlobalTokenBucketFlowLimitInterceptor
         implements IFlowLimitInterceptor, WebMvcConfigurer {
+    /**
+     * 令牌可用时重新分派挂起的请求
+     */
+    private static final ScheduledExecutorService DISPATCH_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "flow-limit-async-dispatch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * 请求属性，存在则表示本次分派中请求已经预约了令牌并挂起
+     */
+    private static final String TOKEN_RESERVED_ATTRIBUTE = AbstractGlobalTokenBucketFlowLimitInterceptor.class.getName() + ".TOKEN_RESERVED";
+    /**
+     * 挂起的请求在预约时间之外额外允许的超时时长，单位毫秒
+     */
+    private static final long ASYNC_TIMEOUT_MARGIN = 10_000L;
+
     // 成员变量
     private GlobalTokenBucketFlowLimitAspectImpl aspectImpl = new GlobalTokenBucketFlowLimitAspectImpl();
     /**
      * 存放HttpServletRequest，HttpServletResponse
      */
     private final ThreadLocal<Map<String, Object>> threadLocalMap = new ThreadLocal<>();
+    /**
+     * 标记本拦截器已经处理过请求的属性名。等待令牌后重新分派的请求，令牌已经预约，直接放行
+     */
+    private final String handledAttribute = InterceptorUtil.handledAttribute(this);
     /**
      * 拦截器自己，在AutoConfiguration中获取用户实现的拦截器
      */
     private AbstractGlobalTokenBucketFlowLimitInterceptor own;
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+    /**
+     * 最多同时挂起等待令牌的请求数，0表示不启用异步等待
+     */
+    private int asyncWaitCapacity;
+    /**
+     * 当前占用等待队列的请求数，包括正在预约令牌与已经挂起的请求
+     */
+    private final AtomicInteger asyncWaiting = new AtomicInteger();
 
     @Override
     public final boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
         if (!aspectImpl.isEnabled()) return true;
+        if (InterceptorUtil.isHandledBefore(request, handledAttribute)) return true;
         HashMap<String, Object> map = new HashMap<>();
         map.put("request", request);
         map.put("response", response);
         map.put("handler", handler);
         threadLocalMap.set(map);
         try {
-            return (boolean) aspectImpl.flowLimitProcess(null);
+            boolean result = (boolean) aspectImpl.flowLimitProcess(null);
+            if (request.getAttribute(TOKEN_RESERVED_ATTRIBUTE) != null) {
+                //请求已挂起，返回false后不会调用afterCompletion
+                request.removeAttribute(TOKEN_RESERVED_ATTRIBUTE);
+                threadLocalMap.remove();
+                return false;
+            }
+            return result;
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
@@ -82,6 +135,63 @@ public abstract class AbstractGlobalTokenBucketFlowLimitInterceptor
         this.own = own;
     }
 
+    /**
+     * 集群模式，令牌桶的状态保存在Redis中，所有节点共享。
+     *
+     * @param cacheHelper 缓存帮助器
+     * @param bucketKey   令牌桶的key
+     * @param prefetch    每次从Redis预取的令牌数
+     */
+    public void build(AbstractGlobalTokenBucketFlowLimitInterceptor own,
+                      double permitsPerSecond,
+                      long warmupPeriod,
+                      long timeout,
+                      int tokenAcquire,
+                      FlowLimitCacheHelper cacheHelper,
+                      String bucketKey,
+                      int prefetch) {
+        aspectImpl.build(permitsPerSecond, warmupPeriod, timeout, tokenAcquire, cacheHelper, bucketKey, prefetch);
+        this.own = own;
+    }
+
+    /**
+     * 为指定的接口配置单独的令牌桶。<br/>
+     * 接口标识可以是处理方法，格式为“类名.方法名”；也可以是请求路径的Ant风格匹配模式，比如“/order/**”。
+     * 每个处理方法只在第一次访问时按请求路径匹配一次，同一个处理方法映射了多个路径时应使用处理方法作为标识。
+     *
+     * @param endpoint         接口标识
+     * @param permitsPerSecond 本接口的QPS
+     * @param warmupPeriod     本接口的预热期时长，单位毫秒
+     */
+    public void buildEndpoint(String endpoint, double permitsPerSecond, long warmupPeriod) {
+        aspectImpl.buildEndpoint(endpoint, permitsPerSecond, warmupPeriod);
+    }
+
+    /**
+     * 对每个用户单独限流，需要重写{@link #appendCounterKeyWithUserId(HttpServletRequest, HttpServletResponse, Object)}返回用户ID。
+     *
+     * @param permitsPerSecond 每个用户的QPS
+     * @param burst            每个用户允许连续突发的请求数
+     * @param capacity         最多同时保存的用户数
+     */
+    public void buildUserBucket(double permitsPerSecond, int burst, int capacity) {
+        aspectImpl.buildUserBucket(permitsPerSecond, burst, capacity);
+    }
+
+    /**
+     * 开启异步等待，需要等待令牌的请求通过Servlet异步挂起，不阻塞线程。<br/>
+     * 挂起的请求数达到上限后，只放行能立即获取令牌的请求，其余的直接拒绝。
+     * 集群模式的令牌在Redis中不能预约，仍然阻塞等待。
+     * <br/>
+     * 重新分派是一次ASYNC分派，所有拦截器的preHandle都会再次执行。本框架的限流拦截器会跳过已经处理过的请求，
+     * 用户自己的有副作用的拦截器需要自行判断，可以使用{@link InterceptorUtil#isHandledBefore(HttpServletRequest, String)}。
+     *
+     * @param capacity 最多同时挂起的请求数，0表示不启用
+     */
+    public void buildAsyncWait(int capacity) {
+        this.asyncWaitCapacity = Math.max(capacity, 0);
+    }
+
     /**
      * 设置拦截器的拦截配置，比如路径配置等
      *
@@ -108,13 +218,124 @@ public abstract class AbstractGlobalTokenBucketFlowLimitInterceptor
         public final void pointcut() {
         }
 
+        /**
+         * 使用拦截器的放行规则，返回preHandle需要的布尔值
+         */
+        @Override
+        public Object otherHandle(JoinPoint obj, boolean isReject, Object rejectResult) throws Throwable {
+            return AbstractGlobalTokenBucketFlowLimitInterceptor.this.otherHandle(obj, isReject, rejectResult);
+        }
+
+        /**
+         * 开启了异步等待时，令牌需要等待的请求在预约后挂起，不阻塞当前线程
+         */
+        @Override
+        public boolean limitProcess(JoinPoint obj) {
+            HttpServletRequest request = InterceptorUtil.getRequestFromThreadLocalSafely(threadLocalMap);
+            if (asyncWaitCapacity <= 0 || request == null || !request.isAsyncSupported()
+                    || request.getDispatcherType() != DispatcherType.REQUEST) {
+                return super.limitProcess(obj);
+            }
+            //先占用队列中的位置再预约令牌，队列已满则快速拒绝需要等待的请求
+            boolean slotAcquired = tryAcquireWaitSlot();
+            long wait = reserveProcess(obj, slotAcquired);
+            if (wait > 0 && slotAcquired && suspend(request, wait)) {
+                //位置在重新分派时释放
+                return false;
+            }
+            if (slotAcquired) {
+                asyncWaiting.decrementAndGet();
+            }
+            if (wait > 0) {
+                //无法挂起则阻塞等待已预约的令牌
+                try {
+                    TimeUnit.MILLISECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return wait < 0;
+        }
+
+        @Override
+        protected String appendCounterKeyWithUserId(JoinPoint joinPoint) {
+            return InterceptorUtil.appendCounterKeyWithUserId(AbstractGlobalTokenBucketFlowLimitInterceptor.this, threadLocalMap);
+        }
+
+        @Override
+        protected Object resolveHandlerKey(JoinPoint obj) {
+            Object handler = InterceptorUtil.getHandlerFromThreadLocalSafely(threadLocalMap);
+            //每次请求的HandlerMethod都是新建的，使用其中的Method作为标识
+            return handler instanceof HandlerMethod ? ((HandlerMethod) handler).getMethod() : handler;
+        }
+
+        @Override
+        protected String matchEndpoint(JoinPoint obj, Collection<String> endpoints) {
+            Object handler = InterceptorUtil.getHandlerFromThreadLocalSafely(threadLocalMap);
+            HttpServletRequest request = InterceptorUtil.getRequestFromThreadLocalSafely(threadLocalMap);
+            String path = request == null ? null : urlPathHelper.getLookupPathForRequest(request);
+            for (String endpoint : endpoints) {
+                if (handler instanceof HandlerMethod && matchMethod(endpoint, ((HandlerMethod) handler).getMethod())) {
+                    return endpoint;
+                }
+                if (path != null && pathMatcher.match(endpoint, path)) {
+                    return endpoint;
+                }
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * 占用等待队列中的一个位置，CAS自增，并发请求不会超出队列容量
+     *
+     * @return FALSE 队列已满
+     */
+    private boolean tryAcquireWaitSlot() {
+        int current;
+        do {
+            current = asyncWaiting.get();
+            if (current >= asyncWaitCapacity) {
+                return false;
+            }
+        } while (!asyncWaiting.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * 挂起请求，等待时长之后重新分派并释放占用的队列位置。重新分派的请求再次经过拦截器时直接放行
+     *
+     * @param request 请求
+     * @param wait    等待时长，单位毫秒
+     * @return FALSE 请求不能挂起
+     */
+    private boolean suspend(HttpServletRequest request, long wait) {
+        AsyncContext asyncContext;
+        try {
+            asyncContext = request.startAsync();
+        } catch (IllegalStateException e) {
+            return false;
+        }
+        asyncContext.setTimeout(wait + ASYNC_TIMEOUT_MARGIN);
+        request.setAttribute(TOKEN_RESERVED_ATTRIBUTE, Boolean.TRUE);
+        DISPATCH_EXECUTOR.schedule(() -> {
+            asyncWaiting.decrementAndGet();
+            try {
+                asyncContext.dispatch();
+            } catch (IllegalStateException e) {
+                //请求已超时或者已完成
+                log.warn("Flow-Limit-Starter：等待令牌的请求重新分派失败", e);
+            }
+        }, wait, TimeUnit.MILLISECONDS);
+        return true;
     }
 
     /**
-     * 令牌桶是全局限流的，因为单独限流性能开销太大
+     * 默认只做全局限流。开启了用户单独限流时重写本方法，返回当前登录用户的ID
      */
     @Override
-    public final String appendCounterKeyWithUserId(HttpServletRequest request, HttpServletResponse response, Object handler) {
+    public String appendCounterKeyWithUserId(HttpServletRequest request, HttpServletResponse response, Object handler) {
         return null;
     }
 
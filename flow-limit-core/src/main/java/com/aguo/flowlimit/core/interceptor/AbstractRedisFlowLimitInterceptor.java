@@ -1,6 +1,8 @@
 package com.aguo.flowlimit.core.interceptor;
 
 import com.aguo.flowlimit.core.aspect.AbstractRedisFlowLimitAspect;
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+import com.aguo.flowlimit.core.enums.CounterKeyLayoutEnum;
 import com.aguo.flowlimit.core.utils.FlowLimitCacheHelper;
 import com.aguo.flowlimit.core.utils.InterceptorUtil;
 import lombok.extern.slf4j.Slf4j;
@@ -31,6 +33,10 @@ public abstract class AbstractRedisFlowLimitInterceptor
      * 存放HttpServletRequest，HttpServletResponse
      */
     private final ThreadLocal<Map<String, Object>> threadLocalMap = new ThreadLocal<>();
+    /**
+     * 标记本拦截器已经处理过请求的属性名，异步重新分派的请求不再重复计数
+     */
+    private final String handledAttribute = InterceptorUtil.handledAttribute(this);
     /**
      * 拦截器自己，在AutoConfiguration中获取用户实现的拦截器
      */
@@ -39,6 +45,7 @@ public abstract class AbstractRedisFlowLimitInterceptor
     @Override
     public final boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
         if (!redisFlowLimitAspect.isEnabled()) return true;
+        if (InterceptorUtil.isHandledBefore(request, handledAttribute)) return true;
         HashMap<String, Object> map = new HashMap<>();
         map.put("request", request);
         map.put("response", response);
@@ -69,7 +76,7 @@ public abstract class AbstractRedisFlowLimitInterceptor
     }
 
     /**
-     * 因为是抽象类，没办法使用建造者模式，故使用本方法模拟。
+     * 因为是抽象类，没办法使用建造者模式，故使用本方法模拟。所有计数器使用固定窗口。
      *
      * @param own
      */
@@ -81,11 +88,58 @@ public abstract class AbstractRedisFlowLimitInterceptor
                       List<String> counterKeys,
                       List<Long> counterHoldingTime,
                       List<Integer> counterLimitNumber) {
-        redisFlowLimitAspect.build(timeUnit, redisHelper, enabledGlobalLimit, prefixKey, counterKeys, counterHoldingTime, counterLimitNumber);
+        build(own, timeUnit, redisHelper, enabledGlobalLimit, prefixKey, counterKeys, counterHoldingTime, counterLimitNumber, null);
+    }
+
+    /**
+     * 因为是抽象类，没办法使用建造者模式，故使用本方法模拟。
+     *
+     * @param own
+     * @param counterAlgorithm 每个计数器使用的算法，为null或者缺少的计数器使用固定窗口
+     */
+    public void build(AbstractRedisFlowLimitInterceptor own,
+                      TimeUnit timeUnit,
+                      FlowLimitCacheHelper redisHelper,
+                      boolean enabledGlobalLimit,
+                      String prefixKey,
+                      List<String> counterKeys,
+                      List<Long> counterHoldingTime,
+                      List<Integer> counterLimitNumber,
+                      List<CounterAlgorithmEnum> counterAlgorithm) {
+        redisFlowLimitAspect.build(timeUnit, redisHelper, enabledGlobalLimit, prefixKey, counterKeys, counterHoldingTime, counterLimitNumber, counterAlgorithm);
         this.own = own;
     }
 
 
+    /**
+     * 开启配额租借，需要在build之后调用
+     *
+     * @param maxLeaseSize 单个租约的最大许可数，小于等于1表示不开启
+     * @param leaseTime    单个租约的最长有效时长，单位毫秒
+     */
+    public void buildQuotaLease(int maxLeaseSize, long leaseTime) {
+        redisFlowLimitAspect.buildQuotaLease(maxLeaseSize, leaseTime);
+    }
+
+    /**
+     * 开启本地拒绝缓存
+     *
+     * @param maximumSize 最多记录多少个计数器，小于等于0表示不开启
+     */
+    public void buildDenyCache(long maximumSize) {
+        redisFlowLimitAspect.buildDenyCache(maximumSize);
+    }
+
+    /**
+     * 设置计数器key的布局，需要在build之后调用
+     *
+     * @param keyLayout    key的布局
+     * @param globalShards 全局计数器的分片数，只在哈希标签布局下生效
+     */
+    public void buildKeyLayout(CounterKeyLayoutEnum keyLayout, int globalShards) {
+        redisFlowLimitAspect.buildKeyLayout(keyLayout, globalShards);
+    }
+
     /**
      * 设置拦截器的拦截配置，比如路径配置等
      *
@@ -0,0 +1,147 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/14 16:20
+ * @Description: 计数器增量日志。Redis不可用、由本地数据源计数期间，记录每个计数器在本地放行的次数，
+ * Redis恢复后在后台批量写回，Redis中的计数不会因为故障期间的请求而失真。
+ * <br/>
+ * 只在降级时记录，Redis正常时没有任何额外开销，也没有同步双写。
+ * 只保留当前与上一窗口的增量，已经结束的窗口写回也没有意义，直接丢弃。
+ * 记录的计数器数量有上限，超出后不再记录新的计数器。
+ */
+@Slf4j
+public class CounterDeltaJournal {
+    private static final ExecutorService RECONCILE_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "flow-limit-delta-reconcile");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 最多记录的计数器数量
+     */
+    private final int maxEntries;
+    private final Map<String, Delta> deltas = new ConcurrentHashMap<>();
+
+    public CounterDeltaJournal(int maxEntries) {
+        this.maxEntries = Math.max(maxEntries, 1);
+    }
+
+    /**
+     * 记录一次本地放行，每个计数器加一
+     *
+     * @param keys       计数器的key
+     * @param timeouts   每个计数器的超时时长，单位毫秒
+     * @param algorithms 每个计数器的算法
+     * @param now        当前时间，单位毫秒
+     */
+    public void record(List<String> keys, List<Long> timeouts, List<CounterAlgorithmEnum> algorithms, long now) {
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            Delta delta = deltas.get(key);
+            if (delta == null) {
+                if (deltas.size() >= maxEntries) {
+                    continue;
+                }
+                long timeout = Math.max(timeouts.get(i), 1L);
+                boolean sliding = CounterAlgorithmEnum.SlidingWindow == algorithms.get(i);
+                delta = deltas.computeIfAbsent(key, k -> new Delta(k, timeout, sliding));
+            }
+            delta.add(now / delta.timeout);
+        }
+    }
+
+    /**
+     * 在后台线程取出所有增量并写回，写回失败的增量丢弃
+     *
+     * @param flusher 写回方式
+     */
+    public void reconcile(Consumer<Collection<Delta>> flusher) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+        RECONCILE_EXECUTOR.execute(() -> {
+            List<Delta> drained = new ArrayList<>(deltas.size());
+            for (String key : deltas.keySet()) {
+                Delta delta = deltas.remove(key);
+                if (delta != null) {
+                    drained.add(delta);
+                }
+            }
+            try {
+                flusher.accept(drained);
+            } catch (Exception e) {
+                log.warn("Flow-Limit-Starter：降级期间的{}个计数器增量写回失败", drained.size(), e);
+            }
+        });
+    }
+
+    /**
+     * 单个计数器的增量
+     */
+    public static final class Delta {
+        private final String key;
+        private final long timeout;
+        private final boolean sliding;
+        private long window;
+        private int count;
+        private int previousCount;
+
+        Delta(String key, long timeout, boolean sliding) {
+            this.key = key;
+            this.timeout = timeout;
+            this.sliding = sliding;
+        }
+
+        synchronized void add(long window) {
+            if (window != this.window) {
+                previousCount = window == this.window + 1 ? count : 0;
+                count = 0;
+                this.window = window;
+            }
+            count++;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public boolean isSliding() {
+            return sliding;
+        }
+
+        /**
+         * 当前时间所在窗口的增量
+         */
+        public synchronized int countAt(long window) {
+            return window == this.window ? count : 0;
+        }
+
+        /**
+         * 当前时间所在窗口的上一窗口的增量
+         */
+        public synchronized int previousCountAt(long window) {
+            if (window == this.window) {
+                return previousCount;
+            }
+            return window == this.window + 1 ? count : 0;
+        }
+    }
+}
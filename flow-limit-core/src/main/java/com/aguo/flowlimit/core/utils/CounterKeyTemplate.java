@@ -0,0 +1,138 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterKeyLayoutEnum;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/11 15:06
+ * @Description: 计数器key模板。前缀、计数器key与模式在构建时已经拼接好，每个用户只在第一次请求时拼接一次，
+ * 之后的请求直接复用同一个不可变的key列表，不再产生新的字符串与列表。
+ * <br/>
+ * key的UTF-8编码同样按用户缓存，Redis数据源通过{@link #rawKeys(List)}取出后直接交给连接，不再经过序列化器。
+ * <br/>
+ * Hash打包布局下，每个用户只有一个key。
+ */
+public class CounterKeyTemplate {
+    /**
+     * 最多缓存多少个用户的key
+     */
+    private static final long MAXIMUM_SUBJECTS = 10_000L;
+    /**
+     * 用户的key多久未访问则移除，单位分钟
+     */
+    private static final long EXPIRE_AFTER_ACCESS = 10L;
+    private static final String USER_ID = "userId:";
+
+    /**
+     * 已经拼接好前缀与模式的计数器key
+     */
+    private final String[] counterKeys;
+    /**
+     * 是否使用哈希标签包裹用户ID
+     */
+    private final boolean hashTag;
+    /**
+     * Hash打包布局下用户key的前缀，为null则每个计数器一个key
+     */
+    private final String subjectKeyPrefix;
+    /**
+     * key:用户ID。value:该用户的所有计数器key
+     */
+    private final Cache<String, SubjectKeys> subjectKeys;
+
+    /**
+     * @param counterKeys      已经拼接好前缀与模式的计数器key
+     * @param keyLayout        key的布局
+     * @param subjectKeyPrefix Hash打包布局下用户key的前缀
+     */
+    public CounterKeyTemplate(List<String> counterKeys, CounterKeyLayoutEnum keyLayout, String subjectKeyPrefix) {
+        this.counterKeys = counterKeys.toArray(new String[0]);
+        this.hashTag = CounterKeyLayoutEnum.ClusterHashTag == keyLayout;
+        this.subjectKeyPrefix = CounterKeyLayoutEnum.SubjectHash == keyLayout ? subjectKeyPrefix : null;
+        this.subjectKeys = Caffeine.newBuilder()
+                .maximumSize(MAXIMUM_SUBJECTS)
+                .expireAfterAccess(EXPIRE_AFTER_ACCESS, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * 获取用户的所有计数器key
+     *
+     * @param userId 用户ID
+     * @return 不可变的key列表，同一用户返回同一个列表。Hash打包布局下只有一个key
+     */
+    public List<String> getKeys(String userId) {
+        return subjectKeys.get(userId, this::buildKeys);
+    }
+
+    /**
+     * 获取key列表编码后的字节数组。模板生成的列表直接返回按用户缓存的字节数组，其他列表按UTF-8逐个编码
+     *
+     * @param keys 计数器key
+     * @return 每个key的UTF-8编码。模板生成的列表返回的数组是共享的，调用方不能修改
+     */
+    public static byte[][] rawKeys(List<String> keys) {
+        if (keys instanceof SubjectKeys) {
+            return ((SubjectKeys) keys).rawKeys;
+        }
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        return rawKeys;
+    }
+
+    private SubjectKeys buildKeys(String userId) {
+        if (subjectKeyPrefix != null) {
+            return new SubjectKeys(new String[]{subjectKeyPrefix + USER_ID + userId});
+        }
+        String[] keys = new String[counterKeys.length];
+        int extra = USER_ID.length() + userId.length() + (hashTag ? 2 : 0);
+        for (int i = 0; i < keys.length; i++) {
+            StringBuilder builder = new StringBuilder(counterKeys[i].length() + extra)
+                    .append(counterKeys[i])
+                    .append(USER_ID);
+            if (hashTag) {
+                builder.append('{').append(userId).append('}');
+            } else {
+                builder.append(userId);
+            }
+            keys[i] = builder.toString();
+        }
+        return new SubjectKeys(keys);
+    }
+
+    /**
+     * 一个用户的计数器key，同时持有每个key编码后的字节数组
+     */
+    private static final class SubjectKeys extends AbstractList<String> implements RandomAccess {
+        private final String[] keys;
+        private final byte[][] rawKeys;
+
+        private SubjectKeys(String[] keys) {
+            this.keys = keys;
+            this.rawKeys = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                rawKeys[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public String get(int index) {
+            return keys[index];
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+    }
+}
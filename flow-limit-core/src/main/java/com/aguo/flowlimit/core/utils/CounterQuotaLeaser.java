@@ -0,0 +1,213 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/9 15:36
+ * @Description: 计数器配额租借。每个节点一次从Redis的计数器中预留一批许可（租约），之后在本地无锁地消费，
+ * 直到租约用完或者过期，才再次访问Redis。热点计数器由每个请求访问一次Redis变为每批请求访问一次。
+ * <br/>
+ * 租约大小根据本地观测到的消费速度自适应调整，过期时未用完的许可会归还给Redis。
+ * 只适用于固定窗口计数器。
+ */
+public class CounterQuotaLeaser {
+    /**
+     * 单个租约最多占用计数器上限的比例的倒数，避免一个节点占用整个窗口的配额
+     */
+    private static final int MAX_LEASE_FRACTION = 10;
+    private final FlowLimitCacheHelper cacheHelper;
+    /**
+     * 租约的最大许可数
+     */
+    private final int maxLeaseSize;
+    /**
+     * 租约的最长有效时长，单位毫秒
+     */
+    private final long leaseTime;
+    /**
+     * key:计数器的key。value:该计数器在本节点的租约。长时间未访问的租约会被移除，并归还未用完的许可
+     */
+    private final Cache<String, Lease> leases;
+
+    public CounterQuotaLeaser(FlowLimitCacheHelper cacheHelper, int maxLeaseSize, long leaseTime) {
+        this.cacheHelper = cacheHelper;
+        this.maxLeaseSize = Math.max(maxLeaseSize, 1);
+        this.leaseTime = Math.max(leaseTime, 1L);
+        this.leases = Caffeine.newBuilder()
+                .expireAfterAccess(this.leaseTime * 2, TimeUnit.MILLISECONDS)
+                .removalListener((String key, Lease lease, RemovalCause cause) -> {
+                    if (lease != null && cause.wasEvicted()) {
+                        giveBack(key, lease, System.currentTimeMillis());
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * 依次从每个计数器的租约中获取一个许可。某个计数器达到上限，则把已经获取的许可退回本地租约。
+     *
+     * @param keys       计数器的key
+     * @param timeouts   每个计数器的超时时长，单位毫秒
+     * @param countMaxes 每个计数器的最大计数限制
+     * @return [0]触发限制的计数器下标，从0开始，未触发限制为-1；[1]该计数器窗口剩余的时长，单位毫秒，未知为0
+     */
+    public long[] tryAcquire(List<String> keys, List<Long> timeouts, List<Integer> countMaxes) {
+        for (int i = 0; i < keys.size(); i++) {
+            long retryAfter = tryAcquire(keys.get(i), timeouts.get(i), countMaxes.get(i));
+            if (retryAfter >= 0) {
+                for (int j = 0; j < i; j++) {
+                    Lease lease = leases.getIfPresent(keys.get(j));
+                    if (lease != null) {
+                        lease.remaining.incrementAndGet();
+                    }
+                }
+                return new long[]{i, retryAfter};
+            }
+        }
+        return new long[]{-1, 0};
+    }
+
+    /**
+     * 移除计数器的租约，重置计数器时使用。计数器会被删除，因此无需归还许可
+     *
+     * @param keys 计数器的key
+     */
+    public void invalidate(List<String> keys) {
+        for (String key : keys) {
+            Lease lease = leases.getIfPresent(key);
+            if (lease != null) {
+                lease.remaining.set(0);
+                leases.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * 从计数器的租约中获取一个许可
+     *
+     * @return 获取成功返回-1；计数器已达上限则返回窗口剩余的时长，单位毫秒，未知为0
+     */
+    private long tryAcquire(String key, Long timeout, Integer countMax) {
+        Lease lease = leases.get(key, k -> new Lease());
+        long now = System.currentTimeMillis();
+        if (lease.tryTake(now)) {
+            return -1L;
+        }
+        //计数器在本窗口已经用完，直到窗口结束都不再加锁访问Redis
+        long exhaustedUntil = lease.exhaustedUntil;
+        if (now < exhaustedUntil) {
+            return exhaustedUntil - now;
+        }
+        synchronized (lease) {
+            //其他线程可能已经续租，或者已经确认计数器用完
+            now = System.currentTimeMillis();
+            if (lease.tryTake(now)) {
+                return -1L;
+            }
+            if (now < lease.exhaustedUntil) {
+                return lease.exhaustedUntil - now;
+            }
+            int size = nextLeaseSize(lease, now, countMax);
+            giveBack(key, lease, now);
+            long[] result = cacheHelper.leasePermits(key, timeout, countMax, size);
+            long granted = result[0];
+            if (granted <= 0) {
+                //剩余有效时长未知(-1或-2)时不记录，下次仍访问Redis
+                long windowLeft = Math.max(result[1], 0L);
+                lease.exhaustedUntil = now + windowLeft;
+                return windowLeft;
+            }
+            //Redis返回的剩余有效时长可能是-1(无过期时间)或-2(不存在)，此时按完整窗口处理
+            long windowLeft = result[1] > 0 ? result[1] : timeout;
+            //当场使用其中一个许可
+            lease.renew(now, granted, Math.min(leaseTime, windowLeft), timeout, now + windowLeft);
+            return -1L;
+        }
+    }
+
+    /**
+     * 根据上一个租约的消费速度计算新的租约大小：租约有效期内预计消费的许可数
+     */
+    private int nextLeaseSize(Lease lease, long now, int countMax) {
+        int upperBound = Math.max(1, Math.min(maxLeaseSize, countMax / MAX_LEASE_FRACTION));
+        if (lease.startTime == 0) {
+            return 1;
+        }
+        long used = lease.granted - lease.remaining.get();
+        long elapsed = Math.max(now - lease.startTime, 1L);
+        long expected = (long) Math.ceil((double) used * leaseTime / elapsed);
+        return (int) Math.max(1L, Math.min(upperBound, expected));
+    }
+
+    /**
+     * 归还租约中未用完的许可。只有计数器仍在同一窗口内才归还，否则计数器已经过期，无需归还。
+     * 本地判断之后窗口仍可能在Redis中过期，由归还脚本根据窗口剩余时长再次判断
+     */
+    private void giveBack(String key, Lease lease, long now) {
+        long unused = lease.remaining.getAndSet(0);
+        if (unused > 0 && now < lease.windowEnd) {
+            cacheHelper.returnPermits(key, unused, lease.timeout, lease.windowEnd - now);
+        }
+    }
+
+    private static class Lease {
+        /**
+         * 剩余可用的许可
+         */
+        private final AtomicLong remaining = new AtomicLong();
+        /**
+         * 租约内获取到的许可总数（包括续租时当场使用的那一个）
+         */
+        private volatile long granted;
+        /**
+         * 租约开始时间
+         */
+        private volatile long startTime;
+        /**
+         * 租约失效时间
+         */
+        private volatile long expireTime;
+        /**
+         * 计数器的超时时长
+         */
+        private volatile long timeout;
+        /**
+         * 计数器窗口的结束时间
+         */
+        private volatile long windowEnd;
+        /**
+         * 计数器在本窗口已达上限，此时间之前直接拒绝
+         */
+        private volatile long exhaustedUntil;
+
+        boolean tryTake(long now) {
+            if (now >= expireTime) {
+                return false;
+            }
+            long current;
+            do {
+                current = remaining.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!remaining.compareAndSet(current, current - 1));
+            return true;
+        }
+
+        void renew(long now, long permits, long duration, long timeout, long windowEnd) {
+            this.granted = permits;
+            this.timeout = timeout;
+            this.startTime = now;
+            this.windowEnd = windowEnd;
+            this.expireTime = now + duration;
+            this.remaining.set(permits - 1);
+        }
+    }
+}
@@ -1,26 +1,41 @@
 package com.aguo.flowlimit.core.utils;
 
 import com.aguo.flowlimit.core.enums.CacheDataSourceTypeEnum;
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.aguo.flowlimit.core.enums.CircuitBreakerStateEnum;
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.common.util.concurrent.RateLimiter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ObjectUtils;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
-import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
-import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.util.StringUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-
-import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 /**
  * @Author: wenqiaogang
@@ -34,6 +49,10 @@ public class FlowLimitCacheHelper {
      * 缓存使用的策略：1.redis 2.local
      */
     private static CacheDataSourceTypeEnum strategy;
+    /**
+     * 降级期间最多记录增量的计数器数量
+     */
+    private static final int DELTA_JOURNAL_SIZE = 100000;
 
     private CacheHelperFactory cacheHelperFactory;
 
@@ -43,6 +62,16 @@ public class FlowLimitCacheHelper {
         build(strategy, redisConnectionFactory, counterHoldingTime, timeUnit);
     }
 
+    /**
+     * @param defaultCircuitBreaker 是否使用默认参数构建Redis数据源的熔断器，为false时由调用者通过buildCircuitBreaker构建
+     */
+    public FlowLimitCacheHelper(CacheDataSourceTypeEnum strategy,
+                                RedisConnectionFactory redisConnectionFactory,
+                                List<Long> counterHoldingTime, TimeUnit timeUnit,
+                                boolean defaultCircuitBreaker) {
+        build(strategy, redisConnectionFactory, counterHoldingTime, timeUnit, defaultCircuitBreaker);
+    }
+
     /**
      * 建造缓存帮助器
      *
@@ -54,6 +83,22 @@ public class FlowLimitCacheHelper {
     public void build(CacheDataSourceTypeEnum strategy,
                       RedisConnectionFactory redisConnectionFactory,
                       List<Long> counterHoldingTime, TimeUnit timeUnit) {
+        build(strategy, redisConnectionFactory, counterHoldingTime, timeUnit, true);
+    }
+
+    /**
+     * 建造缓存帮助器
+     *
+     * @param strategy
+     * @param redisConnectionFactory
+     * @param counterHoldingTime
+     * @param timeUnit
+     * @param defaultCircuitBreaker  是否使用默认参数构建Redis数据源的熔断器
+     */
+    public void build(CacheDataSourceTypeEnum strategy,
+                      RedisConnectionFactory redisConnectionFactory,
+                      List<Long> counterHoldingTime, TimeUnit timeUnit,
+                      boolean defaultCircuitBreaker) {
         //指定策略
         if (ObjectUtils.isNotEmpty(strategy)) {
             FlowLimitCacheHelper.strategy = strategy;
@@ -68,22 +113,162 @@ public class FlowLimitCacheHelper {
         if (ObjectUtils.allNotNull(counterHoldingTime, timeUnit)) {
             initLocalStrategyService(counterHoldingTime, timeUnit);
         }
+        if (CacheDataSourceTypeEnum.Sketch == FlowLimitCacheHelper.strategy) {
+            buildSketch(SketchStrategyService.DEFAULT_WIDTH);
+        }
+        if (defaultCircuitBreaker && ObjectUtils.isNotEmpty(redisConnectionFactory)) {
+            buildCircuitBreaker(FlowLimitCircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD,
+                    FlowLimitCircuitBreaker.DEFAULT_SLOW_CALL_RATE_THRESHOLD,
+                    FlowLimitCircuitBreaker.DEFAULT_SLOW_CALL_DURATION,
+                    FlowLimitCircuitBreaker.DEFAULT_SLIDING_WINDOW_SIZE,
+                    FlowLimitCircuitBreaker.DEFAULT_MINIMUM_NUMBER_OF_CALLS,
+                    FlowLimitCircuitBreaker.DEFAULT_WAIT_DURATION_IN_OPEN_STATE,
+                    FlowLimitCircuitBreaker.DEFAULT_PROBE_INTERVAL,
+                    FlowLimitCircuitBreaker.DEFAULT_PERMITTED_CALLS_IN_HALF_OPEN_STATE);
+        }
+    }
+
+    /**
+     * 构建Redis数据源的熔断器，替换默认的熔断器。
+     * <br/>
+     * 熔断器打开后使用本地数据源，后台定时探测Redis，恢复后经过半开状态的试探再切回Redis。
+     *
+     * @param failureRateThreshold          失败率阈值，百分比
+     * @param slowCallRateThreshold         慢调用率阈值，百分比
+     * @param slowCallDuration              慢调用时长，单位毫秒
+     * @param slidingWindowSize             统计最近多少次调用
+     * @param minimumNumberOfCalls          至少记录多少次调用才计算失败率
+     * @param waitDurationInOpenState       打开后多久开始探测，单位毫秒
+     * @param probeInterval                 探测间隔，单位毫秒
+     * @param permittedCallsInHalfOpenState 半开状态放行的请求数
+     */
+    public void buildCircuitBreaker(int failureRateThreshold, int slowCallRateThreshold, long slowCallDuration,
+                                    int slidingWindowSize, int minimumNumberOfCalls, long waitDurationInOpenState,
+                                    long probeInterval, int permittedCallsInHalfOpenState) {
+        RedisStrategyService redisStrategyService = (RedisStrategyService) cacheHelperFactory.map.get(CacheDataSourceTypeEnum.Redis);
+        if (redisStrategyService == null) {
+            return;
+        }
+        CounterDeltaJournal deltaJournal = new CounterDeltaJournal(DELTA_JOURNAL_SIZE);
+        this.cacheHelperFactory.setDeltaJournal(deltaJournal);
+        //Redis恢复后把降级期间本地放行的计数写回
+        this.cacheHelperFactory.setCircuitBreaker(new FlowLimitCircuitBreaker(failureRateThreshold, slowCallRateThreshold,
+                slowCallDuration, slidingWindowSize, minimumNumberOfCalls, waitDurationInOpenState, probeInterval,
+                permittedCallsInHalfOpenState, redisStrategyService::ping, state -> {
+                    if (CircuitBreakerStateEnum.Closed == state) {
+                        deltaJournal.reconcile(redisStrategyService::flushDeltas);
+                    }
+                }));
+    }
+
+    /**
+     * 设置每次限流判断等待Redis的延迟预算。超出预算则由本地数据源判断，Redis的自增在后台继续完成。
+     * <br/>
+     * 只对计数器生效，需要Lettuce客户端。
+     *
+     * @param latencyBudget 延迟预算，小于等于0表示一直等待Redis
+     * @param timeUnit      时间单位
+     */
+    public void buildLatencyBudget(long latencyBudget, TimeUnit timeUnit) {
+        this.cacheHelperFactory.setLatencyBudgetNanos(latencyBudget > 0 ? timeUnit.toNanos(latencyBudget) : 0L);
+    }
+
+    /**
+     * 设置本地计数器的内存预算。超出预算时新的key按访问频率准入，不会挤掉活跃的计数器。
+     *
+     * @param memoryBudget 内存预算，单位字节，小于等于0表示不限制
+     */
+    public void buildLocalMemoryBudget(long memoryBudget) {
+        LocalStrategyService localStrategyService = (LocalStrategyService) cacheHelperFactory.map.get(CacheDataSourceTypeEnum.Local);
+        if (memoryBudget <= 0 || localStrategyService == null) {
+            return;
+        }
+        this.cacheHelperFactory.addStrategyService(CacheDataSourceTypeEnum.Local, new LocalStrategyService(
+                localStrategyService.counterHoldingTime, localStrategyService.timeUnit, new LocalCounterStore(memoryBudget)));
+        localStrategyService.close();
+    }
+
+    /**
+     * 本地计数器改用堆外计数器表，适用于按用户限流且用户量极大的场景，堆内存占用不随计数器数量增长。
+     *
+     * @param capacity 预计的本地计数器数量，小于等于0表示使用堆内存储
+     */
+    public void buildLocalCounterTable(int capacity) {
+        buildLocalCounterTable(capacity, null);
+    }
+
+    /**
+     * 本地计数器改用堆外计数器表，并映射到文件。重启后重新映射同一文件即可恢复计数，滚动发布时限流不会失效。
+     *
+     * @param capacity 预计的本地计数器数量，小于等于0表示使用堆内存储
+     * @param file     映射的文件路径，为空则不映射。文件无法映射时使用直接内存
+     */
+    public void buildLocalCounterTable(int capacity, String file) {
+        LocalStrategyService localStrategyService = (LocalStrategyService) cacheHelperFactory.map.get(CacheDataSourceTypeEnum.Local);
+        if (capacity <= 0 || localStrategyService == null) {
+            return;
+        }
+        OffHeapCounterTable counterTable = null;
+        if (StringUtils.hasText(file)) {
+            try {
+                counterTable = new OffHeapCounterTable(capacity, new File(file));
+            } catch (IOException e) {
+                log.warn("Flow-Limit-Starter：本地计数器文件【{}】映射失败，计数器不会在重启后保留", file, e);
+            }
+        }
+        if (counterTable == null) {
+            counterTable = new OffHeapCounterTable(capacity);
+        }
+        this.cacheHelperFactory.addStrategyService(CacheDataSourceTypeEnum.Local, new LocalStrategyService(
+                localStrategyService.counterHoldingTime, localStrategyService.timeUnit, counterTable));
+        localStrategyService.close();
+    }
+
+    /**
+     * 构建Count-Min Sketch数据源，替换默认的数据源，只在使用该数据源时生效。
+     *
+     * @param width 每个窗口每行的计数数量，越大误差越小，内存占用为 3*4*4*width 字节
+     */
+    public void buildSketch(int width) {
+        if (CacheDataSourceTypeEnum.Sketch != FlowLimitCacheHelper.strategy || width <= 0) {
+            return;
+        }
+        LocalStrategyService localStrategyService = (LocalStrategyService) Optional
+                .ofNullable(cacheHelperFactory.map.get(CacheDataSourceTypeEnum.Local))
+                .orElseGet(LocalStrategyService::new);
+        IFlowLimitStrategyService previous = cacheHelperFactory.map.get(CacheDataSourceTypeEnum.Sketch);
+        this.cacheHelperFactory.addStrategyService(CacheDataSourceTypeEnum.Sketch,
+                new SketchStrategyService(width, localStrategyService));
+        if (previous instanceof SketchStrategyService) {
+            ((SketchStrategyService) previous).close();
+        }
+    }
+
+    /**
+     * 获取Redis数据源熔断器的状态
+     *
+     * @return 熔断器状态，未使用熔断器返回null
+     */
+    public CircuitBreakerStateEnum getCircuitBreakerState() {
+        return Optional.ofNullable(cacheHelperFactory.getCircuitBreaker())
+                .map(FlowLimitCircuitBreaker::getState)
+                .orElse(null);
     }
 
     private void initRedisStrategyService(RedisConnectionFactory redisConnectionFactory) {
         //Redis策略初始化
         RedisStrategyService redisStrategyService = new RedisStrategyService(redisConnectionFactory);
         this.cacheHelperFactory.addStrategyService(CacheDataSourceTypeEnum.Redis, redisStrategyService);
+        //Lettuce客户端支持异步命令，多个请求复用同一个连接
+        if (redisConnectionFactory instanceof LettuceConnectionFactory) {
+            this.cacheHelperFactory.setAsyncStrategyService(
+                    new RedisAsyncStrategyService((LettuceConnectionFactory) redisConnectionFactory));
+        }
     }
 
     private void initLocalStrategyService(List<Long> counterHoldingTime, TimeUnit timeUnit) {
         //本地缓存策略初始化
         LocalStrategyService localStrategyService = new LocalStrategyService(counterHoldingTime, timeUnit);
-        //构建缓存对象
-        if (CacheDataSourceTypeEnum.Local == strategy) {
-
-            localStrategyService.buildCache();
-        }
         this.cacheHelperFactory.addStrategyService(CacheDataSourceTypeEnum.Local, localStrategyService);
     }
 
@@ -98,6 +283,113 @@ public class FlowLimitCacheHelper {
         return cacheHelperFactory.increaseKeySafely(key, timeout, CountMax);
     }
 
+    /**
+     * 多个计数器一次性原子地检查并自增
+     *
+     * @param keys       计数器的key
+     * @param timeouts   每个计数器的超时时长，单位毫秒
+     * @param countMaxes 每个计数器的最大计数限制
+     * @param algorithms 每个计数器使用的算法
+     * @return 长度为2的数组：[0]触发限制的计数器下标，从0开始，未触发限制为-1；
+     * [1]触发限制的计数器还需多久才会放行，单位毫秒，0表示未知
+     */
+    public long[] increaseKeysSafely(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+        return cacheHelperFactory.increaseKeysSafely(keys, timeouts, countMaxes, algorithms);
+    }
+
+    /**
+     * 一个用户的所有计数器打包在同一个Hash中，一次性原子地检查并自增。
+     * <br/>
+     * 每个计数器只占用Hash中固定的几个field，窗口按时间对齐，整个Hash在最长的窗口结束后过期。
+     *
+     * @param key        用户的Hash key
+     * @param timeouts   每个计数器的超时时长，单位毫秒
+     * @param countMaxes 每个计数器的最大计数限制
+     * @param algorithms 每个计数器使用的算法
+     * @return 结果同{@link #increaseKeysSafely(List, List, List, List)}
+     */
+    public long[] increaseHashKeySafely(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+        return cacheHelperFactory.increaseHashKeySafely(key, timeouts, countMaxes, algorithms);
+    }
+
+    /**
+     * 异步的Hash打包计数器安全自增，不占用调用线程等待Redis响应
+     *
+     * @return 结果同{@link #increaseKeysSafely(List, List, List, List)}
+     */
+    public CompletionStage<long[]> increaseHashKeySafelyAsync(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+        return cacheHelperFactory.increaseHashKeySafelyAsync(key, timeouts, countMaxes, algorithms);
+    }
+
+    /**
+     * 异步的单个计数器安全自增，不占用调用线程等待Redis响应
+     *
+     * @return 当前key记录值是否大于等于CountMax
+     */
+    public CompletionStage<Boolean> increaseKeySafelyAsync(String key, Long timeout, Integer countMax) {
+        return cacheHelperFactory.increaseKeySafelyAsync(key, timeout, countMax);
+    }
+
+    /**
+     * 异步的多计数器原子检查并自增，不占用调用线程等待Redis响应
+     *
+     * @return 结果同{@link #increaseKeysSafely(List, List, List, List)}
+     */
+    public CompletionStage<long[]> increaseKeysSafelyAsync(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+        return cacheHelperFactory.increaseKeysSafelyAsync(keys, timeouts, countMaxes, algorithms);
+    }
+
+    /**
+     * GCRA（通用信元速率算法）获取一次许可
+     *
+     * @param key              限流器的key
+     * @param emissionInterval 两次请求之间的理论间隔，单位微秒
+     * @param burstTolerance   允许的突发容忍时长，单位微秒
+     * @return 0表示获取成功；大于0表示被限流，数值为距离下次可用还需等待的微秒数
+     */
+    public long gcraAcquire(String key, long emissionInterval, long burstTolerance) {
+        return cacheHelperFactory.gcraAcquire(key, emissionInterval, burstTolerance);
+    }
+
+    /**
+     * 从集群共享的令牌桶中获取令牌
+     *
+     * @param key              令牌桶的key
+     * @param permitsPerSecond 令牌的生产速度
+     * @param warmupPeriod     预热期时长，单位毫秒
+     * @param need             本次至少需要的令牌数
+     * @param prefetch         本次最多获取的令牌数，多出来的令牌由调用方在本地消费
+     * @return 大于0：获取到的令牌数；小于0：令牌不足，绝对值是预计还需等待的毫秒数
+     */
+    public long acquireTokens(String key, double permitsPerSecond, long warmupPeriod, int need, int prefetch) {
+        return cacheHelperFactory.acquireTokens(key, permitsPerSecond, warmupPeriod, need, prefetch);
+    }
+
+    /**
+     * 从固定窗口计数器中一次预留一批许可
+     *
+     * @param key      计数器的key
+     * @param timeout  计数器的超时时长，单位毫秒
+     * @param countMax 计数器的最大计数限制
+     * @param size     希望预留的许可数
+     * @return [0]:实际预留到的许可数，[1]:计数器剩余的有效时长，单位毫秒
+     */
+    public long[] leasePermits(String key, Long timeout, Integer countMax, int size) {
+        return cacheHelperFactory.leasePermits(key, timeout, countMax, size);
+    }
+
+    /**
+     * 归还未使用的许可
+     *
+     * @param key        计数器的key
+     * @param permits    归还的许可数
+     * @param timeout    计数器的超时时长，单位毫秒
+     * @param windowLeft 预留许可的窗口剩余的有效时长，单位毫秒
+     */
+    public void returnPermits(String key, long permits, long timeout, long windowLeft) {
+        cacheHelperFactory.returnPermits(key, permits, timeout, windowLeft);
+    }
+
     public Integer getOne(String key) {
         return cacheHelperFactory.getOne(key);
     }
@@ -153,9 +445,101 @@ public class FlowLimitCacheHelper {
          * @throws Exception Redis可能宕机，异常被工厂对象捕获，会自动切换为本地数据源
          */
         Boolean increaseKeySafely(String key, Long timeout, Integer CountMax) throws Exception;
+
+        /**
+         * 多个计数器的安全自增。先检查所有计数器，只要有一个达到上限，则所有计数器都不自增；否则所有计数器一起自增。
+         * <br/>
+         * 避免了逐个计数器调用时，前面的计数器已经自增，而后面的计数器拒绝请求的问题。
+         * Redis集群下计数器不在同一个槽上时，只在每个槽内保证这一点，可以使用cluster-hash-tag布局让计数器落在同一个槽上。
+         *
+         * @param keys       计数器的key
+         * @param timeouts   每个计数器的超时时长，单位毫秒，与keys一一对应
+         * @param countMaxes 每个计数器的最大计数限制，与keys一一对应
+         * @param algorithms 每个计数器使用的算法，与keys一一对应
+         * @return 长度为2的数组：[0]触发限制的计数器下标，从0开始，未触发限制为-1；
+         * [1]触发限制的计数器还需多久才会放行，单位毫秒，0表示未知
+         * @throws Exception Redis可能宕机，异常被工厂对象捕获，会自动切换为本地数据源
+         */
+        long[] increaseKeysSafely(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception;
+
+        /**
+         * 多个计数器打包在同一个Hash中的安全自增，语义同{@link #increaseKeysSafely(List, List, List, List)}
+         *
+         * @param key        Hash的key
+         * @param timeouts   每个计数器的超时时长，单位毫秒
+         * @param countMaxes 每个计数器的最大计数限制
+         * @param algorithms 每个计数器使用的算法
+         * @return 结果同{@link #increaseKeysSafely(List, List, List, List)}
+         * @throws Exception Redis可能宕机，异常被工厂对象捕获，会自动切换为本地数据源
+         */
+        long[] increaseHashKeySafely(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception;
+
+        /**
+         * GCRA（通用信元速率算法）获取一次许可。每个key只保存一个理论到达时间（TAT），一次调用完成判断与更新。
+         *
+         * @param key              限流器的key
+         * @param emissionInterval 两次请求之间的理论间隔，单位微秒
+         * @param burstTolerance   允许的突发容忍时长，单位微秒
+         * @return 0表示获取成功；大于0表示被限流，数值为距离下次可用还需等待的微秒数
+         * @throws Exception Redis可能宕机，异常被工厂对象捕获，会自动切换为本地数据源
+         */
+        long gcraAcquire(String key, long emissionInterval, long burstTolerance) throws Exception;
+
+        /**
+         * 从令牌桶中获取令牌。令牌桶带有预热期：桶空闲（令牌已满）后重新变冷，冷启动时令牌的生产速度只有1/3，
+         * 在预热期内线性增长直至最大，与RateLimiter.create(permitsPerSecond, warmupPeriod)的效果类似。
+         *
+         * @param key              令牌桶的key
+         * @param permitsPerSecond 令牌的生产速度
+         * @param warmupPeriod     预热期时长，单位毫秒
+         * @param need             本次至少需要的令牌数
+         * @param prefetch         本次最多获取的令牌数，多出来的令牌由调用方在本地消费
+         * @return 大于0：获取到的令牌数；小于0：令牌不足，绝对值是预计还需等待的毫秒数
+         * @throws Exception Redis可能宕机，异常被工厂对象捕获，会自动切换为本地数据源
+         */
+        long acquireTokens(String key, double permitsPerSecond, long warmupPeriod, int need, int prefetch) throws Exception;
+
+        /**
+         * 从固定窗口计数器中一次预留一批许可，即计数器一次增加多个，最多加到countMax。
+         *
+         * @param key      计数器的key
+         * @param timeout  计数器的超时时长，单位毫秒
+         * @param countMax 计数器的最大计数限制
+         * @param size     希望预留的许可数
+         * @return [0]:实际预留到的许可数，0表示计数器已达上限；[1]:计数器剩余的有效时长，单位毫秒
+         * @throws Exception Redis可能宕机，异常被工厂对象捕获，会自动切换为本地数据源
+         */
+        long[] leasePermits(String key, Long timeout, Integer countMax, int size) throws Exception;
+
+        /**
+         * 归还未使用的许可，只有计数器仍在同一窗口内才会扣减
+         *
+         * @param key        计数器的key
+         * @param permits    归还的许可数
+         * @param timeout    计数器的超时时长，单位毫秒
+         * @param windowLeft 预留许可的窗口剩余的有效时长，单位毫秒
+         * @throws Exception Redis可能宕机，异常被工厂对象捕获，会自动切换为本地数据源
+         */
+        void returnPermits(String key, long permits, long timeout, long windowLeft) throws Exception;
     }
 
     public static class RedisStrategyService implements IFlowLimitStrategyService {
+        /**
+         * 脚本开头读取Redis服务器的当前时间（毫秒），保存在now中。所有节点使用同一个时钟，节点的时钟偏差不影响窗口的划分。
+         * <br/>
+         * TIME是非确定性命令，Redis 5以前默认按脚本复制，读取TIME之后不能再写入，需要先切换为按效果复制
+         */
+        private static final String LUA_NOW_MILLIS =
+                "redis.replicate_commands(); " +
+                        "local time = redis.call('TIME'); " +
+                        "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000); ";
+        /**
+         * 同{@link #LUA_NOW_MILLIS}，单位微秒
+         */
+        private static final String LUA_NOW_MICROS =
+                "redis.replicate_commands(); " +
+                        "local time = redis.call('TIME'); " +
+                        "local now = tonumber(time[1]) * 1000000 + tonumber(time[2]); ";
         private static final String LUA_INC_SCRIPT_TEXT =
                 "local counterKey = KEYS[1]; " +
                         "local timeout = ARGV[1]; " +
@@ -170,181 +554,938 @@ public class FlowLimitCacheHelper {
                         "end " +
                         "return 1; ";
         private static final DefaultRedisScript<Long> REDIS_INC_SCRIPT = new DefaultRedisScript<>(LUA_INC_SCRIPT_TEXT, Long.class);
-        private final RedisTemplate<String, Object> redisTemplate;
+        /**
+         * 多计数器脚本。ARGV中每个计数器依次是：超时时长、最大计数、算法编码。当前时间读取Redis服务器的时间。
+         * <br/>
+         * 固定窗口：key是普通的计数值，第一次自增时设置过期时间。<br/>
+         * 滑动窗口：key是Hash，field是窗口序号，当前窗口计数加上按剩余比例折算的上一窗口计数即为估算值。
+         * 只保留当前与上一窗口两个field，内存同样是O(1)。
+         * <br/>
+         * 返回{触发限制的计数器序号（从1开始）, 该计数器还需多久才会放行的毫秒数}，序号为0表示未触发限制。
+         * 固定窗口的放行时间即key的剩余有效时长；滑动窗口按上一窗口计数的衰减速度计算估算值降到上限以下的时间
+         */
+        private static final String LUA_MULTI_INC_SCRIPT_TEXT =
+                LUA_NOW_MILLIS +
+                        "local n = #KEYS; " +
+                        "for i = 1, n do " +
+                        "local timeout = tonumber(ARGV[3 * i - 2]); " +
+                        "local countMax = tonumber(ARGV[3 * i - 1]); " +
+                        "if ARGV[3 * i] == '2' then " +
+                        "local window = math.floor(now / timeout); " +
+                        "local current = tonumber(redis.call('hget', KEYS[i], window) or 0); " +
+                        "local previous = tonumber(redis.call('hget', KEYS[i], window - 1) or 0); " +
+                        "local elapsed = now % timeout; " +
+                        "if previous * (timeout - elapsed) / timeout + current >= countMax then " +
+                        "if current >= countMax then " +
+                        "return {i, timeout - elapsed}; " +
+                        "end " +
+                        "return {i, math.max(math.floor(timeout - (countMax - current) * timeout / previous) + 1 - elapsed, 1)}; " +
+                        "end " +
+                        "else " +
+                        "local currentCount = redis.call('get', KEYS[i]); " +
+                        "if currentCount and tonumber(currentCount) >= countMax then " +
+                        "return {i, redis.call('pttl', KEYS[i])}; " +
+                        "end " +
+                        "end " +
+                        "end " +
+                        "for i = 1, n do " +
+                        "local timeout = tonumber(ARGV[3 * i - 2]); " +
+                        "if ARGV[3 * i] == '2' then " +
+                        "local window = math.floor(now / timeout); " +
+                        "if tonumber(redis.call('hincrby', KEYS[i], window, 1)) == 1 then " +
+                        "redis.call('hdel', KEYS[i], window - 2); " +
+                        "redis.call('pexpire', KEYS[i], timeout * 2); " +
+                        "end " +
+                        "elseif tonumber(redis.call('incr', KEYS[i])) == 1 then " +
+                        "redis.call('pexpire', KEYS[i], timeout); " +
+                        "end " +
+                        "end " +
+                        "return {0, 0}; ";
+        private static final DefaultRedisScript<List<Long>> REDIS_MULTI_INC_SCRIPT = listScript(LUA_MULTI_INC_SCRIPT_TEXT);
+        /**
+         * Hash打包的多计数器脚本，参数同多计数器脚本，KEYS[1]是用户的Hash。
+         * <br/>
+         * 第i个计数器占用的field：i:w当前窗口序号，i:c当前窗口计数，滑动窗口另有i:p上一窗口计数。
+         * 窗口滚动时整体平移，field数量固定，不会随时间增长。有窗口滚动时把过期时间延长到最长的窗口结束。
+         * <br/>
+         * 返回值同多计数器脚本
+         */
+        private static final String LUA_HASH_INC_SCRIPT_TEXT =
+                LUA_NOW_MILLIS +
+                        "local n = #ARGV / 3; " +
+                        "local windows, currents, previouses = {}, {}, {}; " +
+                        "for i = 1, n do " +
+                        "local timeout = tonumber(ARGV[3 * i - 2]); " +
+                        "local countMax = tonumber(ARGV[3 * i - 1]); " +
+                        "local window = math.floor(now / timeout); " +
+                        "local elapsed = now % timeout; " +
+                        "local stored = redis.call('hmget', KEYS[1], i .. ':w', i .. ':c', i .. ':p'); " +
+                        "local storedWindow = tonumber(stored[1] or -1); " +
+                        "local current, previous = 0, 0; " +
+                        "if storedWindow == window then " +
+                        "current = tonumber(stored[2] or 0); " +
+                        "previous = tonumber(stored[3] or 0); " +
+                        "elseif storedWindow == window - 1 then " +
+                        "previous = tonumber(stored[2] or 0); " +
+                        "end " +
+                        "if ARGV[3 * i] == '2' then " +
+                        "if previous * (timeout - elapsed) / timeout + current >= countMax then " +
+                        "if current >= countMax then " +
+                        "return {i, timeout - elapsed}; " +
+                        "end " +
+                        "return {i, math.max(math.floor(timeout - (countMax - current) * timeout / previous) + 1 - elapsed, 1)}; " +
+                        "end " +
+                        "elseif current >= countMax then " +
+                        "return {i, timeout - elapsed}; " +
+                        "end " +
+                        "windows[i] = storedWindow; " +
+                        "currents[i] = current; " +
+                        "previouses[i] = previous; " +
+                        "end " +
+                        "local fields = {}; " +
+                        "local expireAt = 0; " +
+                        "local rolled = false; " +
+                        "for i = 1, n do " +
+                        "local timeout = tonumber(ARGV[3 * i - 2]); " +
+                        "local window = math.floor(now / timeout); " +
+                        "local sliding = ARGV[3 * i] == '2'; " +
+                        "if windows[i] ~= window then " +
+                        "rolled = true; " +
+                        "table.insert(fields, i .. ':w'); " +
+                        "table.insert(fields, window); " +
+                        "if sliding then " +
+                        "table.insert(fields, i .. ':p'); " +
+                        "table.insert(fields, previouses[i]); " +
+                        "end " +
+                        "end " +
+                        "table.insert(fields, i .. ':c'); " +
+                        "table.insert(fields, currents[i] + 1); " +
+                        "expireAt = math.max(expireAt, (window + (sliding and 2 or 1)) * timeout); " +
+                        "end " +
+                        "redis.call('hmset', KEYS[1], unpack(fields)); " +
+                        "if rolled then " +
+                        "redis.call('pexpire', KEYS[1], expireAt - now); " +
+                        "end " +
+                        "return {0, 0}; ";
+        private static final DefaultRedisScript<List<Long>> REDIS_HASH_INC_SCRIPT = listScript(LUA_HASH_INC_SCRIPT_TEXT);
+        /**
+         * GCRA脚本。ARGV依次是：理论间隔、突发容忍时长，单位都是微秒。当前时间读取Redis服务器的时间。
+         * key中保存理论到达时间（TAT），过期时间即TAT与当前时间之差，空闲的key会自动删除。
+         * 返回0表示放行，否则返回还需等待的微秒数
+         */
+        private static final String LUA_GCRA_SCRIPT_TEXT =
+                LUA_NOW_MICROS +
+                        "local interval = tonumber(ARGV[1]); " +
+                        "local tolerance = tonumber(ARGV[2]); " +
+                        "local tat = tonumber(redis.call('get', KEYS[1]) or now); " +
+                        "if tat < now then " +
+                        "tat = now; " +
+                        "end " +
+                        "local allowAt = tat - tolerance; " +
+                        "if now < allowAt then " +
+                        "return allowAt - now; " +
+                        "end " +
+                        "local newTat = tat + interval; " +
+                        "redis.call('set', KEYS[1], newTat, 'PX', math.ceil((newTat - now) / 1000)); " +
+                        "return 0; ";
+        private static final DefaultRedisScript<Long> REDIS_GCRA_SCRIPT = new DefaultRedisScript<>(LUA_GCRA_SCRIPT_TEXT, Long.class);
+        /**
+         * 令牌桶脚本。ARGV依次是：每1000秒生产的令牌数、预热期（微秒）、至少需要的令牌数、最多获取的令牌数。当前时间读取Redis服务器的时间。
+         * <br/>
+         * key是Hash，保存剩余令牌数tokens、上次补充令牌的时间ts、本轮预热开始的时间busy。
+         * 令牌桶满了即视为空闲，重新开始预热。冷启动时速度为1/3，在预热期内线性增长至最大，桶的容量是1秒的令牌数。
+         * <br/>
+         * 返回获取到的令牌数，令牌不足时返回负数，绝对值是预计还需等待的毫秒数
+         */
+        private static final String LUA_TOKEN_BUCKET_SCRIPT_TEXT =
+                LUA_NOW_MICROS +
+                        "local permits = tonumber(ARGV[1]); " +
+                        "local warmup = tonumber(ARGV[2]); " +
+                        "local need = tonumber(ARGV[3]); " +
+                        "local requested = tonumber(ARGV[4]); " +
+                        "local state = redis.call('hmget', KEYS[1], 'tokens', 'ts', 'busy'); " +
+                        "local busy = tonumber(state[3]) or now; " +
+                        "local factor = 1; " +
+                        "if warmup > 0 then " +
+                        "factor = 1 / 3 + 2 / 3 * math.min(1, (now - busy) / warmup); " +
+                        "end " +
+                        "local rate = factor * permits / 1000000000; " +
+                        "local maxTokens = math.max(need, factor * permits / 1000); " +
+                        "local tokens = tonumber(state[1]); " +
+                        "if tokens == nil then " +
+                        "tokens = maxTokens; " +
+                        "else " +
+                        "tokens = math.min(maxTokens, tokens + math.max(0, now - tonumber(state[2])) * rate); " +
+                        "end " +
+                        "if tokens >= maxTokens then " +
+                        "busy = now; " +
+                        "end " +
+                        "local result; " +
+                        "if tokens < need then " +
+                        "result = -math.max(1, math.ceil((need - tokens) / rate / 1000)); " +
+                        "else " +
+                        "result = math.min(requested, math.floor(tokens)); " +
+                        "tokens = tokens - result; " +
+                        "end " +
+                        "redis.call('hmset', KEYS[1], 'tokens', tokens, 'ts', now, 'busy', busy); " +
+                        "redis.call('pexpire', KEYS[1], math.ceil((warmup + 1000000) / 1000) * 2); " +
+                        "return result; ";
+        private static final DefaultRedisScript<Long> REDIS_TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>(LUA_TOKEN_BUCKET_SCRIPT_TEXT, Long.class);
+        /**
+         * 预留许可脚本。ARGV依次是：超时时长、最大计数、希望预留的许可数。
+         * 返回{实际预留的许可数, 计数器剩余有效时长}
+         */
+        private static final String LUA_LEASE_SCRIPT_TEXT =
+                "local timeout = tonumber(ARGV[1]); " +
+                        "local countMax = tonumber(ARGV[2]); " +
+                        "local current = tonumber(redis.call('get', KEYS[1]) or 0); " +
+                        "local granted = math.min(tonumber(ARGV[3]), countMax - current); " +
+                        "if granted <= 0 then " +
+                        "return {0, redis.call('pttl', KEYS[1])}; " +
+                        "end " +
+                        "if tonumber(redis.call('incrby', KEYS[1], granted)) == granted then " +
+                        "redis.call('pexpire', KEYS[1], timeout); " +
+                        "end " +
+                        "return {granted, redis.call('pttl', KEYS[1])}; ";
+        private static final DefaultRedisScript<List<Long>> REDIS_LEASE_SCRIPT = listScript(LUA_LEASE_SCRIPT_TEXT);
+        /**
+         * 归还许可脚本。ARGV依次是：归还的许可数、计数器的超时时长、预留许可的窗口剩余的有效时长。
+         * <br/>
+         * 同一窗口内key的剩余有效时长不会超过预留时记录的剩余时长；key过期后重建的新窗口剩余时长接近完整的超时时长。
+         * 剩余有效时长超过两者的中点，说明已经进入了新的窗口，不扣减。
+         */
+        private static final String LUA_RETURN_SCRIPT_TEXT =
+                "local current = redis.call('get', KEYS[1]); " +
+                        "local ttl = redis.call('pttl', KEYS[1]); " +
+                        "if current and ttl > 0 and ttl <= (tonumber(ARGV[2]) + tonumber(ARGV[3])) / 2 " +
+                        "and tonumber(current) >= tonumber(ARGV[1]) then " +
+                        "redis.call('decrby', KEYS[1], ARGV[1]); " +
+                        "end " +
+                        "return 0; ";
+        private static final DefaultRedisScript<Long> REDIS_RETURN_SCRIPT = new DefaultRedisScript<>(LUA_RETURN_SCRIPT_TEXT, Long.class);
+        /**
+         * 临时拼接的key使用的序列化器。计数器模板生成的key不经过序列化器，见{@link CounterKeyTemplate#rawKeys(List)}
+         */
+        private static final StringRedisSerializer KEY_SERIALIZER = StringRedisSerializer.UTF_8;
+        private final RedisTemplate<String, Long> redisTemplate;
+        /**
+         * 是否是Redis集群。集群下多个计数器不在同一个槽上时不能放在一次脚本调用中
+         */
+        private final boolean cluster;
 
         public RedisStrategyService(RedisConnectionFactory redisConnectionFactory) {
-            this.redisTemplate = userInfoRedisTemplate(redisConnectionFactory);
-        }
-
-        @Override
-        public Integer getOne(String key) throws Exception {
-            Object obj = redisTemplate.opsForValue().get(key);
-            if (obj instanceof Integer) {
-                return (Integer) obj;
-            }
-            if (obj instanceof String) {
-                return Integer.valueOf((String) obj);
-            }
-            return null;
-        }
-
-        @Override
-        public void setOne(String key, Integer value, Long timeOut, TimeUnit timeUnit) throws Exception {
-            redisTemplate.opsForValue().set(key, value, timeOut, timeUnit);
-        }
-
-        @Override
-        public void deleteKey(String key) throws Exception {
-            redisTemplate.delete(key);
-        }
-
-        @Override
-        public void increaseKey(String key) throws Exception {
-            redisTemplate.opsForValue().increment(key);
-        }
-
-        @Override
-        public Boolean increaseKeySafely(String key, Long timeout, Integer CountMax) throws Exception {
-            Long result = execute(Collections.singletonList(key), timeout, CountMax);
-            return Optional.ofNullable(result).orElse(1L) == 0L;
+            this.redisTemplate = counterRedisTemplate(redisConnectionFactory);
+            this.cluster = isCluster(redisConnectionFactory);
         }
 
         /**
-         * 执行Redis脚本
-         *
-         * @param keys key
-         * @param args 参数
-         * @return
+         * 返回多个整数的脚本。脚本结果的类型只能传Class，List的泛型在这里统一转换
          */
-        public Long execute(List<String> keys, Object... args) {
-            return redisTemplate.execute(REDIS_INC_SCRIPT, keys, args);
-        }
-
-        private RedisTemplate<String, Object> userInfoRedisTemplate(RedisConnectionFactory redisConnectionFactory) {
-            StringRedisSerializer stringRedisSerializer = new StringRedisSerializer();
-            RedisTemplate<String, Object> redisTemplate = new RedisTemplate<>();
-            redisTemplate.setConnectionFactory(redisConnectionFactory);
-            redisTemplate.setKeySerializer(stringRedisSerializer);
-            redisTemplate.setValueSerializer(new GenericJackson2JsonRedisSerializer());
-            redisTemplate.setHashKeySerializer(stringRedisSerializer);
-            redisTemplate.setHashValueSerializer(jackson2JsonRedisSerializer());
-            redisTemplate.afterPropertiesSet();
-            return redisTemplate;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static DefaultRedisScript<List<Long>> listScript(String scriptText) {
+            return new DefaultRedisScript<>(scriptText, (Class<List<Long>>) (Class) List.class);
         }
 
-        private RedisSerializer<Object> jackson2JsonRedisSerializer() {
-            //使用Jackson2JsonRedisSerializer来序列化和反序列化redis的value值
-            Jackson2JsonRedisSerializer serializer = new Jackson2JsonRedisSerializer(Object.class);
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
-            mapper.enableDefaultTyping(ObjectMapper.DefaultTyping.NON_FINAL);
-            mapper.configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
-            serializer.setObjectMapper(mapper);
-            return serializer;
+        private static boolean isCluster(RedisConnectionFactory redisConnectionFactory) {
+            if (redisConnectionFactory instanceof LettuceConnectionFactory) {
+                return ((LettuceConnectionFactory) redisConnectionFactory).isClusterAware();
+            }
+            try (RedisConnection connection = redisConnectionFactory.getConnection()) {
+                return connection instanceof RedisClusterConnection;
+            } catch (Exception e) {
+                return false;
+            }
         }
-    }
 
-    public static class LocalStrategyService implements IFlowLimitStrategyService {
-        List<Long> counterHoldingTime;
-        TimeUnit timeUnit;
-        /**
-         * key:当前Caffeine配置的超时时长。value：Caffeine配置好的，需要构建成cache才能使用。
-         */
-        private Map<Long, Caffeine<Object, Object>> caffeineMap;
         /**
-         * key:当前Caffeine配置的超时时长。value：Cache是已经构建好的缓存对象，可以直接使用的。
+         * 按Redis集群的槽对计数器分组，保持计数器原来的先后顺序
+         *
+         * @param rawKeys 编码后的计数器key
+         * @return 每组计数器的下标；所有计数器都在同一个槽上则返回null
          */
-        private Map<Long, Cache<String, Integer>> cacheMap;
-
-        public LocalStrategyService() {
+        static List<List<Integer>> groupBySlot(byte[][] rawKeys) {
+            Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = 0; i < rawKeys.length; i++) {
+                int slot = ClusterSlotHashUtil.calculateSlot(rawKeys[i]);
+                groups.computeIfAbsent(slot, k -> new ArrayList<>()).add(i);
+            }
+            return groups.size() <= 1 ? null : new ArrayList<>(groups.values());
         }
 
-        public LocalStrategyService(List<Long> counterHoldingTime, TimeUnit timeUnit) {
-            this.counterHoldingTime = counterHoldingTime;
-            this.timeUnit = timeUnit;
+        static <T> List<T> pick(List<T> list, List<Integer> indexes) {
+            List<T> picked = new ArrayList<>(indexes.size());
+            for (Integer index : indexes) {
+                picked.add(list.get(index));
+            }
+            return picked;
         }
 
-        public LocalStrategyService(Map<Long, Caffeine<Object, Object>> caffeineMap) {
-            this.caffeineMap = caffeineMap;
+        static byte[][] pick(byte[][] rawKeys, List<Integer> indexes) {
+            byte[][] picked = new byte[indexes.size()][];
+            for (int i = 0; i < picked.length; i++) {
+                picked[i] = rawKeys[indexes.get(i)];
+            }
+            return picked;
         }
 
         /**
-         * key:当前计数器的保持时长，Caffeine 缓存对象
+         * 健康检查，供熔断器探测使用
          *
-         * @return
+         * @return Redis是否可用
          */
-        public void initCaffeineMap() {
-            this.caffeineMap = this.counterHoldingTime.stream()
-                    .collect(Collectors.toMap(this.timeUnit::toMillis, holdingTime -> {
-                        return Caffeine.newBuilder()
-                                .initialCapacity(Short.MAX_VALUE) //初始大小
-                                .maximumSize(Long.MAX_VALUE)  //最大大小
-                                .expireAfterAccess(this.timeUnit.toMillis(holdingTime), TimeUnit.MILLISECONDS); //时间单位
-                    }));
+        public boolean ping() {
+            return "PONG".equalsIgnoreCase(redisTemplate.execute((RedisCallback<String>) RedisConnection::ping));
         }
 
         /**
-         * 构建缓存
+         * 把降级期间本地记录的增量用一次管道写回Redis，已经结束的窗口不写回。
+         * <br/>
+         * 固定窗口：key不存在时先以剩余窗口时长为过期时间创建，再INCRBY，已有key的过期时间不变。<br/>
+         * 滑动窗口：按窗口序号HINCRBY当前与上一窗口的field，再PEXPIRE两个窗口时长，与多计数器脚本一致。
+         *
+         * @param deltas 计数器增量
          */
-        public synchronized void buildCache() {
-            this.cacheMap = new HashMap<>();
-            if (ObjectUtils.isEmpty(this.caffeineMap)) {
-                //初始化caffeine
-                initCaffeineMap();
-            }
-            //构建缓存
-            caffeineMap.forEach((HoldTimeKey, value) -> this.cacheMap.put(HoldTimeKey, value.build()));
+        public void flushDeltas(Collection<CounterDeltaJournal.Delta> deltas) {
+            long now = System.currentTimeMillis();
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (CounterDeltaJournal.Delta delta : deltas) {
+                    long timeout = delta.getTimeout();
+                    long window = now / timeout;
+                    int count = delta.countAt(window);
+                    byte[] rawKey = KEY_SERIALIZER.serialize(delta.getKey());
+                    if (!delta.isSliding()) {
+                        if (count > 0) {
+                            connection.set(rawKey, LongAsciiRedisSerializer.toBytes(0L),
+                                    Expiration.milliseconds((window + 1) * timeout - now), RedisStringCommands.SetOption.SET_IF_ABSENT);
+                            connection.incrBy(rawKey, count);
+                        }
+                        continue;
+                    }
+                    int previousCount = delta.previousCountAt(window);
+                    if (count > 0) {
+                        connection.hIncrBy(rawKey, StringRedisSerializer.UTF_8.serialize(Long.toString(window)), count);
+                    }
+                    if (previousCount > 0) {
+                        connection.hIncrBy(rawKey, StringRedisSerializer.UTF_8.serialize(Long.toString(window - 1)), previousCount);
+                    }
+                    if (count > 0 || previousCount > 0) {
+                        connection.pExpire(rawKey, timeout * 2);
+                    }
+                }
+                return null;
+            });
         }
 
         @Override
         public Integer getOne(String key) throws Exception {
-            Integer result;
-            for (Cache<String, Integer> value : cacheMap.values()) {
-                result = value.getIfPresent(key);
-                if (result != null) {
-                    return result;
-                }
-            }
-            return null;
+            //直接读取原始字节，解析成数值，不经过序列化器
+            byte[] rawKey = KEY_SERIALIZER.serialize(key);
+            return redisTemplate.execute((RedisCallback<Integer>) connection -> {
+                byte[] value = connection.get(rawKey);
+                return value == null ? null : (int) LongAsciiRedisSerializer.parseLong(value);
+            });
         }
 
         @Override
         public void setOne(String key, Integer value, Long timeOut, TimeUnit timeUnit) throws Exception {
-            Optional.ofNullable(cacheMap.get(timeUnit.toMillis(timeOut)))
-                    .ifPresent(o -> o.put(key, value));
+            redisTemplate.opsForValue().set(key, value.longValue(), timeOut, timeUnit);
         }
 
         @Override
         public void deleteKey(String key) throws Exception {
-            for (Cache<String, Integer> cache : cacheMap.values()) {
-                if (cache.getIfPresent(key) != null) {
-                    cache.put(key, 0);
-                    return;
+            redisTemplate.delete(key);
+        }
+
+        @Override
+        public void increaseKey(String key) throws Exception {
+            redisTemplate.opsForValue().increment(key);
+        }
+
+        @Override
+        public Boolean increaseKeySafely(String key, Long timeout, Integer CountMax) throws Exception {
+            Long result = execute(REDIS_INC_SCRIPT, Collections.singletonList(key), timeout, CountMax.longValue());
+            return Optional.ofNullable(result).orElse(1L) == 0L;
+        }
+
+        @Override
+        public long[] increaseKeysSafely(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception {
+            //计数器模板生成的key直接使用按用户缓存的字节数组
+            byte[][] rawKeys = CounterKeyTemplate.rawKeys(keys);
+            List<List<Integer>> groups = cluster ? groupBySlot(rawKeys) : null;
+            if (groups == null) {
+                List<?> result = eval(REDIS_MULTI_INC_SCRIPT, ReturnType.MULTI, rawKeys, multiIncRawArgs(timeouts, countMaxes, algorithms));
+                return multiIncResult(result);
+            }
+            //集群下计数器跨槽，每个槽一次脚本调用。前面的槽已经自增而后面的槽拒绝时不回滚，与逐个计数器调用相同
+            for (List<Integer> group : groups) {
+                List<?> result = eval(REDIS_MULTI_INC_SCRIPT, ReturnType.MULTI, pick(rawKeys, group),
+                        multiIncRawArgs(pick(timeouts, group), pick(countMaxes, group), pick(algorithms, group)));
+                long[] groupResult = multiIncResult(result);
+                if (groupResult[0] >= 0) {
+                    return new long[]{group.get((int) groupResult[0]), groupResult[1]};
                 }
             }
+            return new long[]{-1, 0};
         }
 
         @Override
-        public void increaseKey(String key) throws Exception {
-            Integer value;
-            for (Cache<String, Integer> cache : cacheMap.values()) {
-                if (ObjectUtils.isNotEmpty(value = cache.getIfPresent(key))) {
-                    cache.put(key, Optional.ofNullable(value).orElse(0) + 1);
-                    return;
+        public long[] increaseHashKeySafely(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception {
+            List<?> result = redisTemplate.execute(REDIS_HASH_INC_SCRIPT, Collections.singletonList(key),
+                    (Object[]) multiIncArgs(timeouts, countMaxes, algorithms));
+            return multiIncResult(result);
+        }
+
+        /**
+         * 解析多计数器脚本的返回值，脚本返回的序号从1开始
+         */
+        static long[] multiIncResult(List<?> result) {
+            if (result == null || result.size() < 2) {
+                return new long[]{-1, 0};
+            }
+            long index = ((Number) result.get(0)).longValue() - 1;
+            long retryAfter = ((Number) result.get(1)).longValue();
+            return new long[]{index, Math.max(retryAfter, 0L)};
+        }
+
+        /**
+         * 多计数器脚本的参数：每个计数器依次是超时时长、最大计数、算法编码
+         */
+        static Long[] multiIncArgs(List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            int n = timeouts.size();
+            Long[] args = new Long[n * 3];
+            for (int i = 0; i < n; i++) {
+                args[3 * i] = timeouts.get(i);
+                args[3 * i + 1] = countMaxes.get(i).longValue();
+                args[3 * i + 2] = algorithms.get(i).getCode().longValue();
+            }
+            return args;
+        }
+
+        static byte[][] multiIncRawArgs(List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            Long[] args = multiIncArgs(timeouts, countMaxes, algorithms);
+            byte[][] rawArgs = new byte[args.length][];
+            for (int i = 0; i < rawArgs.length; i++) {
+                rawArgs[i] = LongAsciiRedisSerializer.toBytes(args[i]);
+            }
+            return rawArgs;
+        }
+
+        @Override
+        public long gcraAcquire(String key, long emissionInterval, long burstTolerance) throws Exception {
+            Long result = execute(REDIS_GCRA_SCRIPT, Collections.singletonList(key), emissionInterval, burstTolerance);
+            return Optional.ofNullable(result).orElse(0L);
+        }
+
+        @Override
+        public long acquireTokens(String key, double permitsPerSecond, long warmupPeriod, int need, int prefetch) throws Exception {
+            Long result = execute(REDIS_TOKEN_BUCKET_SCRIPT, Collections.singletonList(key),
+                    Math.max(Math.round(permitsPerSecond * 1000), 1L),
+                    TimeUnit.MILLISECONDS.toMicros(warmupPeriod),
+                    (long) need,
+                    (long) Math.max(prefetch, need));
+            return Optional.ofNullable(result).orElse((long) need);
+        }
+
+        @Override
+        public long[] leasePermits(String key, Long timeout, Integer countMax, int size) throws Exception {
+            List<?> result = redisTemplate.execute(REDIS_LEASE_SCRIPT, Collections.singletonList(key),
+                    timeout, countMax.longValue(), (long) size);
+            if (result == null || result.size() < 2) {
+                return new long[]{0, 0};
+            }
+            return new long[]{((Number) result.get(0)).longValue(), ((Number) result.get(1)).longValue()};
+        }
+
+        @Override
+        public void returnPermits(String key, long permits, long timeout, long windowLeft) throws Exception {
+            execute(REDIS_RETURN_SCRIPT, Collections.singletonList(key), permits, timeout, windowLeft);
+        }
+
+        /**
+         * 执行Redis脚本
+         *
+         * @param script 脚本
+         * @param keys   key
+         * @param args   参数
+         * @return
+         */
+        public Long execute(DefaultRedisScript<Long> script, List<String> keys, Long... args) {
+            return redisTemplate.execute(script, keys, (Object[]) args);
+        }
+
+        /**
+         * 使用编码好的key与参数执行Redis脚本，优先使用EVALSHA，脚本未缓存时再使用EVAL
+         *
+         * @param script     脚本
+         * @param returnType 脚本返回值的类型
+         * @param keys       编码后的key
+         * @param args       编码后的参数
+         * @return 脚本返回值，MULTI为整数列表，INTEGER为Long
+         */
+        @SuppressWarnings("unchecked")
+        private <T> T eval(DefaultRedisScript<?> script, ReturnType returnType, byte[][] keys, byte[][] args) {
+            byte[][] keysAndArgs = new byte[keys.length + args.length][];
+            System.arraycopy(keys, 0, keysAndArgs, 0, keys.length);
+            System.arraycopy(args, 0, keysAndArgs, keys.length, args.length);
+            return redisTemplate.execute((RedisCallback<T>) connection -> {
+                try {
+                    return (T) connection.evalSha(script.getSha1(), returnType, keys.length, keysAndArgs);
+                } catch (RuntimeException e) {
+                    if (!isNoScriptError(e)) {
+                        throw e;
+                    }
+                    return (T) connection.eval(KEY_SERIALIZER.serialize(script.getScriptAsString()), returnType, keys.length, keysAndArgs);
+                }
+            });
+        }
+
+        private static boolean isNoScriptError(Throwable e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof RedisNoScriptException
+                        || (cause.getMessage() != null && cause.getMessage().startsWith("NOSCRIPT"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 计数器专用的RedisTemplate，value就是纯数字，脚本参数同样按纯数字编码，无需Jackson
+         */
+        private RedisTemplate<String, Long> counterRedisTemplate(RedisConnectionFactory redisConnectionFactory) {
+            RedisTemplate<String, Long> redisTemplate = new RedisTemplate<>();
+            redisTemplate.setConnectionFactory(redisConnectionFactory);
+            redisTemplate.setKeySerializer(KEY_SERIALIZER);
+            redisTemplate.setValueSerializer(LongAsciiRedisSerializer.INSTANCE);
+            redisTemplate.setHashKeySerializer(StringRedisSerializer.UTF_8);
+            redisTemplate.setHashValueSerializer(LongAsciiRedisSerializer.INSTANCE);
+            redisTemplate.afterPropertiesSet();
+            return redisTemplate;
+        }
+    }
+
+    public interface IFlowLimitAsyncStrategyService {
+        /**
+         * 异步的安全自增，语义同{@link IFlowLimitStrategyService#increaseKeySafely(String, Long, Integer)}
+         *
+         * @return 当前key记录值是否大于等于CountMax。Redis异常时异常完成
+         */
+        CompletionStage<Boolean> increaseKeySafelyAsync(String key, Long timeout, Integer countMax);
+
+        /**
+         * 异步的多计数器安全自增，语义同{@link IFlowLimitStrategyService#increaseKeysSafely(List, List, List, List)}
+         *
+         * @return 结果同同步方法。Redis异常时异常完成
+         */
+        CompletionStage<long[]> increaseKeysSafelyAsync(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms);
+
+        /**
+         * 异步的Hash打包计数器安全自增，语义同{@link IFlowLimitStrategyService#increaseHashKeySafely(String, List, List, List)}
+         *
+         * @return 结果同同步方法。Redis异常时异常完成
+         */
+        CompletionStage<long[]> increaseHashKeySafelyAsync(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms);
+    }
+
+    /**
+     * 基于Lettuce异步命令的Redis数据源。所有请求复用Lettuce共享的原生连接，命令在一个连接上流水线式发送，
+     * 调用线程无需阻塞等待Redis响应。
+     */
+    public static class RedisAsyncStrategyService implements IFlowLimitAsyncStrategyService {
+        private final LettuceConnectionFactory connectionFactory;
+        private RedisConnection connection;
+        private volatile RedisClusterAsyncCommands<byte[], byte[]> commands;
+
+        private final boolean cluster;
+
+        public RedisAsyncStrategyService(LettuceConnectionFactory connectionFactory) {
+            this.connectionFactory = connectionFactory;
+            this.cluster = connectionFactory.isClusterAware();
+        }
+
+        @Override
+        public CompletionStage<Boolean> increaseKeySafelyAsync(String key, Long timeout, Integer countMax) {
+            return this.<Long>eval(RedisStrategyService.REDIS_INC_SCRIPT, ScriptOutputType.INTEGER, new byte[][]{RedisStrategyService.KEY_SERIALIZER.serialize(key)},
+                    LongAsciiRedisSerializer.toBytes(timeout), LongAsciiRedisSerializer.toBytes(countMax))
+                    .thenApply(result -> Optional.ofNullable(result).orElse(1L) == 0L);
+        }
+
+        @Override
+        public CompletionStage<long[]> increaseKeysSafelyAsync(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            byte[][] rawKeys = CounterKeyTemplate.rawKeys(keys);
+            List<List<Integer>> groups = cluster ? RedisStrategyService.groupBySlot(rawKeys) : null;
+            if (groups == null) {
+                return increaseSlotKeysAsync(rawKeys, timeouts, countMaxes, algorithms);
+            }
+            return increaseGroupsAsync(groups, 0, rawKeys, timeouts, countMaxes, algorithms);
+        }
+
+        /**
+         * 集群下计数器跨槽时，按槽依次调用，有一个槽拒绝则不再调用后面的槽
+         */
+        private CompletionStage<long[]> increaseGroupsAsync(List<List<Integer>> groups, int groupIndex, byte[][] rawKeys, List<Long> timeouts,
+                                                            List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            if (groupIndex >= groups.size()) {
+                return CompletableFuture.completedFuture(new long[]{-1, 0});
+            }
+            List<Integer> group = groups.get(groupIndex);
+            return increaseSlotKeysAsync(RedisStrategyService.pick(rawKeys, group), RedisStrategyService.pick(timeouts, group),
+                    RedisStrategyService.pick(countMaxes, group), RedisStrategyService.pick(algorithms, group))
+                    .thenCompose(result -> result[0] >= 0
+                            ? CompletableFuture.completedFuture(new long[]{group.get((int) result[0]), result[1]})
+                            : increaseGroupsAsync(groups, groupIndex + 1, rawKeys, timeouts, countMaxes, algorithms));
+        }
+
+        private CompletionStage<long[]> increaseSlotKeysAsync(byte[][] rawKeys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            return this.<List<Object>>eval(RedisStrategyService.REDIS_MULTI_INC_SCRIPT, ScriptOutputType.MULTI, rawKeys,
+                    RedisStrategyService.multiIncRawArgs(timeouts, countMaxes, algorithms))
+                    .thenApply(RedisStrategyService::multiIncResult);
+        }
+
+        @Override
+        public CompletionStage<long[]> increaseHashKeySafelyAsync(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            return this.<List<Object>>eval(RedisStrategyService.REDIS_HASH_INC_SCRIPT, ScriptOutputType.MULTI,
+                    new byte[][]{RedisStrategyService.KEY_SERIALIZER.serialize(key)},
+                    RedisStrategyService.multiIncRawArgs(timeouts, countMaxes, algorithms))
+                    .thenApply(RedisStrategyService::multiIncResult);
+        }
+
+        /**
+         * 优先使用EVALSHA，脚本未缓存时再使用EVAL
+         */
+        private <V> CompletionStage<V> eval(DefaultRedisScript<?> script, ScriptOutputType outputType, byte[][] keys, byte[]... args) {
+            RedisClusterAsyncCommands<byte[], byte[]> asyncCommands = getCommands();
+            CompletableFuture<V> future = new CompletableFuture<>();
+            asyncCommands.<V>evalsha(script.getSha1(), outputType, keys, args)
+                    .whenComplete((result, e) -> {
+                        if (e == null) {
+                            future.complete(result);
+                        } else if (e instanceof RedisNoScriptException || e.getCause() instanceof RedisNoScriptException) {
+                            asyncCommands.<V>eval(script.getScriptAsString(), outputType, keys, args)
+                                    .whenComplete((evalResult, evalException) -> {
+                                        if (evalException == null) {
+                                            future.complete(evalResult);
+                                        } else {
+                                            resetCommands();
+                                            future.completeExceptionally(evalException);
+                                        }
+                                    });
+                        } else {
+                            resetCommands();
+                            future.completeExceptionally(e);
+                        }
+                    });
+            return future;
+        }
+
+        @SuppressWarnings("unchecked")
+        private RedisClusterAsyncCommands<byte[], byte[]> getCommands() {
+            RedisClusterAsyncCommands<byte[], byte[]> asyncCommands = commands;
+            if (asyncCommands == null) {
+                synchronized (this) {
+                    if ((asyncCommands = commands) == null) {
+                        connection = connectionFactory.getConnection();
+                        asyncCommands = (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+                        commands = asyncCommands;
+                    }
+                }
+            }
+            return asyncCommands;
+        }
+
+        /**
+         * 出现异常后丢弃当前连接，下次调用重新获取
+         */
+        private synchronized void resetCommands() {
+            commands = null;
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (Exception ignored) {
                 }
+                connection = null;
             }
         }
+    }
+
+    public static class LocalStrategyService implements IFlowLimitStrategyService {
+        List<Long> counterHoldingTime;
+        TimeUnit timeUnit;
+        /**
+         * 计数器存储，固定窗口与滑动窗口共用，无锁自增
+         */
+        private final ILocalCounterStore counterStore;
+        /**
+         * 令牌桶使用的缓存。Redis不可用时，每个节点退化为本地的令牌桶
+         */
+        private final Cache<String, RateLimiter> tokenBucketCache = Caffeine.newBuilder()
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .build();
+        /**
+         * GCRA使用的缓存。key：限流器的key。value：理论到达时间（TAT），单位微秒，到达TAT即过期。
+         */
+        private final Cache<String, Long> gcraCache = Caffeine.newBuilder()
+                .expireAfter(new Expiry<String, Long>() {
+                    @Override
+                    public long expireAfterCreate(String key, Long tat, long currentTime) {
+                        return untilTat(tat);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Long tat, long currentTime, long currentDuration) {
+                        return untilTat(tat);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Long tat, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    private long untilTat(Long tat) {
+                        long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+                        return TimeUnit.MICROSECONDS.toNanos(Math.max(tat - now, 1L));
+                    }
+                })
+                .build();
+
+        public LocalStrategyService() {
+            this.counterStore = new LocalCounterStore();
+        }
+
+        public LocalStrategyService(List<Long> counterHoldingTime, TimeUnit timeUnit) {
+            this(counterHoldingTime, timeUnit, new LocalCounterStore());
+        }
+
+        public LocalStrategyService(List<Long> counterHoldingTime, TimeUnit timeUnit, ILocalCounterStore counterStore) {
+            this.counterHoldingTime = counterHoldingTime;
+            this.timeUnit = timeUnit;
+            this.counterStore = counterStore;
+        }
+
+        /**
+         * 被替换时停止计数器存储的后台清理任务
+         */
+        void close() {
+            counterStore.close();
+        }
+
+        @Override
+        public Integer getOne(String key) throws Exception {
+            return counterStore.get(key, System.currentTimeMillis());
+        }
+
+        @Override
+        public void setOne(String key, Integer value, Long timeOut, TimeUnit timeUnit) throws Exception {
+            counterStore.set(key, timeUnit.toMillis(timeOut), value, System.currentTimeMillis());
+        }
+
+        @Override
+        public void deleteKey(String key) throws Exception {
+            counterStore.remove(key);
+        }
+
+        @Override
+        public void increaseKey(String key) throws Exception {
+            counterStore.increment(key, System.currentTimeMillis());
+        }
+
+
+        @Override
+        public Boolean increaseKeySafely(String key, Long timeout, Integer countMax) throws Exception {
+            return counterStore.tryIncrement(key, timeout, countMax, false, System.currentTimeMillis()) > 0;
+        }
+
+        @Override
+        public long[] increaseKeysSafely(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception {
+            return counterStore.tryIncrementAll(keys, timeouts, countMaxes, algorithms, System.currentTimeMillis());
+        }
+
+        @Override
+        public long[] increaseHashKeySafely(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception {
+            //一组计数器挂在同一个key下，删除key即可重置所有计数器
+            return counterStore.tryIncrementGroup(key, timeouts, countMaxes, algorithms, System.currentTimeMillis());
+        }
+
+        @Override
+        public long gcraAcquire(String key, long emissionInterval, long burstTolerance) throws Exception {
+            long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+            long[] waitTime = new long[1];
+            gcraCache.asMap().compute(key, (k, tat) -> {
+                long current = Math.max(Optional.ofNullable(tat).orElse(now), now);
+                long allowAt = current - burstTolerance;
+                if (now < allowAt) {
+                    waitTime[0] = allowAt - now;
+                    return tat;
+                }
+                return current + emissionInterval;
+            });
+            return waitTime[0];
+        }
+
+        @Override
+        public long acquireTokens(String key, double permitsPerSecond, long warmupPeriod, int need, int prefetch) throws Exception {
+            RateLimiter rateLimiter = tokenBucketCache.get(key,
+                    k -> RateLimiter.create(permitsPerSecond, warmupPeriod, TimeUnit.MILLISECONDS));
+            //本地令牌桶不需要预取，只取本次需要的令牌
+            return rateLimiter.tryAcquire(need) ? need : -1;
+        }
+
+        /**
+         * 本地数据源没有网络开销，无需批量预留，每次只预留一个许可
+         */
+        @Override
+        public long[] leasePermits(String key, Long timeout, Integer countMax, int size) throws Exception {
+            return new long[]{increaseKeySafely(key, timeout, countMax) ? 0 : 1, timeout};
+        }
+
+        @Override
+        public void returnPermits(String key, long permits, long timeout, long windowLeft) throws Exception {
+        }
+    }
+
+    /**
+     * Count-Min Sketch数据源，用于IP、令牌等基数不受限的限流，只需要拦截高频的key。
+     * <br/>
+     * 每个窗口时长一个按窗口轮转的Sketch，内存固定，自增常数时间。计数只会高估，
+     * 计数达到上限一半的key转入精确的本地计数器，之后按精确计数判断，避免哈希冲突误伤低频的key。
+     * Sketch的计数无法删除，删除key只删除精确计数，Sketch中的计数在窗口结束后失效。
+     * <br/>
+     * 只支持计数器，GCRA、令牌桶等交给本地数据源。
+     */
+    public static class SketchStrategyService implements IFlowLimitStrategyService {
+        static final int DEFAULT_WIDTH = 1 << 17;
+        /**
+         * 高频key精确计数的内存预算，单位字节
+         */
+        private static final long HEAVY_HITTER_BUDGET = 16L * 1024 * 1024;
+        private final int width;
+        /**
+         * key：窗口时长，单位毫秒。value：该窗口时长的Sketch
+         */
+        private final Map<Long, WindowedCountMinSketch> sketches = new ConcurrentHashMap<>();
+        /**
+         * 高频key的精确计数
+         */
+        private final LocalCounterStore heavyHitters = new LocalCounterStore(HEAVY_HITTER_BUDGET);
+        private final LocalStrategyService delegate;
+
+        public SketchStrategyService(int width, LocalStrategyService delegate) {
+            this.width = width;
+            this.delegate = delegate;
+        }
 
+        /**
+         * 被替换时停止重点计数器的后台清理任务。本地数据源可能仍在使用，不关闭
+         */
+        void close() {
+            heavyHitters.close();
+        }
+
+        @Override
+        public Integer getOne(String key) throws Exception {
+            return heavyHitters.get(key, System.currentTimeMillis());
+        }
+
+        @Override
+        public void setOne(String key, Integer value, Long timeOut, TimeUnit timeUnit) throws Exception {
+            heavyHitters.set(key, timeUnit.toMillis(timeOut), value, System.currentTimeMillis());
+        }
+
+        @Override
+        public void deleteKey(String key) throws Exception {
+            heavyHitters.remove(key);
+            delegate.deleteKey(key);
+        }
+
+        @Override
+        public void increaseKey(String key) throws Exception {
+            heavyHitters.increment(key, System.currentTimeMillis());
+        }
 
         @Override
         public Boolean increaseKeySafely(String key, Long timeout, Integer countMax) throws Exception {
-            //根据超时时间获取缓存对象
-            Cache<String, Integer> cache = cacheMap.get(timeout);
-            //更新缓存
-            Integer count;
-            cache.put(key, Optional.ofNullable((count = cache.getIfPresent(key))).map(o -> o + 1).orElse(1));
-            //判断有没超限制
-            return Optional.ofNullable(count).orElse(0) >= countMax;
+            return tryIncrement(key, timeout, countMax, false, System.currentTimeMillis()) > 0;
+        }
+
+        @Override
+        public long[] increaseKeysSafely(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception {
+            return tryIncrementAll(keys::get, timeouts, countMaxes, algorithms);
+        }
+
+        @Override
+        public long[] increaseHashKeySafely(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception {
+            //Sketch中没有分组，组内每个计数器使用派生的key
+            return tryIncrementAll(i -> key + "#" + i, timeouts, countMaxes, algorithms);
+        }
+
+        private long[] tryIncrementAll(Function<Integer, String> keys, List<Long> timeouts, List<Integer> countMaxes,
+                                       List<CounterAlgorithmEnum> algorithms) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < timeouts.size(); i++) {
+                long retryAfter = tryIncrement(keys.apply(i), timeouts.get(i), countMaxes.get(i),
+                        CounterAlgorithmEnum.SlidingWindow == algorithms.get(i), now);
+                if (retryAfter > 0) {
+                    for (int j = 0; j < i; j++) {
+                        rollback(keys.apply(j), timeouts.get(j), now);
+                    }
+                    return new long[]{i, retryAfter};
+                }
+            }
+            return new long[]{-1, 0};
+        }
+
+        private long tryIncrement(String key, long timeout, int countMax, boolean sliding, long now) {
+            if (heavyHitters.get(key, now) != null) {
+                return heavyHitters.tryIncrement(key, timeout, countMax, sliding, now);
+            }
+            WindowedCountMinSketch sketch = sketchOf(timeout, now);
+            long hash = OffHeapCounterTable.hash(key);
+            int current = sketch.increment(hash, now);
+            int previous = sliding ? sketch.previousEstimate(hash, now) : 0;
+            long retryAfter = LocalCounterStore.retryAfter(current - 1, previous, Math.max(timeout, 1L), now % Math.max(timeout, 1L), countMax);
+            if (retryAfter > 0) {
+                sketch.decrement(hash, now);
+                return retryAfter;
+            }
+            if (current * 2L >= countMax) {
+                //转入精确计数，以Sketch的估计作为起点
+                heavyHitters.set(key, timeout, current, now);
+            }
+            return 0;
+        }
+
+        private void rollback(String key, long timeout, long now) {
+            if (heavyHitters.get(key, now) != null) {
+                heavyHitters.add(key, now, -1);
+            } else {
+                sketchOf(timeout, now).decrement(OffHeapCounterTable.hash(key), now);
+            }
+        }
+
+        private WindowedCountMinSketch sketchOf(long timeout, long now) {
+            return sketches.computeIfAbsent(timeout, t -> new WindowedCountMinSketch(t, width, now));
+        }
+
+        @Override
+        public long gcraAcquire(String key, long emissionInterval, long burstTolerance) throws Exception {
+            return delegate.gcraAcquire(key, emissionInterval, burstTolerance);
+        }
+
+        @Override
+        public long acquireTokens(String key, double permitsPerSecond, long warmupPeriod, int need, int prefetch) throws Exception {
+            return delegate.acquireTokens(key, permitsPerSecond, warmupPeriod, need, prefetch);
+        }
+
+        /**
+         * 本地数据源没有网络开销，无需批量预留，每次只预留一个许可
+         */
+        @Override
+        public long[] leasePermits(String key, Long timeout, Integer countMax, int size) throws Exception {
+            return new long[]{increaseKeySafely(key, timeout, countMax) ? 0 : 1, timeout};
+        }
+
+        @Override
+        public void returnPermits(String key, long permits, long timeout, long windowLeft) throws Exception {
         }
     }
 
@@ -373,84 +1514,315 @@ public class FlowLimitCacheHelper {
         public Boolean increaseKeySafely(String key, Long timeout, Integer CountMax) throws Exception {
             return null;
         }
+
+        @Override
+        public long[] increaseKeysSafely(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception {
+            return new long[]{-1, 0};
+        }
+
+        @Override
+        public long[] increaseHashKeySafely(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) throws Exception {
+            return new long[]{-1, 0};
+        }
+
+        @Override
+        public long gcraAcquire(String key, long emissionInterval, long burstTolerance) throws Exception {
+            return 0;
+        }
+
+        @Override
+        public long acquireTokens(String key, double permitsPerSecond, long warmupPeriod, int need, int prefetch) throws Exception {
+            return need;
+        }
+
+        @Override
+        public long[] leasePermits(String key, Long timeout, Integer countMax, int size) throws Exception {
+            return new long[]{size, timeout};
+        }
+
+        @Override
+        public void returnPermits(String key, long permits, long timeout, long windowLeft) throws Exception {
+
+        }
     }
 
     public static class CacheHelperFactory {
-        private static final Timer CHANGE_STRATEGY_TIMER = new Timer();
         private final Map<CacheDataSourceTypeEnum, IFlowLimitStrategyService> map = new HashMap<>();
+        /**
+         * Redis的异步数据源，为null则异步接口退化为同步调用
+         */
+        private IFlowLimitAsyncStrategyService asyncStrategyService;
+        /**
+         * Redis数据源的熔断器，为null则不熔断
+         */
+        private volatile FlowLimitCircuitBreaker circuitBreaker;
+        /**
+         * 每次判断等待Redis的最长时长，单位纳秒，小于等于0表示一直等待
+         */
+        private volatile long latencyBudgetNanos;
+        /**
+         * 降级期间本地放行的计数器增量，为null则不记录
+         */
+        private volatile CounterDeltaJournal deltaJournal;
 
         public void addStrategyService(CacheDataSourceTypeEnum dataSourceTypeEnum, IFlowLimitStrategyService strategyService) {
             map.put(dataSourceTypeEnum, strategyService);
         }
 
+        public void setAsyncStrategyService(IFlowLimitAsyncStrategyService asyncStrategyService) {
+            this.asyncStrategyService = asyncStrategyService;
+        }
+
+        public void setCircuitBreaker(FlowLimitCircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        public FlowLimitCircuitBreaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        public void setLatencyBudgetNanos(long latencyBudgetNanos) {
+            this.latencyBudgetNanos = latencyBudgetNanos;
+        }
+
+        public void setDeltaJournal(CounterDeltaJournal deltaJournal) {
+            this.deltaJournal = deltaJournal;
+        }
+
+        public CounterDeltaJournal getDeltaJournal() {
+            return deltaJournal;
+        }
+
+        public CompletionStage<Boolean> increaseKeySafelyAsync(String key, Long timeout, Integer countMax) {
+            StrategyOperation<Boolean> operation = service -> service.increaseKeySafely(key, timeout, countMax);
+            return executeAsync(async -> async.increaseKeySafelyAsync(key, timeout, countMax),
+                    operation, journaled(operation, key, timeout), false);
+        }
+
+        public CompletionStage<long[]> increaseKeysSafelyAsync(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            StrategyOperation<long[]> operation = service -> service.increaseKeysSafely(keys, timeouts, countMaxes, algorithms);
+            return executeAsync(async -> async.increaseKeysSafelyAsync(keys, timeouts, countMaxes, algorithms),
+                    operation, journaled(operation, keys, timeouts, algorithms), new long[]{-1, 0});
+        }
+
+        public CompletionStage<long[]> increaseHashKeySafelyAsync(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            StrategyOperation<long[]> operation = service -> service.increaseHashKeySafely(key, timeouts, countMaxes, algorithms);
+            return executeAsync(async -> async.increaseHashKeySafelyAsync(key, timeouts, countMaxes, algorithms),
+                    operation, operation, new long[]{-1, 0});
+        }
+
         public Integer getOne(String key) {
-            try {
-                return map.get(strategy).getOne(key);
-            } catch (Exception e) {
-                changeStrategy();
-                return -1;
-            }
+            return execute(service -> service.getOne(key), -1);
         }
 
         public void setOne(String key, Integer value, Long timeOut, TimeUnit timeUnit) {
-            try {
-                map.get(strategy).setOne(key, value, timeOut, timeUnit);
-            } catch (Exception e) {
-                changeStrategy();
-            }
+            execute(service -> {
+                service.setOne(key, value, timeOut, timeUnit);
+                return null;
+            }, null);
         }
 
         public void deleteKey(String key) {
-            try {
-                map.get(strategy).deleteKey(key);
-            } catch (Exception e) {
-                changeStrategy();
-            }
+            execute(service -> {
+                service.deleteKey(key);
+                return null;
+            }, null);
         }
 
         public void increaseKey(String key) {
+            execute(service -> {
+                service.increaseKey(key);
+                return null;
+            }, null);
+        }
+
+        public Boolean increaseKeySafely(String key, Long timeout, Integer CountMax) {
+            StrategyOperation<Boolean> operation = service -> service.increaseKeySafely(key, timeout, CountMax);
+            return executeWithinBudget(async -> async.increaseKeySafelyAsync(key, timeout, CountMax),
+                    operation, journaled(operation, key, timeout), false);
+        }
+
+        public long[] increaseKeysSafely(List<String> keys, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            StrategyOperation<long[]> operation = service -> service.increaseKeysSafely(keys, timeouts, countMaxes, algorithms);
+            return executeWithinBudget(async -> async.increaseKeysSafelyAsync(keys, timeouts, countMaxes, algorithms),
+                    operation, journaled(operation, keys, timeouts, algorithms), new long[]{-1, 0});
+        }
+
+        /**
+         * Hash打包的计数器在Redis中按窗口平移field，无法按增量写回，降级期间的计数不记录
+         */
+        public long[] increaseHashKeySafely(String key, List<Long> timeouts, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms) {
+            StrategyOperation<long[]> operation = service -> service.increaseHashKeySafely(key, timeouts, countMaxes, algorithms);
+            return executeWithinBudget(async -> async.increaseHashKeySafelyAsync(key, timeouts, countMaxes, algorithms),
+                    operation, operation, new long[]{-1, 0});
+        }
+
+        /**
+         * 本地数据源代替Redis计数时，放行的请求记入增量日志
+         */
+        private StrategyOperation<Boolean> journaled(StrategyOperation<Boolean> operation, String key, Long timeout) {
+            return service -> {
+                Boolean limited = operation.apply(service);
+                CounterDeltaJournal journal = deltaJournal;
+                if (journal != null && Boolean.FALSE.equals(limited)) {
+                    journal.record(Collections.singletonList(key), Collections.singletonList(timeout),
+                            Collections.singletonList(CounterAlgorithmEnum.FixedWindow), System.currentTimeMillis());
+                }
+                return limited;
+            };
+        }
+
+        private StrategyOperation<long[]> journaled(StrategyOperation<long[]> operation, List<String> keys,
+                                                    List<Long> timeouts, List<CounterAlgorithmEnum> algorithms) {
+            return service -> {
+                long[] result = operation.apply(service);
+                CounterDeltaJournal journal = deltaJournal;
+                if (journal != null && result[0] < 0) {
+                    journal.record(keys, timeouts, algorithms, System.currentTimeMillis());
+                }
+                return result;
+            };
+        }
+
+        public long gcraAcquire(String key, long emissionInterval, long burstTolerance) {
+            return execute(service -> service.gcraAcquire(key, emissionInterval, burstTolerance), 0L);
+        }
+
+        public long acquireTokens(String key, double permitsPerSecond, long warmupPeriod, int need, int prefetch) {
+            return execute(service -> service.acquireTokens(key, permitsPerSecond, warmupPeriod, need, prefetch), (long) need);
+        }
+
+        public long[] leasePermits(String key, Long timeout, Integer countMax, int size) {
+            return execute(service -> service.leasePermits(key, timeout, countMax, size), new long[]{1, timeout});
+        }
+
+        public void returnPermits(String key, long permits, long timeout, long windowLeft) {
+            execute(service -> {
+                service.returnPermits(key, permits, timeout, windowLeft);
+                return null;
+            }, null);
+        }
+
+        /**
+         * 使用当前数据源执行操作。Redis数据源的调用结果交给熔断器统计，熔断器打开时直接使用本地数据源。
+         *
+         * @param operation 操作
+         * @param fallback  执行失败时的返回值
+         */
+        private <R> R execute(StrategyOperation<R> operation, R fallback) {
+            return execute(operation, operation, fallback);
+        }
+
+        /**
+         * @param localOperation 熔断器打开、由本地数据源代替Redis时执行的操作
+         */
+        private <R> R execute(StrategyOperation<R> operation, StrategyOperation<R> localOperation, R fallback) {
+            FlowLimitCircuitBreaker breaker = circuitBreaker;
+            if (CacheDataSourceTypeEnum.Redis != strategy || breaker == null) {
+                return executeWith(strategy, operation, fallback);
+            }
+            if (!breaker.tryAcquirePermission()) {
+                return executeWith(CacheDataSourceTypeEnum.Local, localOperation, fallback);
+            }
+            long start = System.nanoTime();
             try {
-                map.get(strategy).increaseKey(key);
+                R result = operation.apply(map.get(CacheDataSourceTypeEnum.Redis));
+                breaker.onSuccess(System.nanoTime() - start);
+                return result;
             } catch (Exception e) {
-                changeStrategy();
+                breaker.onError(System.nanoTime() - start);
+                log.debug("Flow-Limit-Starter：【{}】调用失败", CacheDataSourceTypeEnum.Redis.getDescribe(), e);
+                //熔断器打开之前失败的调用同样由本地数据源判断，不能直接放行
+                return executeWith(CacheDataSourceTypeEnum.Local, localOperation, fallback);
             }
         }
 
-        public Boolean increaseKeySafely(String key, Long timeout, Integer CountMax) {
+        private <R> R executeWith(CacheDataSourceTypeEnum dataSource, StrategyOperation<R> operation, R fallback) {
             try {
-                return map.get(strategy).increaseKeySafely(key, timeout, CountMax);
+                return operation.apply(map.get(dataSource));
             } catch (Exception e) {
-                changeStrategy();
-                return false;
+                return fallback;
             }
         }
 
         /**
-         * 切换策略，加锁。默认使用Redis作为数据源。如果Redis宕机，则自动切换使用本地缓存，一个小时之后切换回Redis缓存。
-         *
-         * @return
+         * 在延迟预算内等待Redis的结果，超出预算则由本地数据源判断。
+         * <br/>
+         * 超时的Redis调用不会取消，在后台完成自增，耗时交给熔断器统计；Redis持续变慢时熔断器会打开，不再等待。
+         * 没有异步数据源时无法限制等待时长，与未配置预算相同。
+         * <br/>
+         * Redis按时返回时不访问本地数据源。超时或异常时与熔断器打开时相同，执行localOperation由本地数据源判断，
+         * 放行的请求记入增量日志，之后写回Redis。超时的Redis调用仍可能在后台完成自增，这部分请求写回时会多计一次，
+         * 只会让限流偏严，不会超出限制。
          */
-        private synchronized void changeStrategy() {
-            log.error("Flow-Limit-Starter:数据源：【{}】失效，切换为【{}】作为数据源", strategy.getDescribe(), CacheDataSourceTypeEnum.Local.getDescribe());
-            strategy = CacheDataSourceTypeEnum.Local;
-            //构建缓存对象
-            Optional.ofNullable(map.get(CacheDataSourceTypeEnum.Local))
-                    .ifPresent(o -> ((LocalStrategyService) o).buildCache());
-            //取消之前的定时器
+        private <R> R executeWithinBudget(Function<IFlowLimitAsyncStrategyService, CompletionStage<R>> asyncOperation,
+                                          StrategyOperation<R> operation, StrategyOperation<R> localOperation, R fallback) {
+            long budget = latencyBudgetNanos;
+            if (budget <= 0 || CacheDataSourceTypeEnum.Redis != strategy || asyncStrategyService == null) {
+                return execute(operation, localOperation, fallback);
+            }
+            FlowLimitCircuitBreaker breaker = circuitBreaker;
+            if (breaker != null && !breaker.tryAcquirePermission()) {
+                return executeWith(CacheDataSourceTypeEnum.Local, localOperation, fallback);
+            }
+            CompletableFuture<R> future = executeRemoteAsync(asyncOperation, breaker).toCompletableFuture();
             try {
-                CHANGE_STRATEGY_TIMER.cancel();
-                //开启新的定时器
-                CHANGE_STRATEGY_TIMER.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        strategy = CacheDataSourceTypeEnum.Redis;
-                        log.warn("Flow-Limit-Starter：恢复【{}】作为数据源", strategy);
-                    }
-                }, 3600 * 1000);
-            } catch (Exception e) {
+                return future.get(budget, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                return executeWith(CacheDataSourceTypeEnum.Local, localOperation, fallback);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return executeWith(CacheDataSourceTypeEnum.Local, localOperation, fallback);
+            }
+        }
 
+        /**
+         * 异步执行操作，没有异步数据源或熔断器打开时同步执行。Redis返回异常后改为使用本地数据源执行一次。
+         */
+        private <R> CompletionStage<R> executeAsync(Function<IFlowLimitAsyncStrategyService, CompletionStage<R>> asyncOperation,
+                                                    StrategyOperation<R> operation, StrategyOperation<R> localOperation, R fallback) {
+            if (CacheDataSourceTypeEnum.Redis != strategy || asyncStrategyService == null) {
+                return CompletableFuture.completedFuture(execute(operation, localOperation, fallback));
+            }
+            FlowLimitCircuitBreaker breaker = circuitBreaker;
+            if (breaker != null && !breaker.tryAcquirePermission()) {
+                return CompletableFuture.completedFuture(executeWith(CacheDataSourceTypeEnum.Local, localOperation, fallback));
             }
+            return executeRemoteAsync(asyncOperation, breaker)
+                    .handle((result, e) -> e == null ? result : executeWith(CacheDataSourceTypeEnum.Local, localOperation, fallback));
+        }
 
+        /**
+         * 调用Redis异步数据源，调用结果交给熔断器统计。调用方需要先从熔断器获取许可
+         */
+        private <R> CompletionStage<R> executeRemoteAsync(Function<IFlowLimitAsyncStrategyService, CompletionStage<R>> asyncOperation,
+                                                          FlowLimitCircuitBreaker breaker) {
+            long start = System.nanoTime();
+            CompletionStage<R> stage;
+            try {
+                stage = asyncOperation.apply(asyncStrategyService);
+            } catch (Exception e) {
+                CompletableFuture<R> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                stage = failed;
+            }
+            return stage.whenComplete((result, e) -> {
+                if (breaker != null) {
+                    if (e == null) {
+                        breaker.onSuccess(System.nanoTime() - start);
+                    } else {
+                        breaker.onError(System.nanoTime() - start);
+                    }
+                }
+            });
         }
     }
+
+    /**
+     * 数据源上的一次操作
+     */
+    @FunctionalInterface
+    private interface StrategyOperation<R> {
+        R apply(IFlowLimitStrategyService service) throws Exception;
+    }
 }
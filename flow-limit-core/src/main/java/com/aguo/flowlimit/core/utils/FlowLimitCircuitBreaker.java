@@ -0,0 +1,262 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CircuitBreakerStateEnum;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/10 15:32
+ * @Description: 数据源熔断器，状态机：关闭 -> 打开 -> 半开 -> 关闭/打开。
+ * <br/>
+ * 关闭：最近slidingWindowSize次调用中，失败率或慢调用率达到阈值则打开。<br/>
+ * 打开：请求全部使用本地数据源，后台定时探测数据源，探测成功则进入半开。<br/>
+ * 半开：放行permittedCallsInHalfOpenState个请求访问数据源，全部成功则关闭，任意一个失败则重新打开。
+ * <br/>
+ * 请求线程只读取状态并无锁地记录调用结果，状态切换使用CAS，只有一个线程能完成切换。
+ */
+@Slf4j
+public class FlowLimitCircuitBreaker {
+    /**
+     * 所有熔断器共用的探测线程
+     */
+    private static final ScheduledExecutorService PROBE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "flow-limit-breaker-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+    public static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    public static final int DEFAULT_SLOW_CALL_RATE_THRESHOLD = 80;
+    public static final long DEFAULT_SLOW_CALL_DURATION = 100L;
+    public static final int DEFAULT_SLIDING_WINDOW_SIZE = 100;
+    public static final int DEFAULT_MINIMUM_NUMBER_OF_CALLS = 20;
+    public static final long DEFAULT_WAIT_DURATION_IN_OPEN_STATE = 5000L;
+    public static final long DEFAULT_PROBE_INTERVAL = 1000L;
+    public static final int DEFAULT_PERMITTED_CALLS_IN_HALF_OPEN_STATE = 10;
+    private static final int RECORDED = 1;
+    private static final int FAILURE = 1 << 1;
+    private static final int SLOW = 1 << 2;
+
+    /**
+     * 失败率阈值，百分比
+     */
+    private final int failureRateThreshold;
+    /**
+     * 慢调用率阈值，百分比
+     */
+    private final int slowCallRateThreshold;
+    /**
+     * 超过该时长的调用视为慢调用，单位纳秒
+     */
+    private final long slowCallDurationNanos;
+    /**
+     * 统计最近多少次调用
+     */
+    private final int slidingWindowSize;
+    /**
+     * 至少记录多少次调用才计算失败率
+     */
+    private final int minimumNumberOfCalls;
+    /**
+     * 打开后多久开始探测，单位毫秒
+     */
+    private final long waitDurationInOpenState;
+    /**
+     * 探测间隔，单位毫秒
+     */
+    private final long probeInterval;
+    /**
+     * 半开状态放行的请求数
+     */
+    private final int permittedCallsInHalfOpenState;
+    /**
+     * 数据源健康检查，返回true表示数据源可用
+     */
+    private final BooleanSupplier healthCheck;
+    /**
+     * 状态切换的监听器
+     */
+    private final Consumer<CircuitBreakerStateEnum> stateListener;
+
+    private final AtomicReference<CircuitBreakerStateEnum> state = new AtomicReference<>(CircuitBreakerStateEnum.Closed);
+    /**
+     * 环形数组，记录最近每次调用的结果
+     */
+    private final AtomicIntegerArray outcomes;
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicInteger recordedCalls = new AtomicInteger();
+    private final AtomicInteger failedCalls = new AtomicInteger();
+    private final AtomicInteger slowCalls = new AtomicInteger();
+    /**
+     * 半开状态剩余的放行数与已成功数
+     */
+    private final AtomicInteger halfOpenPermits = new AtomicInteger();
+    private final AtomicInteger halfOpenSuccesses = new AtomicInteger();
+    private volatile ScheduledFuture<?> probeTask;
+
+    public FlowLimitCircuitBreaker(int failureRateThreshold, int slowCallRateThreshold, long slowCallDuration,
+                                   int slidingWindowSize, int minimumNumberOfCalls, long waitDurationInOpenState,
+                                   long probeInterval, int permittedCallsInHalfOpenState,
+                                   BooleanSupplier healthCheck, Consumer<CircuitBreakerStateEnum> stateListener) {
+        this.failureRateThreshold = Math.min(Math.max(failureRateThreshold, 1), 100);
+        this.slowCallRateThreshold = Math.min(Math.max(slowCallRateThreshold, 1), 100);
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(slowCallDuration, 1L));
+        this.slidingWindowSize = Math.max(slidingWindowSize, 1);
+        this.minimumNumberOfCalls = Math.min(Math.max(minimumNumberOfCalls, 1), this.slidingWindowSize);
+        this.waitDurationInOpenState = Math.max(waitDurationInOpenState, 0L);
+        this.probeInterval = Math.max(probeInterval, 1L);
+        this.permittedCallsInHalfOpenState = Math.max(permittedCallsInHalfOpenState, 1);
+        this.healthCheck = healthCheck;
+        this.stateListener = stateListener;
+        this.outcomes = new AtomicIntegerArray(this.slidingWindowSize);
+    }
+
+    public CircuitBreakerStateEnum getState() {
+        return state.get();
+    }
+
+    /**
+     * 当前请求能否访问数据源
+     *
+     * @return false则使用本地数据源
+     */
+    public boolean tryAcquirePermission() {
+        CircuitBreakerStateEnum current = state.get();
+        if (CircuitBreakerStateEnum.Closed == current) {
+            return true;
+        }
+        if (CircuitBreakerStateEnum.HalfOpen == current) {
+            return halfOpenPermits.getAndDecrement() > 0;
+        }
+        return false;
+    }
+
+    /**
+     * 记录一次成功的调用
+     *
+     * @param durationNanos 调用耗时，单位纳秒
+     */
+    public void onSuccess(long durationNanos) {
+        onResult(false, durationNanos);
+    }
+
+    /**
+     * 记录一次失败的调用
+     *
+     * @param durationNanos 调用耗时，单位纳秒
+     */
+    public void onError(long durationNanos) {
+        onResult(true, durationNanos);
+    }
+
+    private void onResult(boolean failure, long durationNanos) {
+        boolean slow = durationNanos >= slowCallDurationNanos;
+        CircuitBreakerStateEnum current = state.get();
+        if (CircuitBreakerStateEnum.HalfOpen == current) {
+            //半开状态下慢调用也视为失败
+            if (failure || slow) {
+                transition(CircuitBreakerStateEnum.HalfOpen, CircuitBreakerStateEnum.Open);
+            } else if (halfOpenSuccesses.incrementAndGet() >= permittedCallsInHalfOpenState) {
+                transition(CircuitBreakerStateEnum.HalfOpen, CircuitBreakerStateEnum.Closed);
+            }
+            return;
+        }
+        if (CircuitBreakerStateEnum.Closed != current) {
+            //打开之前发出的请求，结果不再统计
+            return;
+        }
+        int outcome = RECORDED | (failure ? FAILURE : 0) | (slow ? SLOW : 0);
+        int index = (int) (cursor.getAndIncrement() % slidingWindowSize);
+        int previous = outcomes.getAndSet(index, outcome);
+        int recorded = (previous & RECORDED) == 0 ? recordedCalls.incrementAndGet() : recordedCalls.get();
+        int failed = adjust(failedCalls, previous, outcome, FAILURE);
+        int slowed = adjust(slowCalls, previous, outcome, SLOW);
+        if (recorded < minimumNumberOfCalls) {
+            return;
+        }
+        if (failed * 100 >= failureRateThreshold * recorded || slowed * 100 >= slowCallRateThreshold * recorded) {
+            transition(CircuitBreakerStateEnum.Closed, CircuitBreakerStateEnum.Open);
+        }
+    }
+
+    /**
+     * 用新记录替换环形数组中的旧记录，同步更新计数
+     */
+    private static int adjust(AtomicInteger counter, int previous, int outcome, int flag) {
+        int delta = ((outcome & flag) != 0 ? 1 : 0) - ((previous & flag) != 0 ? 1 : 0);
+        return delta == 0 ? counter.get() : counter.addAndGet(delta);
+    }
+
+    private void transition(CircuitBreakerStateEnum from, CircuitBreakerStateEnum to) {
+        if (CircuitBreakerStateEnum.HalfOpen == to) {
+            //先准备好放行数再切换状态，读到半开状态的请求一定能拿到许可。只有打开状态会切换到半开，此时这两个计数不被使用
+            halfOpenSuccesses.set(0);
+            halfOpenPermits.set(permittedCallsInHalfOpenState);
+        }
+        if (!state.compareAndSet(from, to)) {
+            return;
+        }
+        log.warn("Flow-Limit-Starter：数据源熔断器【{}】->【{}】", from.getDescribe(), to.getDescribe());
+        if (CircuitBreakerStateEnum.Open == to) {
+            scheduleProbe();
+        } else if (CircuitBreakerStateEnum.Closed == to) {
+            resetWindow();
+        }
+        if (stateListener != null) {
+            stateListener.accept(to);
+        }
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < slidingWindowSize; i++) {
+            outcomes.set(i, 0);
+        }
+        cursor.set(0);
+        recordedCalls.set(0);
+        failedCalls.set(0);
+        slowCalls.set(0);
+    }
+
+    /**
+     * 打开后在后台定时探测数据源，请求线程不参与探测
+     */
+    private void scheduleProbe() {
+        ScheduledFuture<?> previous = probeTask;
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        probeTask = PROBE_EXECUTOR.scheduleWithFixedDelay(() -> {
+            if (CircuitBreakerStateEnum.Open != state.get()) {
+                cancelProbe();
+                return;
+            }
+            boolean healthy;
+            try {
+                healthy = healthCheck == null || healthCheck.getAsBoolean();
+            } catch (Exception e) {
+                healthy = false;
+            }
+            if (healthy) {
+                cancelProbe();
+                transition(CircuitBreakerStateEnum.Open, CircuitBreakerStateEnum.HalfOpen);
+            }
+        }, waitDurationInOpenState, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelProbe() {
+        ScheduledFuture<?> task = probeTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.aguo.flowlimit.core.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/13 15:40
+ * @Description: 访问频率的近似统计（Count-Min Sketch），用于本地计数器的准入判断。
+ * <br/>
+ * 4行，每行若干个4位的计数，每个key在每行对应一个计数，取最小值作为频率估计，最大15。
+ * 记录次数达到样本量后所有计数减半，使频率随时间衰减，过去的热点不会一直占着位置。
+ * 内存固定，与key的数量无关。计数用CAS更新，并发自增不会丢失，也不会进位到相邻的计数。
+ */
+public class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_FREQUENCY = 15;
+
+    /**
+     * 每个long存放16个4位的计数，4行共用一个数组
+     */
+    private final AtomicLongArray table;
+    private final int rowMask;
+    private final int sampleSize;
+    /**
+     * 上次减半之后记录的次数
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param expectedSize 预计的key数量
+     */
+    public FrequencySketch(int expectedSize) {
+        int length = Integer.highestOneBit(Math.max(Math.min(expectedSize, 1 << 24), 16) * 2 - 1);
+        //每行的计数数量是key数量的4倍，冲突较少，共占用约每个key8字节
+        this.table = new AtomicLongArray(length);
+        this.rowMask = length / 4 - 1;
+        this.sampleSize = length * 10;
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @return 记录之后的频率估计
+     */
+    public int increment(int hashCode) {
+        long hash = spread(hashCode);
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < 4; row++) {
+            int index = indexOf(hash, row);
+            int shift = counterShift(hash, row);
+            long value;
+            int count;
+            do {
+                value = table.get(index);
+                count = (int) ((value >>> shift) & 0xFL);
+                //已经是最大值则不再自增，否则会进位到相邻的计数
+            } while (count < MAX_FREQUENCY && !table.compareAndSet(index, value, value + (1L << shift)));
+            frequency = Math.min(frequency, Math.min(count + 1, MAX_FREQUENCY));
+        }
+        if (size.incrementAndGet() >= sampleSize) {
+            reset();
+        }
+        return frequency;
+    }
+
+    /**
+     * 频率估计
+     */
+    public int frequency(int hashCode) {
+        long hash = spread(hashCode);
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < 4; row++) {
+            int count = (int) ((table.get(indexOf(hash, row)) >>> counterShift(hash, row)) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * 所有计数减半。减半期间的并发自增不会丢失
+     */
+    private synchronized void reset() {
+        if (size.get() < sampleSize) {
+            return;
+        }
+        for (int i = 0; i < table.length(); i++) {
+            long value;
+            do {
+                value = table.get(i);
+            } while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+        }
+        int current;
+        do {
+            current = size.get();
+        } while (!size.compareAndSet(current, current / 2));
+    }
+
+    private int indexOf(long hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return row * (rowMask + 1) + ((int) h & rowMask);
+    }
+
+    private static int counterShift(long hash, int row) {
+        //每行用哈希的不同4位选择long中的计数
+        return (int) ((hash >>> (row * 4)) & 0xFL) << 2;
+    }
+
+    private static long spread(int hashCode) {
+        long h = hashCode * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
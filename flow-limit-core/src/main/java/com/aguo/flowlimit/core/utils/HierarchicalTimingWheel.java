@@ -0,0 +1,144 @@
+package com.aguo.flowlimit.core.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/13 10:20
+ * @Description: 分层时间轮，用于到期处理。
+ * <br/>
+ * 每层有固定数量的桶，上一层一个桶的时长等于下一层一整圈。到期时间较远的元素放在高层，
+ * 随着时间推进整桶降到低层，到达最低层的当前桶时交给处理器。添加元素与推进时间都是均摊O(1)，
+ * 不随元素数量增长。时间轮只由一个线程推进，添加元素的线程不受影响。
+ * <br/>
+ * 元素在到期时间之后的第一个刻度处理；并发添加时元素可能落入刚处理过的桶，最多延后一圈处理。
+ */
+public class HierarchicalTimingWheel<T> {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * 刻度时长，单位毫秒
+     */
+    private final long tickDuration;
+    private final ExpiryHandler<T> handler;
+    /**
+     * [层][桶]
+     */
+    private final ConcurrentLinkedQueue<Node<T>>[][] buckets;
+    /**
+     * 下一个待处理的刻度
+     */
+    private volatile long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HierarchicalTimingWheel(long tickDuration, long now, ExpiryHandler<T> handler) {
+        this.tickDuration = Math.max(tickDuration, 1L);
+        this.handler = handler;
+        this.buckets = new ConcurrentLinkedQueue[LEVELS][WHEEL_SIZE];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                buckets[level][i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+        this.currentTick = now / this.tickDuration;
+    }
+
+    /**
+     * 添加元素，可以在任意线程调用
+     *
+     * @param item     元素
+     * @param deadline 到期时间，单位毫秒
+     */
+    public void schedule(T item, long deadline) {
+        schedule(new Node<>(item, deadline));
+    }
+
+    private void schedule(Node<T> node) {
+        long tick = currentTick;
+        long deadlineTick = Math.max(tickOf(node.deadline), tick);
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * WHEEL_BITS;
+            //按本层的刻度计算距离，保证落入本圈尚未处理的桶
+            long distance = (deadlineTick >>> shift) - (tick >>> shift);
+            if (distance < WHEEL_SIZE || level == LEVELS - 1) {
+                //超出最高层一圈的元素放在最高层最远的桶，降层时重新计算
+                long bucket = (tick >>> shift) + Math.min(distance, WHEEL_MASK);
+                buckets[level][(int) bucket & WHEEL_MASK].offer(node);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 推进时间轮到当前时间，处理所有到期的元素。只能由一个线程调用
+     *
+     * @param now 当前时间，单位毫秒
+     */
+    public void advance(long now) {
+        long targetTick = now / tickDuration;
+        long tick = currentTick;
+        while (tick <= targetTick) {
+            //最低层转完一圈时，把上一层的当前桶降下来，逐层进行
+            for (int level = 1; level < LEVELS; level++) {
+                int shift = level * WHEEL_BITS;
+                if ((tick & ((1L << shift) - 1)) != 0) {
+                    break;
+                }
+                drain(buckets[level][(int) (tick >>> shift) & WHEEL_MASK], now, tick);
+            }
+            drain(buckets[0][(int) tick & WHEEL_MASK], now, tick);
+            tick++;
+            currentTick = tick;
+        }
+    }
+
+    private void drain(ConcurrentLinkedQueue<Node<T>> bucket, long now, long tick) {
+        //只处理本次开始前已在桶中的元素，处理过程中加入的留给下一次
+        for (int i = bucket.size(); i > 0; i--) {
+            Node<T> node = bucket.poll();
+            if (node == null) {
+                return;
+            }
+            if (tickOf(node.deadline) > tick) {
+                schedule(node);
+                continue;
+            }
+            long next = handler.onExpire(node.item, now);
+            if (next > 0) {
+                schedule(new Node<>(node.item, next));
+            }
+        }
+    }
+
+    /**
+     * 到期时间向上取整到刻度，保证不会提前处理
+     */
+    private long tickOf(long deadline) {
+        return (deadline + tickDuration - 1) / tickDuration;
+    }
+
+    @FunctionalInterface
+    public interface ExpiryHandler<T> {
+        /**
+         * 元素到期
+         *
+         * @param item 元素
+         * @param now  当前时间，单位毫秒
+         * @return 大于0表示元素尚未过期，返回新的到期时间重新添加；否则移除元素
+         */
+        long onExpire(T item, long now);
+    }
+
+    private static final class Node<T> {
+        private final T item;
+        private final long deadline;
+
+        Node(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+
+import java.util.List;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/12 16:02
+ * @Description: 本地计数器存储接口，堆内与堆外两种实现。窗口按时间对齐，检查上限与自增是原子的。
+ */
+public interface ILocalCounterStore {
+
+    /**
+     * 计数器未达到上限则自增
+     *
+     * @param key      计数器的key
+     * @param timeout  窗口时长，单位毫秒
+     * @param countMax 最大计数
+     * @param sliding  是否滑动窗口
+     * @param now      当前时间，单位毫秒
+     * @return 0表示自增成功；大于0表示已达到上限，数值为预计多久之后放行，单位毫秒
+     */
+    long tryIncrement(String key, long timeout, int countMax, boolean sliding, long now);
+
+    /**
+     * 多个计数器逐个检查并自增，某个计数器达到上限则撤销前面计数器的自增
+     *
+     * @return [0]触发限制的计数器下标，-1表示未触发限制；[1]预计多久之后放行，单位毫秒
+     */
+    long[] tryIncrementAll(List<String> keys, List<Long> timeouts, List<Integer> countMaxes,
+                           List<CounterAlgorithmEnum> algorithms, long now);
+
+    /**
+     * 一组计数器挂在同一个key下，逐个检查并自增，删除key时一起删除
+     *
+     * @return 结果同{@link #tryIncrementAll(List, List, List, List, long)}
+     */
+    long[] tryIncrementGroup(String key, List<Long> timeouts, List<Integer> countMaxes,
+                             List<CounterAlgorithmEnum> algorithms, long now);
+
+    /**
+     * 计数器存在时不检查上限，直接自增
+     */
+    void increment(String key, long now);
+
+    /**
+     * 设置当前窗口的计数
+     */
+    void set(String key, long timeout, int value, long now);
+
+    /**
+     * 获取当前窗口的计数
+     *
+     * @return 计数器不存在返回null
+     */
+    Integer get(String key, long now);
+
+    /**
+     * 删除计数器，一组计数器一起删除
+     */
+    void remove(String key);
+
+    /**
+     * 停止后台的清理任务，存储被替换时调用。关闭后仍可读写，只是不再清理过期的计数器
+     */
+    void close();
+}
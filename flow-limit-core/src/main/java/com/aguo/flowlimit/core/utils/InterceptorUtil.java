@@ -3,6 +3,7 @@ package com.aguo.flowlimit.core.utils;
 
 import com.aguo.flowlimit.core.interceptor.IFlowLimitInterceptor;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
@@ -14,6 +15,36 @@ import java.util.Optional;
  * @Description: 拦截器工具类
  */
 public class InterceptorUtil {
+    /**
+     * 生成拦截器专用的请求属性名，用于标记该拦截器已经处理过请求
+     *
+     * @param interceptor 拦截器
+     * @return 请求属性名，同一个拦截器对象返回的属性名相同
+     */
+    public static String handledAttribute(Object interceptor) {
+        return interceptor.getClass().getName() + ".HANDLED@" + Integer.toHexString(System.identityHashCode(interceptor));
+    }
+
+    /**
+     * 请求是否已经被拦截器处理过，未处理过则标记为已处理。
+     * <br/>
+     * 请求通过Servlet异步挂起（比如令牌桶拦截器的异步等待）后重新分派时，是一次ASYNC分派，
+     * 所有拦截器的preHandle都会再次执行。限流拦截器在之前的分派中已经计数，再次计数会把同一个请求算两次，
+     * 因此ASYNC分派中遇到已标记的请求直接放行。排在挂起请求的拦截器之后的拦截器在之前的分派中没有执行，
+     * 没有标记，重新分派时照常计数。用户自己的有副作用的拦截器同样可以用本方法跳过重复的处理。
+     *
+     * @param request   请求
+     * @param attribute 拦截器专用的请求属性名，见{@link #handledAttribute(Object)}
+     * @return TRUE 之前的分派已经处理过，本次直接放行
+     */
+    public static boolean isHandledBefore(HttpServletRequest request, String attribute) {
+        if (request.getDispatcherType() == DispatcherType.ASYNC && request.getAttribute(attribute) != null) {
+            return true;
+        }
+        request.setAttribute(attribute, Boolean.TRUE);
+        return false;
+    }
+
     // 适配时需要的转化方法，从ThreadLocal取出拦截器需要的字段
     public static HttpServletRequest getRequestFromThreadLocalSafely(ThreadLocal<Map<String, Object>> threadLocalMap) {
         return (HttpServletRequest) Optional.ofNullable(threadLocalMap.get())
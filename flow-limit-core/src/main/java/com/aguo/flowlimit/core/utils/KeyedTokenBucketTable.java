@@ -0,0 +1,218 @@
+package com.aguo.flowlimit.core.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/15 10:30
+ * @Description: 按key单独限流的令牌桶表，用于单机下对每个用户单独限流。
+ * <br/>
+ * 每个令牌桶只保存剩余令牌数与上次补充令牌的时间，打包在一个long中，用CAS更新，没有锁。
+ * key只保存64位哈希，开放寻址存放在两个定长数组中，每个key共占用16字节，内存与用户数量无关，只与容量有关。
+ * <br/>
+ * 已经补满的令牌桶与新建的令牌桶没有区别，新的key可以直接占用，不会影响限流结果。
+ * 探测范围内没有可占用的位置时，占用最久没有访问的令牌桶，被占用的key下次访问得到一个补满的新令牌桶。
+ * 并发占用时极少数请求可能记到其他key的令牌桶中，容量按活跃用户数设置即可避免。
+ */
+public class KeyedTokenBucketTable {
+    private static final int MAX_PROBE = 32;
+    /**
+     * 状态为0表示新的令牌桶，即令牌已补满
+     */
+    private static final long FULL = 0L;
+    private static final int CLOCK_SKEW = 60_000;
+    private static final double TOLERANCE = 1e-4;
+
+    /**
+     * key的哈希，0表示空位
+     */
+    private final AtomicLongArray hashes;
+    /**
+     * 高32位是剩余令牌数（float的比特取反），低32位是上次补充令牌的时间，相对于epoch的毫秒数
+     */
+    private final AtomicLongArray states;
+    private final int mask;
+    /**
+     * 每毫秒生产的令牌数
+     */
+    private final double permitsPerMilli;
+    /**
+     * 令牌桶的容量，即允许连续突发的请求数
+     */
+    private final double burst;
+    private final long epoch;
+
+    /**
+     * @param permitsPerSecond 每个key的QPS
+     * @param burst            每个key允许连续突发的请求数，最小为1
+     * @param capacity         最多同时保存的令牌桶数量，向上取整为2的幂
+     */
+    public KeyedTokenBucketTable(double permitsPerSecond, int burst, int capacity) {
+        int length = Integer.highestOneBit(Math.max(Math.min(capacity, 1 << 28), MAX_PROBE) * 2 - 1);
+        this.hashes = new AtomicLongArray(length);
+        this.states = new AtomicLongArray(length);
+        this.mask = length - 1;
+        this.permitsPerMilli = permitsPerSecond / 1000D;
+        this.burst = Math.max(burst, 1);
+        this.epoch = System.currentTimeMillis();
+    }
+
+    /**
+     * 获取令牌。令牌不足时可以预支，由调用者等待返回的时长后再继续
+     *
+     * @param key     令牌桶的key，比如用户ID
+     * @param permits 需要的令牌数
+     * @param maxWait 最多等待的时长，单位毫秒
+     * @param now     当前时间，单位毫秒
+     * @return 大于等于0：获取成功，需要等待的毫秒数；-1：令牌不足且等待时长超过maxWait，未消耗令牌
+     */
+    public long tryAcquire(String key, int permits, long maxWait, long now) {
+        long hash = OffHeapCounterTable.slotHash(OffHeapCounterTable.hash(key), 0);
+        int time = timeOf(now);
+        while (true) {
+            int index = slotOf(hash, time);
+            long state;
+            long wait;
+            do {
+                state = states.get(index);
+                double remaining = tokensOf(state, time) - permits;
+                //令牌数以float保存，忽略舍入误差
+                wait = remaining > -TOLERANCE ? 0 : (long) Math.ceil(-remaining / permitsPerMilli);
+                if (wait > maxWait) {
+                    return -1;
+                }
+                if (states.compareAndSet(index, state, pack((float) remaining, time))) {
+                    break;
+                }
+            } while (true);
+            if (hashes.get(index) == hash) {
+                return wait;
+            }
+            //令牌桶在更新期间被其他key占用，重新查找
+        }
+    }
+
+    /**
+     * 归还已获取的令牌，比如请求随后被其他限流器拒绝。令牌桶不存在或者已补满时无需归还
+     *
+     * @param key     令牌桶的key
+     * @param permits 归还的令牌数
+     * @param now     当前时间，单位毫秒
+     */
+    public void release(String key, int permits, long now) {
+        int index = find(OffHeapCounterTable.slotHash(OffHeapCounterTable.hash(key), 0));
+        if (index < 0) {
+            return;
+        }
+        int time = timeOf(now);
+        long state;
+        double tokens;
+        do {
+            state = states.get(index);
+            if (state == FULL) {
+                return;
+            }
+            tokens = Math.min(burst, tokensOf(state, time) + permits);
+        } while (!states.compareAndSet(index, state, pack((float) tokens, time)));
+    }
+
+    /**
+     * 删除key的令牌桶，即补满令牌
+     */
+    public void reset(String key) {
+        int index = find(OffHeapCounterTable.slotHash(OffHeapCounterTable.hash(key), 0));
+        if (index >= 0) {
+            states.set(index, FULL);
+        }
+    }
+
+    /**
+     * 查找key的位置，不占用新的位置
+     *
+     * @return 不存在返回-1
+     */
+    private int find(long hash) {
+        int index = (int) hash & mask;
+        for (int probe = 0; probe < MAX_PROBE; probe++) {
+            int i = (index + probe) & mask;
+            long h = hashes.get(i);
+            if (h == hash) {
+                return i;
+            }
+            if (h == 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 查找key的位置，不存在则占用一个空位、已补满的令牌桶或者最久没有访问的令牌桶
+     */
+    private int slotOf(long hash, int time) {
+        int index = (int) hash & mask;
+        while (true) {
+            int victim = -1;
+            long victimIdle = -1;
+            for (int probe = 0; probe < MAX_PROBE; probe++) {
+                int i = (index + probe) & mask;
+                long h = hashes.get(i);
+                if (h == hash) {
+                    return i;
+                }
+                if (h == 0) {
+                    if (hashes.compareAndSet(i, 0, hash)) {
+                        return i;
+                    }
+                    //被其他线程占用，重新检查这个位置
+                    probe--;
+                    continue;
+                }
+                long state = states.get(i);
+                if (victimIdle != Long.MAX_VALUE) {
+                    long idle = tokensOf(state, time) >= burst ? Long.MAX_VALUE : idleOf(state, time);
+                    if (idle > victimIdle) {
+                        victim = i;
+                        victimIdle = idle;
+                    }
+                }
+            }
+            long h = hashes.get(victim);
+            if (h != hash && hashes.compareAndSet(victim, h, hash)) {
+                states.set(victim, FULL);
+                return victim;
+            }
+        }
+    }
+
+    private double tokensOf(long state, int time) {
+        if (state == FULL) {
+            return burst;
+        }
+        double tokens = Float.intBitsToFloat(~(int) (state >>> 32));
+        return Math.min(burst, tokens + idleOf(state, time) * permitsPerMilli);
+    }
+
+    /**
+     * 距离上次补充令牌的毫秒数。时间只保存32位，按无符号数相减，约49天回绕一次。
+     * 并发时当前时间可能略早于保存的时间，一分钟以内的负数视为0
+     */
+    private static long idleOf(long state, int time) {
+        int idle = time - (int) state;
+        if (idle < 0 && idle > -CLOCK_SKEW) {
+            return 0;
+        }
+        return idle & 0xFFFFFFFFL;
+    }
+
+    /**
+     * 令牌数的比特取反后存放，取反后全0是NaN，不会与表示新令牌桶的0冲突
+     */
+    private static long pack(float tokens, int time) {
+        return ((long) ~Float.floatToIntBits(tokens) << 32) | (time & 0xFFFFFFFFL);
+    }
+
+    private int timeOf(long now) {
+        return (int) (now - epoch);
+    }
+}
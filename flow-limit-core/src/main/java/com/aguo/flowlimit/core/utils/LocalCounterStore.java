@@ -0,0 +1,537 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/12 9:45
+ * @Description: 本地计数器存储，每个key一个计数单元，无锁地CAS自增。
+ * <br/>
+ * 计数单元有两个槽，按窗口序号的奇偶轮流使用，每个槽是一个long：高32位是窗口序号，低32位是该窗口的计数。
+ * 检查上限与自增在同一次CAS中完成，并发请求不会读到同一个计数而一起放行。
+ * 固定窗口只使用当前窗口的槽，滑动窗口额外读取上一窗口的槽。
+ * 窗口按时间对齐，与Redis的滑动窗口、降级增量的写回一致；Redis的固定窗口则从第一次自增开始计时。
+ * <br/>
+ * 所有计数器只有一个索引：key到计数单元，Hash打包的多个计数器作为一组挂在同一个key下，
+ * 查询、删除、自增都是一次查找。
+ * <br/>
+ * 计数单元的清理由分层时间轮驱动：创建时按窗口结束时间加入时间轮，到期时仍有计数则按最新窗口重新加入，
+ * 否则移除。请求线程自增时不做任何清理工作，后台线程每个刻度只处理到期的计数单元。
+ * <br/>
+ * 可以设置内存预算，按估算的字节数限制计数器占用的内存。超出预算时新的key需要通过准入：
+ * 按访问频率与轮流抽样的已有计数器比较，频率更高才替换它，只出现一次的key无法挤掉活跃的计数器。
+ * 未准入的key不单独保存，按哈希计入固定数量的溢出计数单元，哈希冲突的key共用计数，只会多算不会少算，
+ * 未准入的key同样受限流；持续访问后频率升高即可准入。
+ */
+public class LocalCounterStore implements ILocalCounterStore {
+    /**
+     * 时间轮的刻度，单位毫秒
+     */
+    private static final long TICK_DURATION = 100L;
+    /**
+     * 每个计数器除key与计数单元外的估算内存占用：Map节点、key对象、时间轮节点等，单位字节
+     */
+    private static final int ENTRY_OVERHEAD = 168;
+    /**
+     * 每个计数单元的估算内存占用，单位字节
+     */
+    private static final int CELL_SIZE = 80;
+    /**
+     * 一次准入最多抽样的计数器数量
+     */
+    private static final int MAX_VICTIM_SAMPLES = 8;
+    /**
+     * 溢出计数单元的数量，2的幂
+     */
+    private static final int OVERFLOW_CELLS = 4096;
+    private static final ScheduledExecutorService EXPIRY_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "flow-limit-local-counter-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final HierarchicalTimingWheel<Expiry> expiryWheel =
+            new HierarchicalTimingWheel<>(TICK_DURATION, System.currentTimeMillis(), this::expire);
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    /**
+     * 推进时间轮的定时任务，第一次创建计数器时启动，关闭存储时取消
+     */
+    volatile ScheduledFuture<?> expiryTask;
+    private volatile boolean closed;
+    /**
+     * 内存预算，单位字节，0表示不限制
+     */
+    private final long memoryBudget;
+    private final AtomicLong usedBytes = new AtomicLong();
+    /**
+     * 访问频率，不限制内存时为null
+     */
+    private final FrequencySketch sketch;
+    /**
+     * 未准入的key共用的计数单元，按key的哈希选择，不限制内存时为null
+     */
+    private final AtomicReferenceArray<Cell> overflowCells;
+    /**
+     * 轮流抽样淘汰候选的迭代器
+     */
+    private Iterator<Map.Entry<String, Entry>> victims;
+
+    public LocalCounterStore() {
+        this(0L);
+    }
+
+    /**
+     * @param memoryBudget 内存预算，单位字节，小于等于0表示不限制
+     */
+    public LocalCounterStore(long memoryBudget) {
+        this.memoryBudget = Math.max(memoryBudget, 0L);
+        this.sketch = memoryBudget > 0
+                ? new FrequencySketch((int) Math.min(memoryBudget / (ENTRY_OVERHEAD + CELL_SIZE), Integer.MAX_VALUE))
+                : null;
+        this.overflowCells = memoryBudget > 0 ? new AtomicReferenceArray<>(OVERFLOW_CELLS) : null;
+    }
+
+    /**
+     * 计数器未达到上限则自增
+     *
+     * @param key      计数器的key
+     * @param timeout  窗口时长，单位毫秒
+     * @param countMax 最大计数
+     * @param sliding  是否滑动窗口
+     * @param now      当前时间，单位毫秒
+     * @return 0表示自增成功；大于0表示已达到上限，数值为预计多久之后放行，单位毫秒
+     */
+    @Override
+    public long tryIncrement(String key, long timeout, int countMax, boolean sliding, long now) {
+        return getCell(key, timeout, now).tryIncrement(now, countMax, sliding);
+    }
+
+    /**
+     * 多个计数器逐个检查并自增，某个计数器达到上限则撤销前面计数器的自增
+     *
+     * @return [0]触发限制的计数器下标，-1表示未触发限制；[1]预计多久之后放行，单位毫秒
+     */
+    @Override
+    public long[] tryIncrementAll(List<String> keys, List<Long> timeouts, List<Integer> countMaxes,
+                                  List<CounterAlgorithmEnum> algorithms, long now) {
+        Cell[] cells = new Cell[keys.size()];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = getCell(keys.get(i), timeouts.get(i), now);
+        }
+        return tryIncrementAll(cells, countMaxes, algorithms, now);
+    }
+
+    /**
+     * 一组计数器挂在同一个key下，逐个检查并自增，语义同{@link #tryIncrementAll(List, List, List, List, long)}
+     */
+    @Override
+    public long[] tryIncrementGroup(String key, List<Long> timeouts, List<Integer> countMaxes,
+                                    List<CounterAlgorithmEnum> algorithms, long now) {
+        Entry entry = entries.get(key);
+        if (entry instanceof Group && ((Group) entry).cells.length == timeouts.size()) {
+            recordAccess(key);
+        } else {
+            Group group = new Group(timeouts, now);
+            if (!admit(key, group, now)) {
+                Cell[] cells = new Cell[timeouts.size()];
+                for (int i = 0; i < cells.length; i++) {
+                    cells[i] = overflowCell(key.hashCode() * 31 + i, timeouts.get(i), now);
+                }
+                return tryIncrementAll(cells, countMaxes, algorithms, now);
+            }
+            entry = entries.compute(key, (k, existing) ->
+                    existing instanceof Group && ((Group) existing).cells.length == timeouts.size()
+                            ? existing : replace(k, existing, group));
+            if (entry == group) {
+                scheduleExpiry(key, group, now);
+            }
+        }
+        return tryIncrementAll(((Group) entry).cells, countMaxes, algorithms, now);
+    }
+
+    private static long[] tryIncrementAll(Cell[] cells, List<Integer> countMaxes, List<CounterAlgorithmEnum> algorithms, long now) {
+        for (int i = 0; i < cells.length; i++) {
+            long retryAfter = cells[i].tryIncrement(now, countMaxes.get(i), CounterAlgorithmEnum.SlidingWindow == algorithms.get(i));
+            if (retryAfter > 0) {
+                for (int j = 0; j < i; j++) {
+                    cells[j].add(now, -1);
+                }
+                return new long[]{i, retryAfter};
+            }
+        }
+        return new long[]{-1, 0};
+    }
+
+    /**
+     * 计数器存在时不检查上限，直接自增
+     */
+    @Override
+    public void increment(String key, long now) {
+        add(key, now, 1);
+    }
+
+    /**
+     * 计数器存在时调整当前窗口的计数，不检查上限
+     */
+    void add(String key, long now, int delta) {
+        Entry entry = entries.get(key);
+        if (entry instanceof Cell) {
+            ((Cell) entry).add(now, delta);
+        }
+    }
+
+    /**
+     * 设置当前窗口的计数
+     */
+    @Override
+    public void set(String key, long timeout, int value, long now) {
+        Cell cell = new Cell(timeout, now);
+        cell.add(now, value);
+        if (!entries.containsKey(key) && !admit(key, cell, now)) {
+            return;
+        }
+        entries.compute(key, (k, existing) -> replace(k, existing, cell));
+        scheduleExpiry(key, cell, now);
+    }
+
+    /**
+     * 获取当前窗口的计数
+     *
+     * @return 计数器不存在返回null
+     */
+    @Override
+    public Integer get(String key, long now) {
+        Entry entry = entries.get(key);
+        return entry instanceof Cell ? ((Cell) entry).current(now) : null;
+    }
+
+    /**
+     * 删除计数器，一组计数器一起删除
+     */
+    @Override
+    public void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            usedBytes.addAndGet(-weigh(key, removed));
+        }
+    }
+
+    private Cell getCell(String key, long timeout, long now) {
+        Entry entry = entries.get(key);
+        if (entry instanceof Cell) {
+            recordAccess(key);
+            return (Cell) entry;
+        }
+        Cell cell = new Cell(timeout, now);
+        if (!admit(key, cell, now)) {
+            return overflowCell(key.hashCode(), timeout, now);
+        }
+        entry = entries.compute(key, (k, existing) -> existing instanceof Cell ? existing : replace(k, existing, cell));
+        if (entry == cell) {
+            scheduleExpiry(key, cell, now);
+        }
+        return (Cell) entry;
+    }
+
+    /**
+     * 未准入的key使用的溢出计数单元。窗口时长不同的key冲突时，后来的key替换计数单元
+     */
+    private Cell overflowCell(int hashCode, long timeout, long now) {
+        int h = hashCode * 0x9E3779B9;
+        int index = (h ^ (h >>> 16)) & (OVERFLOW_CELLS - 1);
+        while (true) {
+            Cell cell = overflowCells.get(index);
+            if (cell != null && cell.timeout == Math.max(timeout, 1L)) {
+                return cell;
+            }
+            Cell created = new Cell(timeout, now);
+            if (overflowCells.compareAndSet(index, cell, created)) {
+                return created;
+            }
+        }
+    }
+
+    private void recordAccess(String key) {
+        if (sketch != null) {
+            sketch.increment(key.hashCode());
+        }
+    }
+
+    /**
+     * 新的key是否可以保存。超出内存预算时抽样已有的计数器，已过期或者访问频率更低的被淘汰
+     */
+    private boolean admit(String key, Entry candidate, long now) {
+        if (sketch == null) {
+            return true;
+        }
+        int frequency = sketch.increment(key.hashCode());
+        long weight = weigh(key, candidate);
+        for (int i = 0; usedBytes.get() + weight > memoryBudget; i++) {
+            Map.Entry<String, Entry> victim = i < MAX_VICTIM_SAMPLES ? nextVictim() : null;
+            if (victim == null) {
+                return false;
+            }
+            if (!victim.getValue().isExpired(now) && sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+                return false;
+            }
+            remove(victim.getKey(), victim.getValue());
+        }
+        return true;
+    }
+
+    private synchronized Map.Entry<String, Entry> nextVictim() {
+        if (victims == null || !victims.hasNext()) {
+            victims = entries.entrySet().iterator();
+        }
+        return victims.hasNext() ? victims.next() : null;
+    }
+
+    /**
+     * 在Map的compute中调用，替换已有的计数器并更新内存占用
+     */
+    private Entry replace(String key, Entry existing, Entry entry) {
+        usedBytes.addAndGet(weigh(key, entry) - (existing == null ? 0 : weigh(key, existing)));
+        return entry;
+    }
+
+    private void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            usedBytes.addAndGet(-weigh(key, entry));
+        }
+    }
+
+    private static long weigh(String key, Entry entry) {
+        int cells = entry instanceof Group ? ((Group) entry).cells.length : 1;
+        return ENTRY_OVERHEAD + key.length() * 2L + (long) cells * CELL_SIZE;
+    }
+
+    private void scheduleExpiry(String key, Entry entry, long now) {
+        expiryWheel.schedule(new Expiry(key, entry), entry.expireTime(now));
+        if (!ticking.get() && ticking.compareAndSet(false, true)) {
+            expiryTask = EXPIRY_EXECUTOR.scheduleWithFixedDelay(() -> expiryWheel.advance(System.currentTimeMillis()),
+                    TICK_DURATION, TICK_DURATION, TimeUnit.MILLISECONDS);
+            if (closed) {
+                //启动的同时存储被关闭，关闭时可能还没有读到任务
+                expiryTask.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 取消推进时间轮的定时任务，执行器不再引用这个存储。之后创建的计数器不会再启动定时任务
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ticking.set(true);
+        ScheduledFuture<?> task = expiryTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * 时间轮到期回调。计数单元已被删除或替换时直接丢弃，仍有计数时按最新窗口重新计算到期时间
+     */
+    private long expire(Expiry expiry, long now) {
+        if (entries.get(expiry.key) != expiry.entry) {
+            return 0;
+        }
+        if (expiry.entry.isExpired(now)) {
+            remove(expiry.key, expiry.entry);
+            return 0;
+        }
+        return expiry.entry.expireTime(now);
+    }
+
+    static long pack(int window, int count) {
+        return ((long) window << 32) | (count & 0xFFFFFFFFL);
+    }
+
+    static int windowOf(long slot) {
+        return (int) (slot >>> 32);
+    }
+
+    static int countOf(long slot) {
+        return (int) slot;
+    }
+
+    /**
+     * 窗口序号只保留低32位，只做相等比较，回绕不影响结果
+     */
+    static int windowIndex(long now, long timeout) {
+        return (int) (now / timeout);
+    }
+
+    /**
+     * 计算计数器是否达到上限
+     *
+     * @param current  当前窗口计数
+     * @param previous 上一窗口计数，固定窗口传0
+     * @return 0表示未达到上限；大于0表示预计多久之后放行，单位毫秒
+     */
+    static long retryAfter(int current, int previous, long timeout, long elapsed, int countMax) {
+        if (current >= countMax) {
+            return timeout - elapsed;
+        }
+        if (previous > 0 && previous * (double) (timeout - elapsed) / timeout + current >= countMax) {
+            //估算值随上一窗口的比例衰减，降到上限以下即可放行
+            long wait = (long) Math.floor(timeout - (double) (countMax - current) * timeout / previous) + 1 - elapsed;
+            return Math.max(wait, 1L);
+        }
+        return 0;
+    }
+
+    private static final class Expiry {
+        private final String key;
+        private final Entry entry;
+
+        Expiry(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    private abstract static class Entry {
+        abstract boolean isExpired(long now);
+
+        /**
+         * 按目前最新的计数窗口，计算最早何时可以清理
+         */
+        abstract long expireTime(long now);
+    }
+
+    /**
+     * Hash打包的一组计数器
+     */
+    private static final class Group extends Entry {
+        private final Cell[] cells;
+
+        Group(List<Long> timeouts, long now) {
+            this.cells = new Cell[timeouts.size()];
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = new Cell(timeouts.get(i), now);
+            }
+        }
+
+        @Override
+        boolean isExpired(long now) {
+            for (Cell cell : cells) {
+                if (!cell.isExpired(now)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        long expireTime(long now) {
+            long expireTime = 0;
+            for (Cell cell : cells) {
+                expireTime = Math.max(expireTime, cell.expireTime(now));
+            }
+            return expireTime;
+        }
+    }
+
+    private static final class Cell extends Entry {
+        private final long timeout;
+        private final AtomicLongArray slots = new AtomicLongArray(2);
+
+        Cell(long timeout, long now) {
+            this.timeout = Math.max(timeout, 1L);
+            //初始化为两个已经过去的窗口
+            int window = window(now);
+            slots.set(window & 1, pack(window - 2, 0));
+            slots.set((window - 1) & 1, pack(window - 3, 0));
+        }
+
+        private int window(long now) {
+            return windowIndex(now, timeout);
+        }
+
+        long tryIncrement(long now, int countMax, boolean sliding) {
+            int window = window(now);
+            int index = window & 1;
+            long elapsed = now % timeout;
+            for (; ; ) {
+                long slot = slots.get(index);
+                int current = windowOf(slot) == window ? countOf(slot) : 0;
+                int previous = 0;
+                if (sliding) {
+                    long previousSlot = slots.get((window - 1) & 1);
+                    previous = windowOf(previousSlot) == window - 1 ? countOf(previousSlot) : 0;
+                }
+                long retryAfter = retryAfter(current, previous, timeout, elapsed, countMax);
+                if (retryAfter > 0) {
+                    return retryAfter;
+                }
+                if (slots.compareAndSet(index, slot, pack(window, current + 1))) {
+                    return 0;
+                }
+            }
+        }
+
+        void add(long now, int delta) {
+            int window = window(now);
+            int index = window & 1;
+            for (; ; ) {
+                long slot = slots.get(index);
+                if (windowOf(slot) != window && delta < 0) {
+                    //窗口已经滚动，没有需要撤销的计数
+                    return;
+                }
+                int current = windowOf(slot) == window ? countOf(slot) : 0;
+                if (slots.compareAndSet(index, slot, pack(window, Math.max(current + delta, 0)))) {
+                    return;
+                }
+            }
+        }
+
+        int current(long now) {
+            int window = window(now);
+            long slot = slots.get(window & 1);
+            return windowOf(slot) == window ? countOf(slot) : 0;
+        }
+
+        /**
+         * 当前窗口与上一窗口都没有计数，即可清理
+         */
+        @Override
+        boolean isExpired(long now) {
+            int window = window(now);
+            for (int i = 0; i < 2; i++) {
+                int slotWindow = windowOf(slots.get(i));
+                if (slotWindow == window || slotWindow == window - 1) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 最新窗口的下一个窗口结束后即可清理，刚创建的计数单元至少保留到当前窗口结束。
+         * 窗口序号可能回绕，只用差值计算
+         */
+        @Override
+        long expireTime(long now) {
+            int window = window(now);
+            int elapsed = Math.min(window - windowOf(slots.get(0)), window - windowOf(slots.get(1)));
+            return (now / timeout + 2 - Math.min(Math.max(elapsed, 0), 1)) * timeout;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/11 10:18
+ * @Description: 本地拒绝缓存。计数器达到上限后，记录该计数器何时才会放行，在此之前的请求直接在本地拒绝，不再访问Redis。
+ * <br/>
+ * 超出限制的往往是流量最大的恶意请求，本地拒绝可以去掉攻击期间绝大部分的Redis访问。
+ * 缓存有容量上限，每个key在计数器放行时自动过期。
+ * <br/>
+ * 注意：其他节点重置计数器时，本节点的拒绝记录要等到过期才会失效。
+ */
+public class LocalDenyCache {
+    /**
+     * key:计数器的key。value:拒绝的截止时间，单位毫秒
+     */
+    private final Cache<String, Long> denyUntil;
+
+    public LocalDenyCache(long maximumSize) {
+        this.denyUntil = Caffeine.newBuilder()
+                .maximumSize(Math.max(maximumSize, 1L))
+                .expireAfter(new Expiry<String, Long>() {
+                    @Override
+                    public long expireAfterCreate(String key, Long value, long currentTime) {
+                        return remainingNanos(value);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Long value, long currentTime, long currentDuration) {
+                        return remainingNanos(value);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Long value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * 判断是否有计数器正处于拒绝期
+     *
+     * @param keys 计数器的key
+     * @return true:直接拒绝
+     */
+    public boolean isDenied(List<String> keys) {
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            Long until = denyUntil.getIfPresent(key);
+            if (until != null && until > now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 记录计数器的拒绝期
+     *
+     * @param key        计数器的key
+     * @param retryAfter 距离计数器放行的毫秒数，小于等于0则不记录
+     */
+    public void deny(String key, long retryAfter) {
+        if (retryAfter > 0) {
+            denyUntil.put(key, System.currentTimeMillis() + retryAfter);
+        }
+    }
+
+    /**
+     * 清除计数器的拒绝记录，重置计数器时使用
+     *
+     * @param keys 计数器的key
+     */
+    public void invalidate(List<String> keys) {
+        denyUntil.invalidateAll(keys);
+    }
+
+    private static long remainingNanos(Long until) {
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(until - System.currentTimeMillis(), 0L));
+    }
+}
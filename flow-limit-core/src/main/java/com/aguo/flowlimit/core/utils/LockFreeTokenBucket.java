@@ -0,0 +1,249 @@
+package com.aguo.flowlimit.core.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/15 15:10
+ * @Description: 无锁的带预热期的令牌桶，替代Google的RateLimiter。
+ * <br/>
+ * 预热算法与RateLimiter.create(permitsPerSecond, warmupPeriod, unit)相同：冷启动时令牌的生产间隔是稳定间隔的3倍，
+ * 在预热期内平稳下降到稳定间隔；长时间空闲后重新变冷。
+ * RateLimiter的每次获取都在同一把锁上串行，本类的状态是不可变对象，用CAS整体替换，没有锁；
+ * 速率较高时按CPU核数分成多个子令牌桶，每个子桶分得一部分速率，线程优先使用自己的子桶，不足时再尝试其他子桶，
+ * 并发获取分散在多个位置上，吞吐量随核数增长。
+ */
+public class LockFreeTokenBucket {
+    private static final double COLD_FACTOR = 3.0;
+    /**
+     * 每个子桶至少分得的QPS，速率较低时竞争不明显，不必拆分
+     */
+    private static final double MIN_STRIPE_RATE = 1000D;
+
+    private final Stripe[] stripes;
+    private final long warmupPeriodMicros;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond QPS
+     * @param warmupPeriod     预热期时长
+     * @param unit             预热期时长的单位
+     */
+    public LockFreeTokenBucket(double permitsPerSecond, long warmupPeriod, TimeUnit unit) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond必须大于0");
+        }
+        this.warmupPeriodMicros = unit.toMicros(Math.max(warmupPeriod, 0L));
+        int cores = Integer.highestOneBit(Runtime.getRuntime().availableProcessors());
+        int count = (int) Math.max(Math.min(cores, permitsPerSecond / MIN_STRIPE_RATE), 1);
+        this.stripes = new Stripe[Integer.highestOneBit(count)];
+        Rate rate = new Rate(permitsPerSecond / stripes.length, warmupPeriodMicros);
+        for (int i = 0; i < stripes.length; i++) {
+            //与RateLimiter一样冷启动，桶中存满令牌
+            stripes[i] = new Stripe(new State(rate, rate.maxPermits, 0L));
+        }
+    }
+
+    /**
+     * 获取令牌，令牌不足且预计等待时长不超过timeout则等待
+     *
+     * @param permits 需要的令牌数
+     * @param timeout 最多等待的时长
+     * @param unit    时长单位
+     * @return TRUE 获取成功
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) {
+        long waitMicros = reserve(permits, timeout, unit);
+        if (waitMicros < 0) {
+            return false;
+        }
+        if (waitMicros > 0) {
+            try {
+                TimeUnit.MICROSECONDS.sleep(waitMicros);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 预约令牌但不等待，由调用者在返回的时长之后再继续
+     *
+     * @param permits 需要的令牌数
+     * @param timeout 最多等待的时长
+     * @param unit    时长单位
+     * @return 大于等于0：预约成功，需要等待的微秒数；-1：等待时长超过timeout，未消耗令牌
+     */
+    public long reserve(int permits, long timeout, TimeUnit unit) {
+        long timeoutMicros = Math.max(unit.toMicros(timeout), 0L);
+        long nowMicros = nowMicros();
+        int home = (int) Thread.currentThread().getId() & (stripes.length - 1);
+        //先找能立即获取的子桶，从自己的子桶开始
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripes[(home + i) & (stripes.length - 1)].tryReserve(permits, nowMicros, 0L) == 0L) {
+                return 0L;
+            }
+        }
+        if (timeoutMicros == 0) {
+            return -1L;
+        }
+        //都不能立即获取，在自己的子桶中预约
+        return stripes[home].tryReserve(permits, nowMicros, timeoutMicros);
+    }
+
+    /**
+     * 修改速率，桶中剩余的令牌按最大令牌数等比例换算，与RateLimiter.setRate相同
+     */
+    public void setRate(double permitsPerSecond) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond必须大于0");
+        }
+        Rate rate = new Rate(permitsPerSecond / stripes.length, warmupPeriodMicros);
+        long nowMicros = nowMicros();
+        for (Stripe stripe : stripes) {
+            State state;
+            State updated;
+            do {
+                state = stripe.get();
+                State synced = state.resync(nowMicros);
+                double storedPermits = synced.rate.maxPermits == 0 ? rate.maxPermits
+                        : synced.storedPermits * rate.maxPermits / synced.rate.maxPermits;
+                updated = new State(rate, storedPermits, synced.nextFreeTicketMicros);
+            } while (!stripe.compareAndSet(state, updated));
+        }
+    }
+
+    /**
+     * 当前的QPS
+     */
+    public double getRate() {
+        return stripes[0].get().rate.permitsPerSecond * stripes.length;
+    }
+
+    private long nowMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 子桶。后面的字段用于填充缓存行，避免相邻的子桶互相影响
+     */
+    @SuppressWarnings("unused")
+    private static final class Stripe extends AtomicReference<State> {
+        private static final long serialVersionUID = 1L;
+        private long p1, p2, p3, p4, p5, p6, p7;
+
+        Stripe(State state) {
+            super(state);
+        }
+
+        /**
+         * 预约令牌
+         *
+         * @return 大于等于0：预约成功，需要等待的微秒数；-1：等待时长超过timeoutMicros，未消耗令牌
+         */
+        long tryReserve(int permits, long nowMicros, long timeoutMicros) {
+            State state;
+            State updated;
+            do {
+                state = get();
+                if (state.nextFreeTicketMicros - timeoutMicros > nowMicros) {
+                    return -1L;
+                }
+                updated = state.reserve(permits, nowMicros);
+            } while (!compareAndSet(state, updated));
+            return Math.max(state.nextFreeTicketMicros - nowMicros, 0L);
+        }
+    }
+
+    /**
+     * 由速率与预热期推导出的参数，含义与RateLimiter的SmoothWarmingUp相同
+     */
+    private static final class Rate {
+        private final double permitsPerSecond;
+        private final double stableIntervalMicros;
+        private final double thresholdPermits;
+        private final double maxPermits;
+        private final double slope;
+        private final double coolDownIntervalMicros;
+
+        Rate(double permitsPerSecond, long warmupPeriodMicros) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.stableIntervalMicros = TimeUnit.SECONDS.toMicros(1L) / permitsPerSecond;
+            double coldIntervalMicros = stableIntervalMicros * COLD_FACTOR;
+            this.thresholdPermits = 0.5 * warmupPeriodMicros / stableIntervalMicros;
+            this.maxPermits = thresholdPermits + 2.0 * warmupPeriodMicros / (stableIntervalMicros + coldIntervalMicros);
+            this.slope = maxPermits > thresholdPermits
+                    ? (coldIntervalMicros - stableIntervalMicros) / (maxPermits - thresholdPermits) : 0;
+            this.coolDownIntervalMicros = maxPermits > 0 ? warmupPeriodMicros / maxPermits : stableIntervalMicros;
+        }
+
+        /**
+         * 消耗桶中存储的令牌需要的时长：高于阈值的部分按梯形面积计算，越冷越慢
+         */
+        double storedPermitsToWaitTime(double storedPermits, double permitsToTake) {
+            double availablePermitsAboveThreshold = storedPermits - thresholdPermits;
+            double micros = 0;
+            if (availablePermitsAboveThreshold > 0.0) {
+                double permitsAboveThresholdToTake = Math.min(availablePermitsAboveThreshold, permitsToTake);
+                double length = permitsToTime(availablePermitsAboveThreshold)
+                        + permitsToTime(availablePermitsAboveThreshold - permitsAboveThresholdToTake);
+                micros = permitsAboveThresholdToTake * length / 2.0;
+                permitsToTake -= permitsAboveThresholdToTake;
+            }
+            return micros + stableIntervalMicros * permitsToTake;
+        }
+
+        private double permitsToTime(double permits) {
+            return stableIntervalMicros + permits * slope;
+        }
+    }
+
+    /**
+     * 令牌桶的状态，不可变
+     */
+    private static final class State {
+        private final Rate rate;
+        private final double storedPermits;
+        /**
+         * 下一次可以获取令牌的时间，单位微秒
+         */
+        private final long nextFreeTicketMicros;
+
+        State(Rate rate, double storedPermits, long nextFreeTicketMicros) {
+            this.rate = rate;
+            this.storedPermits = storedPermits;
+            this.nextFreeTicketMicros = nextFreeTicketMicros;
+        }
+
+        /**
+         * 补充空闲期间生产的令牌
+         */
+        State resync(long nowMicros) {
+            if (nowMicros <= nextFreeTicketMicros) {
+                return this;
+            }
+            double newPermits = (nowMicros - nextFreeTicketMicros) / rate.coolDownIntervalMicros;
+            return new State(rate, Math.min(rate.maxPermits, storedPermits + newPermits), nowMicros);
+        }
+
+        /**
+         * 预约令牌，先消耗存储的令牌，不足的部分按稳定间隔计算，下一次获取的时间后移
+         */
+        State reserve(int permits, long nowMicros) {
+            State synced = resync(nowMicros);
+            double storedPermitsToSpend = Math.min(permits, synced.storedPermits);
+            double freshPermits = permits - storedPermitsToSpend;
+            long waitMicros = (long) (rate.storedPermitsToWaitTime(synced.storedPermits, storedPermitsToSpend)
+                    + freshPermits * rate.stableIntervalMicros);
+            return new State(rate, synced.storedPermits - storedPermitsToSpend,
+                    saturatedAdd(synced.nextFreeTicketMicros, waitMicros));
+        }
+
+        private static long saturatedAdd(long a, long b) {
+            long sum = a + b;
+            return ((a ^ b) < 0 | (a ^ sum) >= 0) ? sum : Long.MAX_VALUE;
+        }
+    }
+}
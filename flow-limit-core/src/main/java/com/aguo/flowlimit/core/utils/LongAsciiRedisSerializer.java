@@ -0,0 +1,114 @@
+package com.aguo.flowlimit.core.utils;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/2 10:12
+ * @Description: 计数器专用的序列化器，计数器的值在Redis中就是纯ASCII数字，与INCR命令的存储格式一致。
+ * <br/>
+ * 不经过Jackson，也不经过String，直接在字节数组上编码、解析。常用的小数值预先编码好，重复使用同一个字节数组。
+ */
+public class LongAsciiRedisSerializer implements RedisSerializer<Long> {
+    /**
+     * 预先编码好的数值范围[0, CACHE_SIZE)，覆盖绝大部分计数、限流次数
+     */
+    private static final int CACHE_SIZE = 1024;
+    private static final byte[][] CACHE = new byte[CACHE_SIZE][];
+
+    static {
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            CACHE[i] = encode(i);
+        }
+    }
+
+    public static final LongAsciiRedisSerializer INSTANCE = new LongAsciiRedisSerializer();
+
+    @Override
+    public byte[] serialize(Long value) throws SerializationException {
+        if (value == null) {
+            return null;
+        }
+        return toBytes(value);
+    }
+
+    @Override
+    public Long deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        return parseLong(bytes);
+    }
+
+    @Override
+    public Class<?> getTargetType() {
+        return Long.class;
+    }
+
+    /**
+     * 将数值编码为ASCII字节，返回的数组可能是共享的，调用方不能修改
+     *
+     * @param value 数值
+     * @return ASCII字节
+     */
+    public static byte[] toBytes(long value) {
+        if (value >= 0 && value < CACHE_SIZE) {
+            return CACHE[(int) value];
+        }
+        return encode(value);
+    }
+
+    /**
+     * 直接在字节数组上解析数值，不产生中间对象
+     *
+     * @param bytes ASCII数字
+     * @return 数值
+     * @throws SerializationException 不是合法的数字
+     */
+    public static long parseLong(byte[] bytes) throws SerializationException {
+        int length = bytes.length;
+        if (length == 0) {
+            throw new SerializationException("无法解析空的计数器值");
+        }
+        boolean negative = bytes[0] == '-';
+        int i = negative ? 1 : 0;
+        if (i == length) {
+            throw new SerializationException("无法解析计数器值：" + new String(bytes, StandardCharsets.US_ASCII));
+        }
+        long result = 0;
+        for (; i < length; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new SerializationException("无法解析计数器值：" + new String(bytes, StandardCharsets.US_ASCII));
+            }
+            //用负数累加，才能完整表示Long.MIN_VALUE
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static byte[] encode(long value) {
+        if (value == Long.MIN_VALUE) {
+            return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+        }
+        boolean negative = value < 0;
+        long abs = negative ? -value : value;
+        int digits = 1;
+        for (long v = abs; v >= 10; v /= 10) {
+            digits++;
+        }
+        int length = negative ? digits + 1 : digits;
+        byte[] bytes = new byte[length];
+        for (int i = length - 1; i >= length - digits; i--) {
+            bytes[i] = (byte) ('0' + abs % 10);
+            abs /= 10;
+        }
+        if (negative) {
+            bytes[0] = '-';
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,445 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/12 16:10
+ * @Description: 堆外计数器表，用于本地计数器数量极大（如按用户限流、用户量上千万）的场景。
+ * <br/>
+ * 开放寻址的哈希表，存放在直接内存中，每个计数器一个32字节的槽：key的64位哈希、窗口时长，
+ * 以及与{@link LocalCounterStore}相同格式的两个窗口槽。不保存key本身，也不为每个计数器创建对象，
+ * 堆内存占用与GC压力不随计数器数量增长。64位哈希冲突的概率可以忽略，冲突时两个计数器共用一个槽。
+ * <br/>
+ * 表分为多个段，每个段一把锁，段内线性探测。过期的槽在插入时直接复用，无需后台清理。
+ * 探测长度内找不到可用的槽时，计数器放入堆内的{@link LocalCounterStore}。
+ * <br/>
+ * 也可以映射到文件，槽的格式即文件格式，无需序列化。进程重启后重新映射同一文件即可恢复计数，
+ * 窗口按时间对齐，已经过去的窗口自然失效。写入直接进入操作系统的页缓存，进程崩溃不会丢失；
+ * 放入堆内的计数器不会保存。
+ */
+public class OffHeapCounterTable implements ILocalCounterStore {
+    private static final int SLOT_SIZE = 32;
+    private static final int HASH_OFFSET = 0;
+    private static final int TIMEOUT_OFFSET = 8;
+    private static final int WINDOW_OFFSET = 16;
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = 1L;
+    /**
+     * 段内最大探测长度
+     */
+    private static final int MAX_PROBE = 64;
+    private static final int MAX_SEGMENTS = 256;
+    /**
+     * 单个段的最大槽数，保证段的字节数不超过int
+     */
+    private static final int MAX_SEGMENT_SLOTS = 1 << 25;
+    /**
+     * 文件头：魔数、段数、每段槽数，按本机字节序写入，字节序不同也视为不兼容
+     */
+    private static final int HEADER_SIZE = 64;
+    private static final long MAGIC = 0x464c4f574c494d31L;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    /**
+     * 表满时存放计数器
+     */
+    private final LocalCounterStore overflow = new LocalCounterStore();
+    private volatile boolean overflowed;
+
+    /**
+     * @param capacity 预计的计数器数量，表按0.75的负载因子分配
+     */
+    public OffHeapCounterTable(int capacity) {
+        int segmentCount = segmentCount(capacity);
+        int segmentSlots = segmentSlots(capacity, segmentCount);
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            //直接内存分配后全部为0，即所有槽都是空槽
+            segments[i] = new Segment(ByteBuffer.allocateDirect(segmentSlots * SLOT_SIZE), segmentSlots);
+        }
+        this.segmentMask = segmentCount - 1;
+    }
+
+    /**
+     * 映射到文件的计数器表。文件存在且布局一致则继续使用其中的计数，否则重新创建
+     *
+     * @param capacity 预计的计数器数量，表按0.75的负载因子分配
+     * @param file     映射的文件
+     */
+    public OffHeapCounterTable(int capacity, File file) throws IOException {
+        int segmentCount = segmentCount(capacity);
+        int segmentSlots = segmentSlots(capacity, segmentCount);
+        long segmentBytes = (long) segmentSlots * SLOT_SIZE;
+        long length = HEADER_SIZE + segmentBytes * segmentCount;
+        this.segments = new Segment[segmentCount];
+        //映射在通道关闭后仍然有效
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.nativeOrder());
+            boolean reusable = channel.size() == length && header.getLong(0) == MAGIC
+                    && header.getInt(8) == segmentCount && header.getInt(12) == segmentSlots;
+            if (!reusable) {
+                //清空后重新扩展，扩展的部分全部为0
+                header.putLong(0, 0L);
+                channel.truncate(HEADER_SIZE);
+                randomAccessFile.setLength(length);
+            }
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = new Segment(channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + segmentBytes * i, segmentBytes), segmentSlots);
+            }
+            if (!reusable) {
+                header.putInt(8, segmentCount);
+                header.putInt(12, segmentSlots);
+                header.putLong(0, MAGIC);
+                header.force();
+            }
+        }
+        this.segmentMask = segmentCount - 1;
+    }
+
+    private static int segmentCount(int capacity) {
+        return (int) Math.min(MAX_SEGMENTS, Math.max(1L, slotCount(capacity) / MAX_PROBE));
+    }
+
+    private static int segmentSlots(int capacity, int segmentCount) {
+        return (int) Math.min(MAX_SEGMENT_SLOTS, slotCount(capacity) / segmentCount);
+    }
+
+    private static long slotCount(int capacity) {
+        return Long.highestOneBit(Math.max((long) Math.max(capacity, 1) * 4 / 3, MAX_PROBE) * 2 - 1);
+    }
+
+    @Override
+    public long tryIncrement(String key, long timeout, int countMax, boolean sliding, long now) {
+        return tryIncrement(slotHash(hash(key), 0), i -> key, 0, timeout, countMax, sliding, now);
+    }
+
+    @Override
+    public long[] tryIncrementAll(List<String> keys, List<Long> timeouts, List<Integer> countMaxes,
+                                  List<CounterAlgorithmEnum> algorithms, long now) {
+        long[] hashes = new long[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = slotHash(hash(keys.get(i)), 0);
+        }
+        return tryIncrementAll(hashes, keys::get, timeouts, countMaxes, algorithms, now);
+    }
+
+    /**
+     * 组内第i个计数器使用key的哈希派生出的第i个槽，删除key时逐个删除。
+     * 组内计数器的key只在放入堆内时才需要，表未满时不创建
+     */
+    @Override
+    public long[] tryIncrementGroup(String key, List<Long> timeouts, List<Integer> countMaxes,
+                                    List<CounterAlgorithmEnum> algorithms, long now) {
+        long keyHash = hash(key);
+        long[] hashes = new long[timeouts.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = slotHash(keyHash, i);
+        }
+        return tryIncrementAll(hashes, i -> memberKey(key, i), timeouts, countMaxes, algorithms, now);
+    }
+
+    private long[] tryIncrementAll(long[] hashes, OverflowKey overflowKey, List<Long> timeouts, List<Integer> countMaxes,
+                                   List<CounterAlgorithmEnum> algorithms, long now) {
+        for (int i = 0; i < hashes.length; i++) {
+            long retryAfter = tryIncrement(hashes[i], overflowKey, i, timeouts.get(i), countMaxes.get(i),
+                    CounterAlgorithmEnum.SlidingWindow == algorithms.get(i), now);
+            if (retryAfter > 0) {
+                for (int j = 0; j < i; j++) {
+                    add(hashes[j], overflowKey, j, now, -1);
+                }
+                return new long[]{i, retryAfter};
+            }
+        }
+        return new long[]{-1, 0};
+    }
+
+    private long tryIncrement(long hash, OverflowKey overflowKey, int index, long timeout, int countMax, boolean sliding, long now) {
+        if (!inOverflow(overflowKey, index, now)) {
+            Segment segment = segmentFor(hash);
+            synchronized (segment) {
+                int offset = segment.findOrInsert(hash, Math.max(timeout, 1L), now);
+                if (offset >= 0) {
+                    return segment.tryIncrement(offset, now, countMax, sliding);
+                }
+            }
+            overflowed = true;
+        }
+        return overflow.tryIncrement(overflowKey.get(index), timeout, countMax, sliding, now);
+    }
+
+    private void add(long hash, OverflowKey overflowKey, int index, long now, int delta) {
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int offset = segment.find(hash);
+            if (offset >= 0) {
+                segment.add(offset, now, delta);
+                return;
+            }
+        }
+        if (overflowed) {
+            overflow.add(overflowKey.get(index), now, delta);
+        }
+    }
+
+    @Override
+    public void increment(String key, long now) {
+        add(slotHash(hash(key), 0), i -> key, 0, now, 1);
+    }
+
+    @Override
+    public void set(String key, long timeout, int value, long now) {
+        long hash = slotHash(hash(key), 0);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int offset = segment.findOrInsert(hash, Math.max(timeout, 1L), now);
+            if (offset >= 0) {
+                segment.init(offset, hash, Math.max(timeout, 1L), now);
+                segment.add(offset, now, value);
+                return;
+            }
+        }
+        overflowed = true;
+        overflow.set(key, timeout, value, now);
+    }
+
+    @Override
+    public Integer get(String key, long now) {
+        long hash = slotHash(hash(key), 0);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int offset = segment.find(hash);
+            if (offset >= 0) {
+                return segment.current(offset, now);
+            }
+        }
+        return overflowed ? overflow.get(key, now) : null;
+    }
+
+    @Override
+    public void remove(String key) {
+        long keyHash = hash(key);
+        for (int i = 0; ; i++) {
+            long hash = slotHash(keyHash, i);
+            Segment segment = segmentFor(hash);
+            boolean removed;
+            synchronized (segment) {
+                removed = segment.remove(hash);
+            }
+            if (overflowed) {
+                String overflowKey = memberKey(key, i);
+                removed |= overflow.get(overflowKey, System.currentTimeMillis()) != null;
+                overflow.remove(overflowKey);
+            }
+            if (!removed) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 堆外的槽不需要后台清理，只关闭存放溢出计数器的堆内存储
+     */
+    @Override
+    public void close() {
+        overflow.close();
+    }
+
+    /**
+     * 表满之后放入堆内的计数器继续留在堆内，直到过期被清理，避免同一窗口的计数分散在两处
+     */
+    private boolean inOverflow(OverflowKey overflowKey, int index, long now) {
+        return overflowed && overflow.get(overflowKey.get(index), now) != null;
+    }
+
+    private Segment segmentFor(long hash) {
+        //高位选段，低位定位段内的槽
+        return segments[(int) (hash >>> 56) & segmentMask];
+    }
+
+    private static String memberKey(String key, int index) {
+        return index == 0 ? key : key + "#" + index;
+    }
+
+    /**
+     * FNV-1a，逐个字符计算，不产生临时对象
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * 由key的哈希派生第index个槽的哈希，再打散各个比特，避开空槽与删除标记
+     */
+    static long slotHash(long keyHash, int index) {
+        long h = keyHash + index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY || h == TOMBSTONE ? h + 2 : h;
+    }
+
+    /**
+     * 计数器放入堆内时使用的key，只在表满之后调用
+     */
+    @FunctionalInterface
+    private interface OverflowKey {
+        String get(int index);
+    }
+
+    /**
+     * 表的一段，所有方法都在持有该段的锁时调用
+     */
+    private static final class Segment {
+        private final ByteBuffer buffer;
+        private final int mask;
+        private final int probe;
+
+        Segment(ByteBuffer buffer, int slots) {
+            this.buffer = buffer.order(ByteOrder.nativeOrder());
+            this.mask = slots - 1;
+            this.probe = Math.min(MAX_PROBE, slots);
+        }
+
+        int find(long hash) {
+            int start = (int) hash & mask;
+            for (int i = 0; i < probe; i++) {
+                int offset = ((start + i) & mask) * SLOT_SIZE;
+                long slotHash = buffer.getLong(offset + HASH_OFFSET);
+                if (slotHash == hash) {
+                    return offset;
+                }
+                if (slotHash == EMPTY) {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 查找计数器，不存在则占用探测路径上第一个空槽、删除标记或已过期的槽
+         *
+         * @return 槽的偏移量，没有可用的槽返回-1
+         */
+        int findOrInsert(long hash, long timeout, long now) {
+            int start = (int) hash & mask;
+            int free = -1;
+            for (int i = 0; i < probe; i++) {
+                int offset = ((start + i) & mask) * SLOT_SIZE;
+                long slotHash = buffer.getLong(offset + HASH_OFFSET);
+                if (slotHash == hash) {
+                    return offset;
+                }
+                if (slotHash == EMPTY) {
+                    if (free < 0) {
+                        free = offset;
+                    }
+                    break;
+                }
+                if (free < 0 && (slotHash == TOMBSTONE || isExpired(offset, now))) {
+                    free = offset;
+                }
+            }
+            if (free >= 0) {
+                init(free, hash, timeout, now);
+            }
+            return free;
+        }
+
+        boolean remove(long hash) {
+            int offset = find(hash);
+            if (offset < 0) {
+                return false;
+            }
+            //保留探测路径，不能直接置为空槽
+            buffer.putLong(offset + HASH_OFFSET, TOMBSTONE);
+            return true;
+        }
+
+        void init(int offset, long hash, long timeout, long now) {
+            //初始化为两个已经过去的窗口
+            //最后写入哈希，映射到文件时进程在中途崩溃，重启后不会读到不完整的槽
+            int window = LocalCounterStore.windowIndex(now, timeout);
+            buffer.putLong(offset + TIMEOUT_OFFSET, timeout);
+            buffer.putLong(windowOffset(offset, window), LocalCounterStore.pack(window - 2, 0));
+            buffer.putLong(windowOffset(offset, window - 1), LocalCounterStore.pack(window - 3, 0));
+            buffer.putLong(offset + HASH_OFFSET, hash);
+        }
+
+        long tryIncrement(int offset, long now, int countMax, boolean sliding) {
+            long timeout = timeoutOf(offset);
+            int window = LocalCounterStore.windowIndex(now, timeout);
+            int current = count(offset, window);
+            int previous = sliding ? count(offset, window - 1) : 0;
+            long retryAfter = LocalCounterStore.retryAfter(current, previous, timeout, now % timeout, countMax);
+            if (retryAfter == 0) {
+                buffer.putLong(windowOffset(offset, window), LocalCounterStore.pack(window, current + 1));
+            }
+            return retryAfter;
+        }
+
+        void add(int offset, long now, int delta) {
+            int window = LocalCounterStore.windowIndex(now, timeoutOf(offset));
+            long slot = buffer.getLong(windowOffset(offset, window));
+            if (LocalCounterStore.windowOf(slot) != window && delta < 0) {
+                //窗口已经滚动，没有需要撤销的计数
+                return;
+            }
+            buffer.putLong(windowOffset(offset, window), LocalCounterStore.pack(window, Math.max(count(offset, window) + delta, 0)));
+        }
+
+        int current(int offset, long now) {
+            return count(offset, LocalCounterStore.windowIndex(now, timeoutOf(offset)));
+        }
+
+        /**
+         * 当前窗口与上一窗口都没有计数，即可复用
+         */
+        private boolean isExpired(int offset, long now) {
+            int window = LocalCounterStore.windowIndex(now, timeoutOf(offset));
+            for (int i = 0; i < 2; i++) {
+                int slotWindow = LocalCounterStore.windowOf(buffer.getLong(offset + WINDOW_OFFSET + i * 8));
+                if (slotWindow == window || slotWindow == window - 1) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 复用过期的槽时进程崩溃，槽中可能是旧的哈希与新的窗口时长，窗口时长至少为1
+         */
+        private long timeoutOf(int offset) {
+            return Math.max(buffer.getLong(offset + TIMEOUT_OFFSET), 1L);
+        }
+
+        private int count(int offset, int window) {
+            long slot = buffer.getLong(windowOffset(offset, window));
+            return LocalCounterStore.windowOf(slot) == window ? LocalCounterStore.countOf(slot) : 0;
+        }
+
+        private static int windowOffset(int offset, int window) {
+            return offset + WINDOW_OFFSET + (window & 1) * 8;
+        }
+    }
+}
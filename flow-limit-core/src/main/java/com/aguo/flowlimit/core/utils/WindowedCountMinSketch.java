@@ -0,0 +1,170 @@
+package com.aguo.flowlimit.core.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/14 10:05
+ * @Description: 按窗口轮转的Count-Min Sketch，近似统计每个key在当前窗口与上一窗口的计数。
+ * <br/>
+ * 4行计数，每个key在每行对应一个计数，取最小值作为估计，只会高估不会低估。
+ * 使用三张表：当前窗口、上一窗口与一张已经清空的备用表，内存固定，与key的数量无关。
+ * 窗口滚动只替换一次引用，备用表成为当前窗口；滚出的表延迟半个窗口后由后台线程清空，作为下一次的备用表，
+ * 请求线程不清空表，滚动前读到旧表的线程仍能读到完整的计数。
+ * <br/>
+ * 自增是每行一次原子操作，常数时间。
+ */
+public class WindowedCountMinSketch {
+    private static final int DEPTH = 4;
+    /**
+     * 清空滚出的表
+     */
+    private static final ScheduledExecutorService CLEAR_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "flow-limit-sketch-clear");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 窗口时长，单位毫秒
+     */
+    private final long timeout;
+    private final int width;
+    /**
+     * 当前窗口与上一窗口，滚动时整体替换
+     */
+    private volatile Windows windows;
+    /**
+     * 已经清空的备用表，为null表示后台线程尚未清空完成
+     */
+    private volatile AtomicIntegerArray spare;
+
+    /**
+     * @param timeout 窗口时长，单位毫秒
+     * @param width   每行的计数数量，向上取整为2的幂
+     * @param now     当前时间，单位毫秒
+     */
+    public WindowedCountMinSketch(long timeout, int width, long now) {
+        this.timeout = Math.max(timeout, 1L);
+        this.width = Integer.highestOneBit(Math.max(Math.min(width, 1 << 26), 16) * 2 - 1);
+        int window = LocalCounterStore.windowIndex(now, this.timeout);
+        this.windows = new Windows(new Window(window, newTable()), new Window(window - 1, newTable()));
+        this.spare = newTable();
+    }
+
+    /**
+     * 当前窗口的计数加一
+     *
+     * @param hash key的64位哈希
+     * @return 自增之后的计数估计
+     */
+    public int increment(long hash, long now) {
+        Window window = windowsAt(LocalCounterStore.windowIndex(now, timeout)).current;
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, window.counts.incrementAndGet(indexOf(hash, row)));
+        }
+        return estimate;
+    }
+
+    /**
+     * 撤销当前窗口的一次自增。窗口已经滚动则无需撤销
+     */
+    public void decrement(long hash, long now) {
+        Window window = windows.current;
+        if (window.index != LocalCounterStore.windowIndex(now, timeout)) {
+            return;
+        }
+        for (int row = 0; row < DEPTH; row++) {
+            window.counts.decrementAndGet(indexOf(hash, row));
+        }
+    }
+
+    /**
+     * 当前窗口的计数估计
+     */
+    public int estimate(long hash, long now) {
+        return estimate(windowsAt(LocalCounterStore.windowIndex(now, timeout)).current, hash);
+    }
+
+    /**
+     * 上一窗口的计数估计
+     */
+    public int previousEstimate(long hash, long now) {
+        int index = LocalCounterStore.windowIndex(now, timeout);
+        Window window = windowsAt(index).previous;
+        return window.index == index - 1 ? estimate(window, hash) : 0;
+    }
+
+    private int estimate(Window window, long hash) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, window.counts.get(indexOf(hash, row)));
+        }
+        return Math.max(estimate, 0);
+    }
+
+    private Windows windowsAt(int index) {
+        Windows current = windows;
+        return current.current.index == index ? current : rotate(index);
+    }
+
+    /**
+     * 窗口滚动：备用表成为当前窗口，当前窗口成为上一窗口，只替换一次引用。
+     * 间隔超过一个窗口时，上一窗口的序号对不上，估计为0，无需清空。
+     * <br/>
+     * 滚出的表延迟半个窗口再清空，期间停顿的线程仍能读到完整的计数；停顿更久的线程可能把一次自增记到清空后的表中，只会多计一次。
+     * 窗口很短、后台线程尚未清空完成时，新建一张表。
+     */
+    private synchronized Windows rotate(int index) {
+        Windows current = windows;
+        if (index - current.current.index <= 0) {
+            //时间回拨或者其他线程已经滚动
+            return current;
+        }
+        AtomicIntegerArray table = spare;
+        spare = null;
+        Windows next = new Windows(new Window(index, table != null ? table : newTable()), current.current);
+        windows = next;
+        AtomicIntegerArray recycled = current.previous.counts;
+        CLEAR_EXECUTOR.schedule(() -> {
+            for (int i = 0; i < recycled.length(); i++) {
+                recycled.lazySet(i, 0);
+            }
+            //清空的写入在volatile写之前，取到备用表的线程能看到清空后的表
+            spare = recycled;
+        }, timeout / 2, TimeUnit.MILLISECONDS);
+        return next;
+    }
+
+    private AtomicIntegerArray newTable() {
+        return new AtomicIntegerArray(DEPTH * width);
+    }
+
+    private int indexOf(long hash, int row) {
+        return row * width + ((int) OffHeapCounterTable.slotHash(hash, row) & (width - 1));
+    }
+
+    private static final class Windows {
+        private final Window current;
+        private final Window previous;
+
+        Windows(Window current, Window previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    private static final class Window {
+        private final int index;
+        private final AtomicIntegerArray counts;
+
+        Window(int index, AtomicIntegerArray counts) {
+            this.index = index;
+            this.counts = counts;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.aguo.flowlimit.core.aspect;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 18:40
+ * @Description: 令牌桶切面的测试：接口的令牌不足时归还用户的令牌，被拒绝的请求不占用用户的额度；
+ * 单独配置的接口使用自己的令牌桶，按“类名.方法名”匹配处理方法。
+ */
+class AbstractGlobalTokenBucketFlowLimitAspectTest {
+
+    /**
+     * 接口每秒5个令牌，用户一共2个令牌且几乎不再补充
+     */
+    @Test
+    void endpointRejectionGivesBackUserPermit() throws InterruptedException {
+        TestAspect aspect = new TestAspect();
+        aspect.build(5, 0, 0, 1);
+        aspect.buildUserBucket(0.001, 2, 32);
+
+        assertEquals(0, aspect.reserveProcess(null, false));
+        //接口的下一个令牌在200毫秒后
+        assertEquals(-1, aspect.reserveProcess(null, false));
+
+        TimeUnit.MILLISECONDS.sleep(250);
+        //没有归还时用户的令牌已经用完
+        assertEquals(0, aspect.reserveProcess(null, false));
+        TimeUnit.MILLISECONDS.sleep(250);
+        assertEquals(-1, aspect.reserveProcess(null, false));
+    }
+
+    @Test
+    void configuredEndpointUsesItsOwnBucket() throws NoSuchMethodException {
+        TestAspect aspect = new TestAspect();
+        aspect.build(1_000, 0, 0, 1);
+        aspect.buildEndpoint("OrderController.create", 1, 0);
+        JoinPoint create = joinPoint(OrderController.class.getMethod("create"));
+        JoinPoint list = joinPoint(OrderController.class.getMethod("list"));
+
+        assertEquals(0, aspect.reserveProcess(create, false));
+        assertEquals(-1, aspect.reserveProcess(create, false));
+        //其他接口使用共用的令牌桶，不受影响
+        assertEquals(0, aspect.reserveProcess(list, false));
+        assertEquals(-1, aspect.reserveProcess(create, false));
+    }
+
+    @Test
+    void matchesSimpleAndQualifiedClassNames() throws NoSuchMethodException {
+        Method create = OrderController.class.getMethod("create");
+
+        assertTrue(AbstractGlobalTokenBucketFlowLimitAspect.matchMethod("OrderController.create", create));
+        assertTrue(AbstractGlobalTokenBucketFlowLimitAspect.matchMethod(OrderController.class.getName() + ".create", create));
+        assertFalse(AbstractGlobalTokenBucketFlowLimitAspect.matchMethod("OrderController.list", create));
+        assertFalse(AbstractGlobalTokenBucketFlowLimitAspect.matchMethod("create", create));
+    }
+
+    private static JoinPoint joinPoint(Method method) {
+        MethodSignature signature = mock(MethodSignature.class);
+        when(signature.getMethod()).thenReturn(method);
+        JoinPoint joinPoint = mock(JoinPoint.class);
+        when(joinPoint.getSignature()).thenReturn(signature);
+        return joinPoint;
+    }
+
+    public static class OrderController {
+        public void create() {
+        }
+
+        public void list() {
+        }
+    }
+
+    private static class TestAspect extends AbstractGlobalTokenBucketFlowLimitAspect {
+        @Override
+        public void pointcut() {
+        }
+
+        @Override
+        protected String appendCounterKeyWithUserId(JoinPoint joinPoint) {
+            return "user";
+        }
+
+        @Override
+        protected boolean filterRequest(JoinPoint obj) {
+            return false;
+        }
+
+        @Override
+        protected Object rejectHandle(JoinPoint obj) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.aguo.flowlimit.core.aspect;
+
+import com.aguo.flowlimit.core.enums.CounterKeyLayoutEnum;
+import com.aguo.flowlimit.core.utils.FlowLimitCacheHelper;
+import org.aspectj.lang.JoinPoint;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 18:00
+ * @Description: 全局计数器分片的测试：各分片的限流次数之和等于总数，分片用完时尝试下一个分片，
+ * 所有分片都用完才限流。Hash打包布局下用户的所有计数器一次判断，拒绝期记录在用户的Hash上
+ */
+class AbstractRedisFlowLimitAspectTest {
+    private static final int SHARDS = 4;
+
+    private final FlowLimitCacheHelper cacheHelper = mock(FlowLimitCacheHelper.class);
+    private final Set<String> exhaustedShards = new HashSet<>();
+    private TestAspect aspect;
+
+    @BeforeEach
+    void setUp() {
+        when(cacheHelper.increaseKeysSafely(anyList(), anyList(), anyList(), anyList())).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(0);
+            return exhaustedShards.contains(keys.get(0)) ? new long[]{0, 1_000L} : new long[]{-1, 0};
+        });
+        aspect = new TestAspect();
+        aspect.build(TimeUnit.SECONDS, cacheHelper, true, "flow:", Collections.singletonList("second:"),
+                Collections.singletonList(1L), Collections.singletonList(10));
+        aspect.buildKeyLayout(CounterKeyLayoutEnum.ClusterHashTag, SHARDS);
+    }
+
+    @Test
+    void shardLimitsAddUpToTotal() {
+        Set<String> shards = new HashSet<>();
+        int total = 0;
+        for (int i = 0; i < 200 && shards.size() < SHARDS; i++) {
+            ArgumentCaptor<List<String>> keys = captor();
+            ArgumentCaptor<List<Integer>> limits = captor();
+            assertFalse(aspect.limitProcess(null));
+            verify(cacheHelper, times(i + 1)).increaseKeysSafely(keys.capture(), anyList(), limits.capture(), anyList());
+            if (shards.add(keys.getValue().get(0))) {
+                total += limits.getValue().get(0);
+            }
+        }
+
+        assertEquals(SHARDS, shards.size());
+        assertEquals(10, total);
+    }
+
+    @Test
+    void fallsThroughToNextShard() {
+        for (int shard = 0; shard < SHARDS - 1; shard++) {
+            exhaustedShards.add(shardKey(shard));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertFalse(aspect.limitProcess(null));
+        }
+    }
+
+    @Test
+    void limitsOnlyWhenAllShardsAreExhausted() {
+        for (int shard = 0; shard < SHARDS; shard++) {
+            exhaustedShards.add(shardKey(shard));
+        }
+
+        assertTrue(aspect.limitProcess(null));
+        verify(cacheHelper, times(SHARDS)).increaseKeysSafely(anyList(), anyList(), anyList(), anyList());
+    }
+
+    @Test
+    void subjectHashLayoutUsesOneKeyPerUser() {
+        TestAspect userAspect = new TestAspect("42");
+        userAspect.build(TimeUnit.SECONDS, cacheHelper, false, "flow:", Arrays.asList("second:", "minute:"),
+                Arrays.asList(1L, 60L), Arrays.asList(10, 100));
+        userAspect.buildKeyLayout(CounterKeyLayoutEnum.SubjectHash, SHARDS);
+        userAspect.buildDenyCache(100);
+        when(cacheHelper.increaseHashKeySafely(anyString(), anyList(), anyList(), anyList())).thenReturn(new long[]{1, 30_000L});
+
+        assertTrue(userAspect.limitProcess(null));
+        //第二个计数器触发限制，拒绝期记录在唯一的key上，之后直接在本地拒绝
+        assertTrue(userAspect.limitProcess(null));
+
+        verify(cacheHelper, times(1)).increaseHashKeySafely(eq("flow:subject:aspect:userId:42"),
+                eq(Arrays.asList(1_000L, 60_000L)), eq(Arrays.asList(10, 100)), anyList());
+        verify(cacheHelper, never()).increaseKeysSafely(anyList(), anyList(), anyList(), anyList());
+    }
+
+    private static String shardKey(int shard) {
+        return "flow:second:aspect:{flow:global:" + shard + "}";
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ArgumentCaptor<List<T>> captor() {
+        return ArgumentCaptor.forClass((Class<List<T>>) (Class<?>) List.class);
+    }
+
+    private static class TestAspect extends AbstractRedisFlowLimitAspect {
+        private final String userId;
+
+        TestAspect() {
+            this(null);
+        }
+
+        TestAspect(String userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public void pointcut() {
+        }
+
+        @Override
+        protected String appendCounterKeyWithUserId(JoinPoint joinPoint) {
+            return userId;
+        }
+
+        @Override
+        protected boolean filterRequest(JoinPoint obj) {
+            return false;
+        }
+
+        @Override
+        protected boolean beforeLimitingHappenWhetherContinueLimit(JoinPoint obj) {
+            return false;
+        }
+
+        @Override
+        protected Object rejectHandle(JoinPoint obj) {
+            return null;
+        }
+    }
+}
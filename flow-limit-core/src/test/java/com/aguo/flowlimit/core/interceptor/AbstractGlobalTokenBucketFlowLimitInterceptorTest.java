@@ -0,0 +1,131 @@
+package com.aguo.flowlimit.core.interceptor;
+
+import com.aguo.flowlimit.core.utils.InterceptorUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistration;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 17:00
+ * @Description: 令牌桶拦截器异步等待的测试：需要等待的请求挂起后按时重新分派，重新分派时不再获取令牌，
+ * 等待队列已满时需要等待的请求直接拒绝
+ * <br/>
+ * 每秒10个令牌，没有预热期，第一个请求立即获取令牌，之后每个请求依次多等待100毫秒。
+ */
+class AbstractGlobalTokenBucketFlowLimitInterceptorTest {
+    private final AtomicInteger rejected = new AtomicInteger();
+    private TestInterceptor interceptor;
+
+    @BeforeEach
+    void setUp() {
+        interceptor = new TestInterceptor();
+        interceptor.build(interceptor, 10, 0, 5_000L, 1);
+        interceptor.buildAsyncWait(1);
+    }
+
+    @Test
+    void suspendsAndDispatchesWaitingRequest() throws Exception {
+        assertTrue(preHandle(newRequest()));
+
+        MockHttpServletRequest waiting = newRequest();
+        assertFalse(preHandle(waiting));
+        assertTrue(waiting.isAsyncStarted());
+        assertEquals(0, rejected.get());
+
+        MockAsyncContext asyncContext = (MockAsyncContext) waiting.getAsyncContext();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (asyncContext.getDispatchedPath() == null && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertNotNull(asyncContext.getDispatchedPath());
+    }
+
+    @Test
+    void dispatchedRequestPassesWithoutAnotherToken() throws Exception {
+        assertTrue(preHandle(newRequest()));
+        MockHttpServletRequest waiting = newRequest();
+        assertFalse(preHandle(waiting));
+
+        //重新分派：同一个请求以ASYNC类型再次经过拦截器
+        waiting.setDispatcherType(DispatcherType.ASYNC);
+        waiting.setAsyncStarted(false);
+
+        assertTrue(preHandle(waiting));
+        assertFalse(waiting.isAsyncStarted());
+        assertEquals(0, rejected.get());
+    }
+
+    @Test
+    void rejectsWaitingRequestWhenQueueIsFull() throws Exception {
+        assertTrue(preHandle(newRequest()));
+        assertFalse(preHandle(newRequest()));
+
+        MockHttpServletRequest overflow = newRequest();
+        assertFalse(preHandle(overflow));
+
+        assertFalse(overflow.isAsyncStarted());
+        assertEquals(1, rejected.get());
+    }
+
+    @Test
+    void otherInterceptorsSkipOnlyRequestsTheyHandled() {
+        String attribute = InterceptorUtil.handledAttribute(interceptor);
+        MockHttpServletRequest request = newRequest();
+
+        assertFalse(InterceptorUtil.isHandledBefore(request, attribute));
+        request.setDispatcherType(DispatcherType.ASYNC);
+        assertTrue(InterceptorUtil.isHandledBefore(request, attribute));
+
+        //排在挂起请求的拦截器之后的拦截器在之前的分派中没有执行，重新分派时照常处理
+        MockHttpServletRequest resumed = newRequest();
+        resumed.setDispatcherType(DispatcherType.ASYNC);
+        assertFalse(InterceptorUtil.isHandledBefore(resumed, attribute));
+    }
+
+    private boolean preHandle(MockHttpServletRequest request) throws Exception {
+        return interceptor.preHandle(request, new MockHttpServletResponse(), new Object());
+    }
+
+    private static MockHttpServletRequest newRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/order");
+        request.setAsyncSupported(true);
+        return request;
+    }
+
+    private class TestInterceptor extends AbstractGlobalTokenBucketFlowLimitInterceptor {
+        @Override
+        public boolean filterRequest(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            return false;
+        }
+
+        @Override
+        public boolean beforeLimitingHappenWhetherContinueLimit(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            return false;
+        }
+
+        @Override
+        public Object rejectHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            rejected.incrementAndGet();
+            return Boolean.FALSE;
+        }
+
+        @Override
+        public void setInterceptorPathPatterns(InterceptorRegistration registry) {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 19:10
+ * @Description: 计数器增量日志的测试：按窗口记录当前与上一窗口的增量，计数器数量有上限，
+ * 写回时取出所有增量，写回失败不影响之后的写回
+ */
+class CounterDeltaJournalTest {
+    private static final long TIMEOUT = 1_000L;
+    private static final long NOW = 1_600_000_000_000L;
+    private static final List<Long> TIMEOUTS = Arrays.asList(TIMEOUT, TIMEOUT);
+    private static final List<CounterAlgorithmEnum> ALGORITHMS =
+            Arrays.asList(CounterAlgorithmEnum.FixedWindow, CounterAlgorithmEnum.SlidingWindow);
+
+    @Test
+    void keepsCurrentAndPreviousWindow() throws Exception {
+        CounterDeltaJournal journal = new CounterDeltaJournal(100);
+        List<String> keys = Arrays.asList("second", "minute");
+        long window = NOW / TIMEOUT;
+        journal.record(keys, TIMEOUTS, ALGORITHMS, NOW);
+        journal.record(keys, TIMEOUTS, ALGORITHMS, NOW);
+        journal.record(keys, TIMEOUTS, ALGORITHMS, NOW + TIMEOUT);
+
+        List<CounterDeltaJournal.Delta> deltas = drain(journal);
+
+        assertEquals(2, deltas.size());
+        for (CounterDeltaJournal.Delta delta : deltas) {
+            assertEquals(1, delta.countAt(window + 1));
+            assertEquals(2, delta.previousCountAt(window + 1));
+            //写回时窗口已经滚动，当前窗口没有增量
+            assertEquals(0, delta.countAt(window + 2));
+            assertEquals(1, delta.previousCountAt(window + 2));
+            assertEquals(0, delta.previousCountAt(window + 3));
+            assertEquals("minute".equals(delta.getKey()), delta.isSliding());
+        }
+    }
+
+    @Test
+    void skippedWindowDropsPreviousCount() throws Exception {
+        CounterDeltaJournal journal = new CounterDeltaJournal(100);
+        List<String> keys = Collections.singletonList("second");
+        journal.record(keys, TIMEOUTS, ALGORITHMS, NOW);
+        journal.record(keys, TIMEOUTS, ALGORITHMS, NOW + 2 * TIMEOUT);
+
+        CounterDeltaJournal.Delta delta = drain(journal).get(0);
+
+        long window = (NOW + 2 * TIMEOUT) / TIMEOUT;
+        assertEquals(1, delta.countAt(window));
+        assertEquals(0, delta.previousCountAt(window));
+    }
+
+    @Test
+    void stopsRecordingNewCountersAtMaxEntries() throws Exception {
+        CounterDeltaJournal journal = new CounterDeltaJournal(1);
+        journal.record(Collections.singletonList("first"), TIMEOUTS, ALGORITHMS, NOW);
+        journal.record(Collections.singletonList("second"), TIMEOUTS, ALGORITHMS, NOW);
+        //已经记录的计数器继续累加
+        journal.record(Collections.singletonList("first"), TIMEOUTS, ALGORITHMS, NOW);
+
+        List<CounterDeltaJournal.Delta> deltas = drain(journal);
+
+        assertEquals(1, deltas.size());
+        assertEquals("first", deltas.get(0).getKey());
+        assertEquals(2, deltas.get(0).countAt(NOW / TIMEOUT));
+    }
+
+    @Test
+    void failedFlushDoesNotBlockLaterFlushes() throws Exception {
+        CounterDeltaJournal journal = new CounterDeltaJournal(100);
+        journal.record(Collections.singletonList("second"), TIMEOUTS, ALGORITHMS, NOW);
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        journal.reconcile(deltas -> {
+            failed.complete(null);
+            throw new IllegalStateException("Redis不可用");
+        });
+        failed.get(5, TimeUnit.SECONDS);
+
+        journal.record(Collections.singletonList("second"), TIMEOUTS, ALGORITHMS, NOW);
+
+        //写回失败的增量已经丢弃，只剩之后记录的一次
+        assertEquals(1, drain(journal).get(0).countAt(NOW / TIMEOUT));
+    }
+
+    @Test
+    void emptyJournalDoesNotFlush() {
+        CounterDeltaJournal journal = new CounterDeltaJournal(100);
+        List<Collection<CounterDeltaJournal.Delta>> flushed = new ArrayList<>();
+
+        journal.reconcile(flushed::add);
+
+        assertTrue(flushed.isEmpty());
+    }
+
+    private static List<CounterDeltaJournal.Delta> drain(CounterDeltaJournal journal) throws Exception {
+        CompletableFuture<List<CounterDeltaJournal.Delta>> flushed = new CompletableFuture<>();
+        journal.reconcile(deltas -> flushed.complete(new ArrayList<>(deltas)));
+        return flushed.get(5, TimeUnit.SECONDS);
+    }
+}
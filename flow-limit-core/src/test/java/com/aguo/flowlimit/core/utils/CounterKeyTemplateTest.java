@@ -0,0 +1,49 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterKeyLayoutEnum;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 16:00
+ * @Description: 计数器key模板的测试：同一用户复用同一个key列表与编码后的字节数组，其他key列表按UTF-8编码
+ */
+class CounterKeyTemplateTest {
+    private final CounterKeyTemplate template = new CounterKeyTemplate(
+            Arrays.asList("flow:second:", "flow:minute:"), CounterKeyLayoutEnum.ClusterHashTag, null);
+
+    @Test
+    void reusesKeysAndRawKeysPerSubject() {
+        List<String> keys = template.getKeys("用户1");
+
+        assertEquals(Arrays.asList("flow:second:userId:{用户1}", "flow:minute:userId:{用户1}"), keys);
+        assertSame(keys, template.getKeys("用户1"));
+        byte[][] rawKeys = CounterKeyTemplate.rawKeys(keys);
+        assertSame(rawKeys, CounterKeyTemplate.rawKeys(template.getKeys("用户1")));
+        assertArrayEquals("flow:minute:userId:{用户1}".getBytes(StandardCharsets.UTF_8), rawKeys[1]);
+    }
+
+    @Test
+    void subjectHashLayoutHasOneKey() {
+        CounterKeyTemplate hashTemplate = new CounterKeyTemplate(
+                Arrays.asList("flow:second:", "flow:minute:"), CounterKeyLayoutEnum.SubjectHash, "flow:subject:");
+
+        assertEquals(Collections.singletonList("flow:subject:userId:1"), hashTemplate.getKeys("1"));
+    }
+
+    @Test
+    void encodesOtherKeyLists() {
+        byte[][] rawKeys = CounterKeyTemplate.rawKeys(Collections.singletonList("gcra:用户"));
+
+        assertArrayEquals("gcra:用户".getBytes(StandardCharsets.UTF_8), rawKeys[0]);
+    }
+}
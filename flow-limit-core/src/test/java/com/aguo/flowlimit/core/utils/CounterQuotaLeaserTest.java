@@ -0,0 +1,122 @@
+package com.aguo.flowlimit.core.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 16:30
+ * @Description: 计数器配额租借的测试：租约内的许可在本地消费，多个计数器中有一个拒绝时退回已获取的许可，
+ * 租约失效时归还未用完的许可，计数器用完后直到窗口结束都不再访问数据源
+ */
+class CounterQuotaLeaserTest {
+    private static final long TIMEOUT = 60_000L;
+    private static final long LEASE_TIME = 60_000L;
+
+    private final FlowLimitCacheHelper cacheHelper = mock(FlowLimitCacheHelper.class);
+
+    @Test
+    void consumesLeaseLocally() {
+        when(cacheHelper.leasePermits(eq("a"), anyLong(), anyInt(), anyInt())).thenReturn(new long[]{5, TIMEOUT});
+        CounterQuotaLeaser leaser = new CounterQuotaLeaser(cacheHelper, 100, LEASE_TIME);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(-1L, acquire(leaser, "a")[0]);
+        }
+        verify(cacheHelper, times(1)).leasePermits(eq("a"), anyLong(), anyInt(), anyInt());
+
+        assertEquals(-1L, acquire(leaser, "a")[0]);
+        verify(cacheHelper, times(2)).leasePermits(eq("a"), anyLong(), anyInt(), anyInt());
+    }
+
+    @Test
+    void rollsBackEarlierCountersWhenOneIsRejected() {
+        when(cacheHelper.leasePermits(eq("a"), anyLong(), anyInt(), anyInt())).thenReturn(new long[]{5, TIMEOUT});
+        when(cacheHelper.leasePermits(eq("b"), anyLong(), anyInt(), anyInt())).thenReturn(new long[]{0, 1_000L});
+        CounterQuotaLeaser leaser = new CounterQuotaLeaser(cacheHelper, 100, LEASE_TIME);
+
+        long[] result = leaser.tryAcquire(Arrays.asList("a", "b"), Arrays.asList(TIMEOUT, TIMEOUT), Arrays.asList(100, 100));
+
+        assertEquals(1L, result[0]);
+        //退回后a的租约中仍有5个许可
+        for (int i = 0; i < 5; i++) {
+            assertEquals(-1L, acquire(leaser, "a")[0]);
+        }
+        verify(cacheHelper, times(1)).leasePermits(eq("a"), anyLong(), anyInt(), anyInt());
+    }
+
+    @Test
+    void exhaustedCounterIsRejectedUntilWindowEnds() {
+        when(cacheHelper.leasePermits(eq("a"), anyLong(), anyInt(), anyInt())).thenReturn(new long[]{0, 30_000L});
+        CounterQuotaLeaser leaser = new CounterQuotaLeaser(cacheHelper, 100, LEASE_TIME);
+
+        long[] first = acquire(leaser, "a");
+        long[] second = acquire(leaser, "a");
+
+        assertEquals(0L, first[0]);
+        assertEquals(30_000L, first[1]);
+        assertEquals(0L, second[0]);
+        assertTrue(second[1] > 0 && second[1] <= 30_000L);
+        verify(cacheHelper, times(1)).leasePermits(eq("a"), anyLong(), anyInt(), anyInt());
+    }
+
+    @Test
+    void unknownWindowDoesNotBlockLaterLeases() {
+        //计数器没有过期时间，剩余有效时长为-1
+        when(cacheHelper.leasePermits(eq("a"), anyLong(), anyInt(), anyInt())).thenReturn(new long[]{0, -1L});
+        CounterQuotaLeaser leaser = new CounterQuotaLeaser(cacheHelper, 100, LEASE_TIME);
+
+        assertArrayEquals(new long[]{0, 0}, acquire(leaser, "a"));
+        acquire(leaser, "a");
+
+        verify(cacheHelper, times(2)).leasePermits(eq("a"), anyLong(), anyInt(), anyInt());
+    }
+
+    @Test
+    void givesBackUnusedPermitsWhenLeaseExpires() throws InterruptedException {
+        when(cacheHelper.leasePermits(eq("a"), anyLong(), anyInt(), anyInt())).thenReturn(new long[]{5, TIMEOUT});
+        CounterQuotaLeaser leaser = new CounterQuotaLeaser(cacheHelper, 100, 1L);
+
+        acquire(leaser, "a");
+        TimeUnit.MILLISECONDS.sleep(5);
+        acquire(leaser, "a");
+
+        //第一个租约用掉1个，归还4个。租约可能已经因长时间未访问被移除，此时在移除监听器中异步归还
+        verify(cacheHelper, timeout(5_000L).atLeastOnce()).returnPermits(eq("a"), eq(4L), eq(TIMEOUT), anyLong());
+    }
+
+    @Test
+    void doesNotGiveBackAfterWindowEnds() throws InterruptedException {
+        when(cacheHelper.leasePermits(eq("a"), anyLong(), anyInt(), anyInt())).thenReturn(new long[]{5, 1L});
+        CounterQuotaLeaser leaser = new CounterQuotaLeaser(cacheHelper, 100, LEASE_TIME);
+
+        acquire(leaser, "a");
+        TimeUnit.MILLISECONDS.sleep(5);
+        acquire(leaser, "a");
+
+        verify(cacheHelper, never()).returnPermits(anyString(), anyLong(), anyLong(), anyLong());
+    }
+
+    private static long[] acquire(CounterQuotaLeaser leaser, String key) {
+        List<String> keys = Collections.singletonList(key);
+        return leaser.tryAcquire(keys, Collections.singletonList(TIMEOUT), Collections.singletonList(100));
+    }
+}
@@ -0,0 +1,109 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CacheDataSourceTypeEnum;
+import com.aguo.flowlimit.core.enums.CircuitBreakerStateEnum;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 15:00
+ * @Description: 数据源工厂的测试：Redis调用失败时由本地数据源判断，熔断器打开之前失败的请求同样受限流
+ */
+class FlowLimitCacheHelperTest {
+    private FlowLimitCacheHelper.CacheHelperFactory factory;
+
+    @BeforeEach
+    void setUp() {
+        //策略是静态的，构建一个使用Redis策略的帮助器即可
+        new FlowLimitCacheHelper(CacheDataSourceTypeEnum.Redis, null, Collections.emptyList(), TimeUnit.MILLISECONDS);
+        factory = new FlowLimitCacheHelper.CacheHelperFactory();
+        factory.addStrategyService(CacheDataSourceTypeEnum.Redis, mock(FlowLimitCacheHelper.IFlowLimitStrategyService.class,
+                invocation -> {
+                    throw new IllegalStateException("Redis不可用");
+                }));
+        factory.addStrategyService(CacheDataSourceTypeEnum.Local,
+                new FlowLimitCacheHelper.LocalStrategyService(Collections.emptyList(), TimeUnit.MILLISECONDS));
+        factory.setCircuitBreaker(new FlowLimitCircuitBreaker(50, 80, 100L, 100, 20, 60_000L, 1_000L, 10,
+                () -> false, null));
+    }
+
+    @Test
+    void failedRedisCallIsDecidedByLocalStore() {
+        assertFalse(factory.increaseKeySafely("counter", 60_000L, 2));
+        assertFalse(factory.increaseKeySafely("counter", 60_000L, 2));
+        //熔断器尚未打开，第三次仍然访问Redis失败，由本地计数判断
+        assertTrue(factory.increaseKeySafely("counter", 60_000L, 2));
+        assertEquals(CircuitBreakerStateEnum.Closed, factory.getCircuitBreaker().getState());
+    }
+
+    @Test
+    void failedCallsAreJournaledForReconcile() throws Exception {
+        CounterDeltaJournal journal = new CounterDeltaJournal(16);
+        factory.setDeltaJournal(journal);
+
+        factory.increaseKeySafely("counter", 60_000L, 2);
+        factory.increaseKeySafely("counter", 60_000L, 2);
+        factory.increaseKeySafely("counter", 60_000L, 2);
+
+        CompletableFuture<Collection<CounterDeltaJournal.Delta>> flushed = new CompletableFuture<>();
+        journal.reconcile(flushed::complete);
+        Collection<CounterDeltaJournal.Delta> deltas = flushed.get(5, TimeUnit.SECONDS);
+        assertEquals(1, deltas.size());
+        CounterDeltaJournal.Delta delta = deltas.iterator().next();
+        //只记录本地放行的两次
+        assertEquals(2, delta.countAt(System.currentTimeMillis() / delta.getTimeout()));
+    }
+
+    @Test
+    void timelyRedisResultDoesNotTouchLocalStore() {
+        CompletableFuture<Boolean> pending = new CompletableFuture<>();
+        FlowLimitCacheHelper.IFlowLimitAsyncStrategyService async = mock(FlowLimitCacheHelper.IFlowLimitAsyncStrategyService.class);
+        when(async.increaseKeySafelyAsync(anyString(), anyLong(), anyInt()))
+                .thenReturn(CompletableFuture.completedFuture(false), CompletableFuture.completedFuture(false),
+                        CompletableFuture.completedFuture(false), pending);
+        factory.setAsyncStrategyService(async);
+        factory.setLatencyBudgetNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        CounterDeltaJournal journal = new CounterDeltaJournal(16);
+        factory.setDeltaJournal(journal);
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(factory.increaseKeySafely("counter", 60_000L, 2));
+        }
+        //超时后由本地数据源判断，按时返回的三次没有在本地计数
+        assertFalse(factory.increaseKeySafely("counter", 60_000L, 2));
+        assertFalse(factory.increaseKeySafely("counter", 60_000L, 2));
+        assertTrue(factory.increaseKeySafely("counter", 60_000L, 2));
+    }
+
+    @Test
+    void timedOutCallsAreJournaled() throws Exception {
+        FlowLimitCacheHelper.IFlowLimitAsyncStrategyService async = mock(FlowLimitCacheHelper.IFlowLimitAsyncStrategyService.class);
+        when(async.increaseKeySafelyAsync(anyString(), anyLong(), anyInt())).thenReturn(new CompletableFuture<>());
+        factory.setAsyncStrategyService(async);
+        factory.setLatencyBudgetNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        CounterDeltaJournal journal = new CounterDeltaJournal(16);
+        factory.setDeltaJournal(journal);
+
+        assertFalse(factory.increaseKeySafely("counter", 60_000L, 2));
+
+        CompletableFuture<Collection<CounterDeltaJournal.Delta>> flushed = new CompletableFuture<>();
+        journal.reconcile(flushed::complete);
+        CounterDeltaJournal.Delta delta = flushed.get(5, TimeUnit.SECONDS).iterator().next();
+        assertEquals(1, delta.countAt(System.currentTimeMillis() / delta.getTimeout()));
+    }
+}
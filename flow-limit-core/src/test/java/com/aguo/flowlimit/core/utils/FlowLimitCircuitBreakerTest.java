@@ -0,0 +1,116 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CircuitBreakerStateEnum;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 10:30
+ * @Description: 熔断器状态切换的测试：关闭 -> 打开 -> 半开 -> 关闭/打开
+ */
+class FlowLimitCircuitBreakerTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final AtomicBoolean healthy = new AtomicBoolean();
+    private final List<CircuitBreakerStateEnum> transitions = new CopyOnWriteArrayList<>();
+
+    /**
+     * 失败率50%，慢调用率80%，慢调用100毫秒，统计最近10次，至少4次，打开后立即探测，半开放行2个请求
+     */
+    private FlowLimitCircuitBreaker newBreaker() {
+        return new FlowLimitCircuitBreaker(50, 80, 100L, 10, 4, 0L, 1L, 2,
+                healthy::get, transitions::add);
+    }
+
+    @Test
+    void opensWhenFailureRateReachesThreshold() {
+        FlowLimitCircuitBreaker breaker = newBreaker();
+        breaker.onError(FAST);
+        breaker.onError(FAST);
+        breaker.onSuccess(FAST);
+        //未达到最少调用次数，不计算失败率
+        assertEquals(CircuitBreakerStateEnum.Closed, breaker.getState());
+
+        breaker.onSuccess(FAST);
+
+        assertEquals(CircuitBreakerStateEnum.Open, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    void opensWhenSlowCallRateReachesThreshold() {
+        FlowLimitCircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 5; i++) {
+            breaker.onSuccess(i == 0 ? FAST : SLOW);
+        }
+
+        assertEquals(CircuitBreakerStateEnum.Open, breaker.getState());
+    }
+
+    @Test
+    void closesAfterHalfOpenCallsSucceed() throws InterruptedException {
+        FlowLimitCircuitBreaker breaker = openedBreaker();
+        healthy.set(true);
+        awaitState(breaker, CircuitBreakerStateEnum.HalfOpen);
+
+        assertTrue(breaker.tryAcquirePermission());
+        assertTrue(breaker.tryAcquirePermission());
+        //半开状态只放行permittedCallsInHalfOpenState个请求
+        assertFalse(breaker.tryAcquirePermission());
+        breaker.onSuccess(FAST);
+        breaker.onSuccess(FAST);
+
+        assertEquals(CircuitBreakerStateEnum.Closed, breaker.getState());
+        assertTrue(breaker.tryAcquirePermission());
+        assertEquals(CircuitBreakerStateEnum.Closed, transitions.get(transitions.size() - 1));
+    }
+
+    @Test
+    void reopensWhenHalfOpenCallFails() throws InterruptedException {
+        FlowLimitCircuitBreaker breaker = openedBreaker();
+        healthy.set(true);
+        awaitState(breaker, CircuitBreakerStateEnum.HalfOpen);
+        healthy.set(false);
+
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onSuccess(SLOW);
+
+        assertEquals(CircuitBreakerStateEnum.Open, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    void staysOpenWhileProbeFails() throws InterruptedException {
+        FlowLimitCircuitBreaker breaker = openedBreaker();
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        assertEquals(CircuitBreakerStateEnum.Open, breaker.getState());
+    }
+
+    private FlowLimitCircuitBreaker openedBreaker() {
+        FlowLimitCircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 4; i++) {
+            breaker.onError(FAST);
+        }
+        assertEquals(CircuitBreakerStateEnum.Open, breaker.getState());
+        return breaker;
+    }
+
+    private static void awaitState(FlowLimitCircuitBreaker breaker, CircuitBreakerStateEnum expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (breaker.getState() != expected && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertEquals(expected, breaker.getState());
+    }
+}
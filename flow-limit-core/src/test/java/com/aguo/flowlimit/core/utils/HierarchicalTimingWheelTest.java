@@ -0,0 +1,88 @@
+package com.aguo.flowlimit.core.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 11:00
+ * @Description: 分层时间轮的测试：元素不会提前到期，高层的元素逐层降下后按时到期，处理器可以重新加入元素
+ */
+class HierarchicalTimingWheelTest {
+    private static final long TICK = 10L;
+
+    private final List<String> expired = new ArrayList<>();
+
+    @Test
+    void expiresAtTheFirstTickAfterDeadline() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(TICK, 0L, this::record);
+        wheel.schedule("a", 55L);
+
+        wheel.advance(50L);
+        assertEquals(Collections.emptyList(), expired);
+
+        wheel.advance(60L);
+        assertEquals(Collections.singletonList("a"), expired);
+    }
+
+    @Test
+    void cascadesFromHigherLevels() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(TICK, 0L, this::record);
+        //分别落在第0、1、2、3层
+        wheel.schedule("level0", 300L);
+        wheel.schedule("level1", 5_000L);
+        wheel.schedule("level2", 500_000L);
+        wheel.schedule("level3", 30_000_000L);
+
+        wheel.advance(4_990L);
+        assertEquals(Collections.singletonList("level0"), expired);
+        wheel.advance(5_000L);
+        assertEquals(Arrays.asList("level0", "level1"), expired);
+        wheel.advance(499_990L);
+        assertEquals(2, expired.size());
+        wheel.advance(500_000L);
+        assertEquals(Arrays.asList("level0", "level1", "level2"), expired);
+        wheel.advance(29_999_990L);
+        assertEquals(3, expired.size());
+        wheel.advance(30_000_000L);
+        assertEquals(Arrays.asList("level0", "level1", "level2", "level3"), expired);
+    }
+
+    @Test
+    void handlerCanRescheduleItem() {
+        List<Long> expireTimes = new ArrayList<>();
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(TICK, 0L, (item, now) -> {
+            expireTimes.add(now);
+            //第一次到期时仍在使用，延后到1000毫秒
+            return expireTimes.size() == 1 ? 1_000L : 0L;
+        });
+        wheel.schedule("cell", 100L);
+
+        for (long now = 0; now <= 2_000L; now += TICK) {
+            wheel.advance(now);
+        }
+
+        assertEquals(Arrays.asList(100L, 1_000L), expireTimes);
+    }
+
+    @Test
+    void pastDeadlineExpiresOnNextAdvance() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(TICK, 1_000L, this::record);
+        wheel.schedule("late", 10L);
+
+        wheel.advance(1_000L);
+
+        assertEquals(Collections.singletonList("late"), expired);
+    }
+
+    private long record(String item, long now) {
+        expired.add(item);
+        return 0L;
+    }
+}
@@ -0,0 +1,131 @@
+package com.aguo.flowlimit.core.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 18:30
+ * @Description: 按key单独限流的令牌桶表的测试：突发与预支、归还令牌、表满时淘汰最久没有访问的令牌桶、
+ * 32位时间回绕，以及并发获取时令牌数精确。
+ * <br/>
+ * 时间只用相对于创建时刻的偏移，创建后立即读取的当前时间与epoch只差几毫秒。
+ */
+class KeyedTokenBucketTableTest {
+    /**
+     * 容量32的表只有32个位置，探测范围覆盖整张表
+     */
+    private static final int CAPACITY = 32;
+
+    @Test
+    void burstThenBorrowsWithinMaxWait() {
+        KeyedTokenBucketTable table = new KeyedTokenBucketTable(10, 5, CAPACITY);
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, table.tryAcquire("user", 1, 0, now));
+        }
+        assertEquals(-1, table.tryAcquire("user", 1, 0, now));
+        //每100毫秒生产一个令牌，预支一个令牌需要等待100毫秒
+        assertEquals(100, table.tryAcquire("user", 1, 1_000, now));
+        assertEquals(200, table.tryAcquire("user", 1, 1_000, now));
+    }
+
+    @Test
+    void releasedPermitsCanBeAcquiredAgain() {
+        KeyedTokenBucketTable table = new KeyedTokenBucketTable(1, 1, CAPACITY);
+        long now = System.currentTimeMillis();
+        assertEquals(0, table.tryAcquire("user", 1, 0, now));
+        assertEquals(-1, table.tryAcquire("user", 1, 0, now));
+
+        table.release("user", 1, now);
+        //不存在的key无需归还
+        table.release("other", 1, now);
+
+        assertEquals(0, table.tryAcquire("user", 1, 0, now));
+        assertEquals(-1, table.tryAcquire("user", 1, 0, now));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedBucketWhenFull() {
+        KeyedTokenBucketTable table = new KeyedTokenBucketTable(1, 1, CAPACITY);
+        long now = System.currentTimeMillis();
+        assertEquals(0, table.tryAcquire("oldest", 1, 0, now));
+        for (int i = 1; i < CAPACITY; i++) {
+            assertEquals(0, table.tryAcquire("key-" + i, 1, 0, now + i));
+        }
+
+        //表已满，新的key占用最久没有访问的令牌桶
+        assertEquals(0, table.tryAcquire("new", 1, 0, now + CAPACITY));
+        assertEquals(-1, table.tryAcquire("key-" + (CAPACITY - 1), 1, 0, now + CAPACITY));
+        assertEquals(-1, table.tryAcquire("new", 1, 0, now + CAPACITY));
+        //被占用的key重新得到一个补满的令牌桶
+        assertEquals(0, table.tryAcquire("oldest", 1, 0, now + CAPACITY));
+    }
+
+    @Test
+    void refillsAcrossTimeWraparound() {
+        KeyedTokenBucketTable table = new KeyedTokenBucketTable(1, 1, CAPACITY);
+        //相对时间越过int的最大值，保存的时间由正数变为负数
+        long beforeWrap = System.currentTimeMillis() + Integer.MAX_VALUE - 5_000L;
+        assertEquals(0, table.tryAcquire("user", 1, 0, beforeWrap));
+        assertEquals(-1, table.tryAcquire("user", 1, 0, beforeWrap + 500));
+
+        assertEquals(0, table.tryAcquire("user", 1, 0, beforeWrap + 10_000L));
+        assertEquals(-1, table.tryAcquire("user", 1, 0, beforeWrap + 10_000L));
+    }
+
+    @Test
+    void slightlyEarlierTimeDoesNotRefill() {
+        KeyedTokenBucketTable table = new KeyedTokenBucketTable(1, 1, CAPACITY);
+        long now = System.currentTimeMillis();
+        assertEquals(0, table.tryAcquire("user", 1, 0, now));
+
+        //并发时其他线程读取的时间可能略早
+        assertEquals(-1, table.tryAcquire("user", 1, 0, now - 10));
+    }
+
+    @Test
+    void concurrentAcquiresNeverOverspend() throws InterruptedException {
+        KeyedTokenBucketTable table = new KeyedTokenBucketTable(0.001, 100, 4096);
+        long now = System.currentTimeMillis();
+        int threads = 8;
+        AtomicInteger sharedPassed = new AtomicInteger();
+        AtomicInteger distinctPassed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < 100; i++) {
+                    if (table.tryAcquire("shared", 1, 0, now) == 0) {
+                        sharedPassed.incrementAndGet();
+                    }
+                    //多个线程同时为同一个key占用位置，只能占用一个
+                    if (table.tryAcquire("user-" + i, 100, 0, now) == 0) {
+                        distinctPassed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(100, sharedPassed.get());
+        assertEquals(100, distinctPassed.get());
+    }
+}
@@ -0,0 +1,147 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 10:00
+ * @Description: 本地计数器存储的测试：并发下计数精确，多个计数器中某个达到上限时撤销其他计数器的自增，
+ * 滑动窗口按上一窗口的剩余比例估算计数，关闭后取消后台清理任务
+ */
+class LocalCounterStoreTest {
+    private static final long TIMEOUT = TimeUnit.HOURS.toMillis(1);
+    private static final List<Long> TIMEOUTS = Arrays.asList(TIMEOUT, TIMEOUT);
+    private static final List<CounterAlgorithmEnum> ALGORITHMS =
+            Arrays.asList(CounterAlgorithmEnum.FixedWindow, CounterAlgorithmEnum.FixedWindow);
+
+    @Test
+    void concurrentIncrementsStopExactlyAtCountMax() throws InterruptedException {
+        LocalCounterStore store = new LocalCounterStore();
+        long now = System.currentTimeMillis();
+        int countMax = 5000;
+        int threads = 8;
+        int attemptsPerThread = 2000;
+        AtomicInteger passed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < attemptsPerThread; i++) {
+                    if (store.tryIncrement("counter", TIMEOUT, countMax, false, now) == 0) {
+                        passed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(countMax, passed.get());
+        assertEquals(countMax, store.get("counter", now));
+    }
+
+    @Test
+    void rejectedCounterRollsBackEarlierCounters() {
+        LocalCounterStore store = new LocalCounterStore();
+        long now = System.currentTimeMillis();
+        List<String> keys = Arrays.asList("minute", "second");
+
+        assertArrayEquals(new long[]{-1, 0}, store.tryIncrementAll(keys, TIMEOUTS, Arrays.asList(10, 1), ALGORITHMS, now));
+        long[] rejected = store.tryIncrementAll(keys, TIMEOUTS, Arrays.asList(10, 1), ALGORITHMS, now);
+
+        assertEquals(1, rejected[0]);
+        assertTrue(rejected[1] > 0);
+        assertEquals(1, store.get("minute", now));
+        assertEquals(1, store.get("second", now));
+    }
+
+    @Test
+    void rejectedGroupMemberRollsBackEarlierMembers() {
+        LocalCounterStore store = new LocalCounterStore();
+        long now = System.currentTimeMillis();
+
+        assertEquals(-1, store.tryIncrementGroup("user", TIMEOUTS, Arrays.asList(2, 1), ALGORITHMS, now)[0]);
+        assertEquals(1, store.tryIncrementGroup("user", TIMEOUTS, Arrays.asList(2, 1), ALGORITHMS, now)[0]);
+        //第一个计数器已撤销，仍为1，放宽第二个计数器后可以再自增一次
+        assertEquals(-1, store.tryIncrementGroup("user", TIMEOUTS, Arrays.asList(2, 2), ALGORITHMS, now)[0]);
+        assertEquals(0, store.tryIncrementGroup("user", TIMEOUTS, Arrays.asList(2, 3), ALGORITHMS, now)[0]);
+    }
+
+    @Test
+    void slidingRetryAfterFollowsPreviousWindowDecay() {
+        //上一窗口10次，上限5次：估算值在窗口过半之后才降到上限以下
+        assertEquals(501, LocalCounterStore.retryAfter(0, 10, 1_000L, 0L, 5));
+        assertEquals(1, LocalCounterStore.retryAfter(0, 10, 1_000L, 500L, 5));
+        assertEquals(0, LocalCounterStore.retryAfter(0, 10, 1_000L, 501L, 5));
+        //当前窗口已经达到上限，等到窗口结束
+        assertEquals(700, LocalCounterStore.retryAfter(5, 0, 1_000L, 300L, 5));
+        assertEquals(0, LocalCounterStore.retryAfter(4, 0, 1_000L, 300L, 5));
+    }
+
+    @Test
+    void slidingWindowCountsPreviousWindow() {
+        LocalCounterStore store = new LocalCounterStore();
+        long timeout = 1_000L;
+        long start = 1_600_000_000_000L;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, store.tryIncrement("sliding", timeout, 10, true, start));
+            assertEquals(0, store.tryIncrement("fixed", timeout, 10, false, start));
+        }
+
+        long nextWindow = start + timeout;
+        assertEquals(501, store.tryIncrement("sliding", timeout, 5, true, nextWindow));
+        //固定窗口在窗口交界处直接清零
+        assertEquals(0, store.tryIncrement("fixed", timeout, 5, false, nextWindow));
+        assertEquals(0, store.tryIncrement("sliding", timeout, 5, true, nextWindow + 501));
+        //间隔超过一个窗口，上一窗口没有计数
+        assertEquals(0, store.tryIncrement("sliding", timeout, 1, true, start + 3 * timeout));
+    }
+
+    @Test
+    void closeCancelsExpiryTask() {
+        LocalCounterStore store = new LocalCounterStore();
+        long now = System.currentTimeMillis();
+        store.tryIncrement("counter", TIMEOUT, 10, false, now);
+        assertFalse(store.expiryTask.isCancelled());
+
+        store.close();
+
+        assertTrue(store.expiryTask.isCancelled());
+        //关闭后仍可计数，新的key不再启动清理任务
+        assertEquals(0, store.tryIncrement("other", TIMEOUT, 10, false, now));
+        assertEquals(1, store.get("other", now));
+        assertTrue(store.expiryTask.isCancelled());
+    }
+
+    @Test
+    void closeBeforeFirstCounterNeverStartsExpiryTask() {
+        LocalCounterStore store = new LocalCounterStore();
+        store.close();
+
+        store.tryIncrement("counter", TIMEOUT, 10, false, System.currentTimeMillis());
+
+        assertNull(store.expiryTask);
+    }
+}
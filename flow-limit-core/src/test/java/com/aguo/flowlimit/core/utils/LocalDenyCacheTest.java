@@ -0,0 +1,59 @@
+package com.aguo.flowlimit.core.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 19:00
+ * @Description: 本地拒绝缓存的测试：任意一个计数器处于拒绝期即拒绝，拒绝期结束或者重置后放行
+ */
+class LocalDenyCacheTest {
+
+    @Test
+    void deniesWhileAnyCounterIsInDenyPeriod() {
+        LocalDenyCache cache = new LocalDenyCache(100);
+        cache.deny("minute", 60_000L);
+
+        assertTrue(cache.isDenied(Arrays.asList("second", "minute")));
+        assertFalse(cache.isDenied(Collections.singletonList("second")));
+    }
+
+    @Test
+    void nonPositiveRetryAfterIsNotRecorded() {
+        LocalDenyCache cache = new LocalDenyCache(100);
+        cache.deny("second", 0L);
+        cache.deny("minute", -1L);
+
+        assertFalse(cache.isDenied(Arrays.asList("second", "minute")));
+    }
+
+    @Test
+    void passesAfterDenyPeriodEnds() throws InterruptedException {
+        LocalDenyCache cache = new LocalDenyCache(100);
+        cache.deny("second", 20L);
+        assertTrue(cache.isDenied(Collections.singletonList("second")));
+
+        TimeUnit.MILLISECONDS.sleep(30);
+
+        assertFalse(cache.isDenied(Collections.singletonList("second")));
+    }
+
+    @Test
+    void invalidateClearsDenyPeriod() {
+        LocalDenyCache cache = new LocalDenyCache(100);
+        cache.deny("second", 60_000L);
+        cache.deny("minute", 60_000L);
+
+        cache.invalidate(Collections.singletonList("second"));
+
+        assertFalse(cache.isDenied(Collections.singletonList("second")));
+        assertTrue(cache.isDenied(Collections.singletonList("minute")));
+    }
+}
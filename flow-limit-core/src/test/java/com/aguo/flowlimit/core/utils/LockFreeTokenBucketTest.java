@@ -0,0 +1,109 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 14:00
+ * @Description: 无锁令牌桶的测试：预热期与稳定期的等待时长与Google的RateLimiter一致。
+ * <br/>
+ * 两者都只预约不等待，每次预约的可用时间（调用时间加上返回的等待时长）相对第一次预约的偏移，
+ * 即为令牌的生产间隔之和，与两次调用之间实际经过的时间无关。
+ * 限流器在调用前后两次读取时间之间读取当前时间，可用时间只能确定在一个范围内，两者的范围重叠即视为一致。
+ * RateLimiter的预约方法不是公开的，通过反射调用。
+ */
+class LockFreeTokenBucketTest {
+    /**
+     * 每次预约的等待时长取整到微秒，允许的累计误差，单位微秒
+     */
+    private static final long TOLERANCE_MICROS = 1_000L;
+    private static final long ONE_HOUR = TimeUnit.HOURS.toSeconds(1);
+
+    /**
+     * 桶中存满10个令牌，前10次预约消耗存储的令牌（冷区间越来越快），之后按稳定间隔
+     */
+    @Test
+    void warmupMatchesRateLimiter() throws Exception {
+        assertSameWaits(RateLimiter.create(10, 1, TimeUnit.SECONDS),
+                new LockFreeTokenBucket(10, 1, TimeUnit.SECONDS), 30);
+    }
+
+    @Test
+    void longWarmupMatchesRateLimiter() throws Exception {
+        assertSameWaits(RateLimiter.create(100, 2, TimeUnit.SECONDS),
+                new LockFreeTokenBucket(100, 2, TimeUnit.SECONDS), 300);
+    }
+
+    @Test
+    void refusesWhenWaitExceedsTimeout() {
+        LockFreeTokenBucket bucket = new LockFreeTokenBucket(1, 0, TimeUnit.SECONDS);
+
+        assertTrue(bucket.tryAcquire(1, 0, TimeUnit.SECONDS));
+        assertFalse(bucket.tryAcquire(1, 0, TimeUnit.SECONDS));
+        assertEquals(-1L, bucket.reserve(1, 100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void setRateKeepsStoredPermitsProportional() throws Exception {
+        LockFreeTokenBucket bucket = new LockFreeTokenBucket(10, 0, TimeUnit.SECONDS);
+        bucket.setRate(20);
+
+        assertEquals(20, bucket.getRate(), 1e-9);
+        long[] first = readyTime(() -> bucket.reserve(1, ONE_HOUR, TimeUnit.SECONDS));
+        long[] second = readyTime(() -> bucket.reserve(1, ONE_HOUR, TimeUnit.SECONDS));
+        //稳定间隔变为50毫秒
+        assertTrue(second[0] - first[1] <= 50_000L + TOLERANCE_MICROS
+                && second[1] - first[0] >= 50_000L - TOLERANCE_MICROS);
+    }
+
+    private static void assertSameWaits(RateLimiter rateLimiter, LockFreeTokenBucket bucket, int times) throws Exception {
+        Method reserve = RateLimiter.class.getDeclaredMethod("reserve", int.class);
+        reserve.setAccessible(true);
+        Reserver expected = () -> (long) reserve.invoke(rateLimiter, 1);
+        Reserver actual = () -> bucket.reserve(1, ONE_HOUR, TimeUnit.SECONDS);
+        long[] expectedStart = readyTime(expected);
+        long[] actualStart = readyTime(actual);
+        for (int i = 1; i < times; i++) {
+            long[] expectedReady = readyTime(expected);
+            long[] actualReady = readyTime(actual);
+            //相对第一次预约的偏移范围
+            long expectedMin = expectedReady[0] - expectedStart[1];
+            long expectedMax = expectedReady[1] - expectedStart[0];
+            long actualMin = actualReady[0] - actualStart[1];
+            long actualMax = actualReady[1] - actualStart[0];
+            String message = "第" + i + "次预约：RateLimiter[" + expectedMin + ", " + expectedMax
+                    + "]，LockFreeTokenBucket[" + actualMin + ", " + actualMax + "]";
+            assertTrue(expectedMin <= actualMax + TOLERANCE_MICROS && actualMin <= expectedMax + TOLERANCE_MICROS, message);
+        }
+    }
+
+    /**
+     * 预约一次，返回令牌可用时间的范围，单位微秒
+     */
+    private static long[] readyTime(Reserver reserver) throws Exception {
+        long before = nowMicros();
+        long wait = reserver.reserve();
+        long after = nowMicros();
+        return new long[]{before + wait, after + wait};
+    }
+
+    private static long nowMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+    }
+
+    @FunctionalInterface
+    private interface Reserver {
+        /**
+         * @return 需要等待的微秒数
+         */
+        long reserve() throws Exception;
+    }
+}
@@ -0,0 +1,71 @@
+package com.aguo.flowlimit.core.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 19:20
+ * @Description: 计数器序列化器的测试：编码结果与Long.toString一致，解析可以还原包括Long.MIN_VALUE在内的所有数值，
+ * 非法的字节直接报错
+ */
+class LongAsciiRedisSerializerTest {
+    private final LongAsciiRedisSerializer serializer = LongAsciiRedisSerializer.INSTANCE;
+
+    @Test
+    void roundTripsBoundaryValues() {
+        long[] values = {0, 1, 9, 10, 1023, 1024, -1, -10, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (long value : values) {
+            assertRoundTrip(value);
+        }
+    }
+
+    @Test
+    void roundTripsRandomValues() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 10_000; i++) {
+            assertRoundTrip(random.nextLong());
+        }
+    }
+
+    @Test
+    void reusesCachedBytesForSmallValues() {
+        assertSame(LongAsciiRedisSerializer.toBytes(5), LongAsciiRedisSerializer.toBytes(5));
+    }
+
+    @Test
+    void nullAndEmptyAreNull() {
+        assertNull(serializer.serialize(null));
+        assertNull(serializer.deserialize(null));
+        assertNull(serializer.deserialize(new byte[0]));
+    }
+
+    @Test
+    void rejectsInvalidBytes() {
+        assertThrows(SerializationException.class, () -> LongAsciiRedisSerializer.parseLong(new byte[0]));
+        assertThrows(SerializationException.class, () -> LongAsciiRedisSerializer.parseLong(ascii("-")));
+        assertThrows(SerializationException.class, () -> LongAsciiRedisSerializer.parseLong(ascii("12a")));
+        //Jackson序列化的字符串带引号
+        assertThrows(SerializationException.class, () -> LongAsciiRedisSerializer.parseLong(ascii("\"1\"")));
+    }
+
+    private void assertRoundTrip(long value) {
+        byte[] bytes = serializer.serialize(value);
+        assertArrayEquals(ascii(Long.toString(value)), bytes);
+        assertEquals(value, serializer.deserialize(bytes));
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,152 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 11:30
+ * @Description: 堆外计数器表的测试：过期与删除的槽可以复用，映射到文件时重新打开可以恢复计数，
+ * 表满之后一组计数器放入堆内，撤销与删除仍然生效。
+ * <br/>
+ * 容量48的表只有一个段、64个槽。放入堆内的计数器不会写入文件，重新打开后仍能读到的计数一定在表中。
+ */
+class OffHeapCounterTableTest {
+    private static final int CAPACITY = 48;
+    private static final int SLOTS = 64;
+    private static final long TIMEOUT = 1_000L;
+    private static final long NOW = 1_600_000_000_000L;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void expiredSlotsAreReused() throws IOException {
+        File file = tempDir.resolve("counters").toFile();
+        OffHeapCounterTable table = new OffHeapCounterTable(CAPACITY, file);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(0, table.tryIncrement("old-" + i, TIMEOUT, 10, false, NOW));
+        }
+        //两个窗口之后旧的计数器全部过期
+        long later = NOW + 2 * TIMEOUT;
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(0, table.tryIncrement("new-" + i, TIMEOUT, 10, false, later));
+        }
+
+        OffHeapCounterTable reopened = new OffHeapCounterTable(CAPACITY, file);
+        for (int i = 0; i < SLOTS; i++) {
+            assertEquals(1, reopened.get("new-" + i, later));
+            assertNull(reopened.get("old-" + i, later));
+        }
+    }
+
+    @Test
+    void removedSlotsAreReused() throws IOException {
+        File file = tempDir.resolve("counters").toFile();
+        OffHeapCounterTable table = new OffHeapCounterTable(CAPACITY, file);
+        for (int i = 0; i < SLOTS; i++) {
+            table.tryIncrement("key-" + i, TIMEOUT, 10, false, NOW);
+        }
+        table.remove("key-0");
+        assertNull(table.get("key-0", NOW));
+
+        assertEquals(0, table.tryIncrement("replacement", TIMEOUT, 10, false, NOW));
+
+        OffHeapCounterTable reopened = new OffHeapCounterTable(CAPACITY, file);
+        assertEquals(1, reopened.get("replacement", NOW));
+        assertEquals(1, reopened.get("key-1", NOW));
+        assertNull(reopened.get("key-0", NOW));
+    }
+
+    @Test
+    void reopenedFileKeepsCounts() throws IOException {
+        File file = tempDir.resolve("counters").toFile();
+        OffHeapCounterTable table = new OffHeapCounterTable(CAPACITY, file);
+        for (int i = 0; i < 3; i++) {
+            table.tryIncrement("user", TIMEOUT, 3, false, NOW);
+        }
+
+        OffHeapCounterTable reopened = new OffHeapCounterTable(CAPACITY, file);
+
+        assertEquals(3, reopened.get("user", NOW));
+        assertTrue(reopened.tryIncrement("user", TIMEOUT, 3, false, NOW) > 0);
+        //已经过去的窗口自然失效
+        assertEquals(0, reopened.tryIncrement("user", TIMEOUT, 3, false, NOW + TIMEOUT));
+    }
+
+    @Test
+    void reopeningWithAnotherLayoutStartsEmpty() throws IOException {
+        File file = tempDir.resolve("counters").toFile();
+        new OffHeapCounterTable(CAPACITY, file).tryIncrement("user", TIMEOUT, 3, false, NOW);
+
+        OffHeapCounterTable reopened = new OffHeapCounterTable(CAPACITY * 4, file);
+
+        assertNull(reopened.get("user", NOW));
+    }
+
+    @Test
+    void groupInOverflowRollsBackAndRemoves() {
+        OffHeapCounterTable table = new OffHeapCounterTable(CAPACITY);
+        for (int i = 0; i < SLOTS; i++) {
+            table.tryIncrement("key-" + i, TIMEOUT, 10, false, NOW);
+        }
+        List<Long> timeouts = Arrays.asList(TIMEOUT, TIMEOUT);
+        List<CounterAlgorithmEnum> algorithms = Arrays.asList(CounterAlgorithmEnum.FixedWindow, CounterAlgorithmEnum.FixedWindow);
+
+        assertEquals(-1, table.tryIncrementGroup("user", timeouts, Arrays.asList(2, 1), algorithms, NOW)[0]);
+        assertEquals(1, table.tryIncrementGroup("user", timeouts, Arrays.asList(2, 1), algorithms, NOW)[0]);
+        //第一个计数器已撤销，仍为1
+        assertEquals(-1, table.tryIncrementGroup("user", timeouts, Arrays.asList(2, 2), algorithms, NOW)[0]);
+        assertEquals(0, table.tryIncrementGroup("user", timeouts, Arrays.asList(2, 3), algorithms, NOW)[0]);
+
+        table.remove("user");
+        assertEquals(-1, table.tryIncrementGroup("user", timeouts, Arrays.asList(1, 1), algorithms, NOW)[0]);
+    }
+
+    @Test
+    void concurrentIncrementsStopExactlyAtCountMax() throws InterruptedException {
+        OffHeapCounterTable table = new OffHeapCounterTable(1024);
+        int countMax = 5000;
+        int threads = 8;
+        AtomicInteger passed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < 2000; i++) {
+                    if (table.tryIncrement("counter", TIMEOUT, countMax, false, NOW) == 0) {
+                        passed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(countMax, passed.get());
+        assertEquals(countMax, table.get("counter", NOW));
+    }
+}
@@ -0,0 +1,68 @@
+package com.aguo.flowlimit.core.utils;
+
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 19:30
+ * @Description: Redis数据源中与Redis无关部分的测试：集群下按槽分组，多计数器脚本的参数与返回值
+ */
+class RedisStrategyServiceTest {
+
+    @Test
+    void countersWithSameHashTagAreNotSplit() {
+        byte[][] rawKeys = CounterKeyTemplate.rawKeys(Arrays.asList("second:{user1}", "minute:{user1}", "day:{user1}"));
+
+        assertNull(FlowLimitCacheHelper.RedisStrategyService.groupBySlot(rawKeys));
+    }
+
+    @Test
+    void groupsKeepCounterOrder() {
+        byte[][] rawKeys = CounterKeyTemplate.rawKeys(Arrays.asList("second:{a}", "second:{b}", "minute:{a}", "minute:{b}"));
+
+        List<List<Integer>> groups = FlowLimitCacheHelper.RedisStrategyService.groupBySlot(rawKeys);
+
+        assertEquals(Arrays.asList(Arrays.asList(0, 2), Arrays.asList(1, 3)), groups);
+        assertEquals(Arrays.asList("second:{b}", "minute:{b}"),
+                FlowLimitCacheHelper.RedisStrategyService.pick(Arrays.asList("second:{a}", "second:{b}", "minute:{a}", "minute:{b}"),
+                        groups.get(1)));
+        assertArrayEquals(rawKeys[3], FlowLimitCacheHelper.RedisStrategyService.pick(rawKeys, groups.get(1))[1]);
+    }
+
+    @Test
+    void scriptArgumentsAreTimeoutLimitAndAlgorithmPerCounter() {
+        byte[][] args = FlowLimitCacheHelper.RedisStrategyService.multiIncRawArgs(
+                Arrays.asList(1_000L, 60_000L), Arrays.asList(10, 100),
+                Arrays.asList(CounterAlgorithmEnum.FixedWindow, CounterAlgorithmEnum.SlidingWindow));
+
+        String[] expected = {"1000", "10", "1", "60000", "100", "2"};
+        assertEquals(expected.length, args.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], new String(args[i], StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    void scriptResultIndexStartsFromOne() {
+        assertArrayEquals(new long[]{-1, 0}, FlowLimitCacheHelper.RedisStrategyService.multiIncResult(Arrays.asList(0L, 0L)));
+        assertArrayEquals(new long[]{1, 500}, FlowLimitCacheHelper.RedisStrategyService.multiIncResult(Arrays.asList(2L, 500L)));
+        //计数器没有过期时间时剩余有效时长为负数
+        assertArrayEquals(new long[]{0, 0}, FlowLimitCacheHelper.RedisStrategyService.multiIncResult(Arrays.asList(1L, -1L)));
+    }
+
+    @Test
+    void missingScriptResultDoesNotLimit() {
+        assertArrayEquals(new long[]{-1, 0}, FlowLimitCacheHelper.RedisStrategyService.multiIncResult(null));
+        assertArrayEquals(new long[]{-1, 0}, FlowLimitCacheHelper.RedisStrategyService.multiIncResult(Collections.emptyList()));
+    }
+}
@@ -0,0 +1,83 @@
+package com.aguo.flowlimit.core.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @Author: wenqiaogang
+ * @DateTime: 2022/9/16 17:30
+ * @Description: 按窗口轮转的Count-Min Sketch的测试：估计只会高估，窗口滚动后上一窗口的计数仍可读取，
+ * 滚出的表清空后复用
+ */
+class WindowedCountMinSketchTest {
+    private static final long TIMEOUT = 1_000L;
+    private static final long NOW = 1_600_000_000_000L;
+
+    @Test
+    void neverUnderestimates() {
+        //最小宽度16，大量key必然冲突
+        WindowedCountMinSketch sketch = new WindowedCountMinSketch(TIMEOUT, 16, NOW);
+        for (int key = 0; key < 200; key++) {
+            for (int i = 0; i <= key % 5; i++) {
+                sketch.increment(OffHeapCounterTable.hash("key-" + key), NOW);
+            }
+        }
+
+        for (int key = 0; key < 200; key++) {
+            assertTrue(sketch.estimate(OffHeapCounterTable.hash("key-" + key), NOW) >= key % 5 + 1);
+        }
+    }
+
+    @Test
+    void previousWindowIsReadableAfterRotation() {
+        WindowedCountMinSketch sketch = new WindowedCountMinSketch(TIMEOUT, 1024, NOW);
+        long hash = OffHeapCounterTable.hash("user");
+        for (int i = 0; i < 3; i++) {
+            sketch.increment(hash, NOW);
+        }
+
+        assertEquals(1, sketch.increment(hash, NOW + TIMEOUT));
+        assertEquals(3, sketch.previousEstimate(hash, NOW + TIMEOUT));
+        //间隔超过一个窗口，上一窗口没有计数
+        assertEquals(0, sketch.previousEstimate(hash, NOW + 3 * TIMEOUT));
+        assertEquals(0, sketch.estimate(hash, NOW + 3 * TIMEOUT));
+    }
+
+    @Test
+    void decrementOnlyAffectsCurrentWindow() {
+        WindowedCountMinSketch sketch = new WindowedCountMinSketch(TIMEOUT, 1024, NOW);
+        long hash = OffHeapCounterTable.hash("user");
+        sketch.increment(hash, NOW);
+        sketch.increment(hash, NOW);
+
+        sketch.decrement(hash, NOW);
+        assertEquals(1, sketch.estimate(hash, NOW));
+
+        sketch.increment(hash, NOW + TIMEOUT);
+        //窗口已经滚动，撤销上一窗口的自增不生效
+        sketch.decrement(hash, NOW);
+        assertEquals(1, sketch.estimate(hash, NOW + TIMEOUT));
+        assertEquals(1, sketch.previousEstimate(hash, NOW + TIMEOUT));
+    }
+
+    @Test
+    void recycledTablesStartFromZero() throws InterruptedException {
+        //窗口20毫秒，滚出的表10毫秒后由后台线程清空
+        long timeout = 20L;
+        WindowedCountMinSketch sketch = new WindowedCountMinSketch(timeout, 1024, 0L);
+        long hash = OffHeapCounterTable.hash("user");
+        for (int window = 0; window < 8; window++) {
+            long now = window * timeout;
+            assertEquals(0, sketch.estimate(hash, now));
+            for (int i = 0; i < 5; i++) {
+                sketch.increment(hash, now);
+            }
+            assertEquals(window == 0 ? 0 : 5, sketch.previousEstimate(hash, now));
+            TimeUnit.MILLISECONDS.sleep(timeout);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.springframework.context.annotation.Import;
 @Import({FlowLimitConfiguration.RedisFlowLimitConfiguration.class,
         FlowLimitConfiguration.CacheConfiguration.class,
         FlowLimitConfiguration.GlobalTokenBucketConfiguration.class,
+        FlowLimitConfiguration.GcraConfiguration.class,
         FlowLimitConfiguration.FinalConfiguration.class})
 public class FlowLimitAutoConfiguration {
 
@@ -1,14 +1,18 @@
 package com.aguo.flowlimit.starter;
 
 import com.aguo.flowlimit.core.IFlowLimit;
+import com.aguo.flowlimit.core.aspect.AbstractGcraFlowLimitAspect;
 import com.aguo.flowlimit.core.aspect.AbstractGlobalTokenBucketFlowLimitAspect;
 import com.aguo.flowlimit.core.aspect.AbstractRedisFlowLimitAspect;
+import com.aguo.flowlimit.core.enums.CacheDataSourceTypeEnum;
+import com.aguo.flowlimit.core.interceptor.AbstractGcraFlowLimitInterceptor;
 import com.aguo.flowlimit.core.interceptor.AbstractGlobalTokenBucketFlowLimitInterceptor;
 import com.aguo.flowlimit.core.interceptor.AbstractRedisFlowLimitInterceptor;
 import com.aguo.flowlimit.core.utils.FlowLimitCacheHelper;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ObjectUtils;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
@@ -19,6 +23,10 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @Author: wenqiaogang
  * @DateTime: 2022/7/27 9:55
@@ -47,22 +55,49 @@ abstract class FlowLimitConfiguration {
         /**
          * 顺序2
          * 初始化缓存帮助器，初始化了Redis和local两种数据源
+         * <br/>
+         * 未配置计数器时，仍然初始化Redis数据源，供GCRA等其他限流器使用
          *
          * @param redisConnectionFactory
          * @return
          */
         @Bean
         @ConditionalOnBean({IFlowLimit.class})
-        public FlowLimitCacheHelper redisFlowLimitHelper(FlowLimitProperties.CounterFlowLimitProperties properties,
-                                                         @Autowired(required = false) RedisConnectionFactory redisConnectionFactory) {
+        public FlowLimitCacheHelper redisFlowLimitHelper(@Autowired(required = false) FlowLimitProperties.CounterFlowLimitProperties properties,
+                                                         @Autowired(required = false) RedisConnectionFactory redisConnectionFactory,
+                                                         FlowLimitProperties flowLimitProperties) {
+            FlowLimitCacheHelper cacheHelper;
             if (ObjectUtils.isNotEmpty(properties)) {
-                return new FlowLimitCacheHelper(properties.getDataSourceType(),
+                cacheHelper = new FlowLimitCacheHelper(properties.getDataSourceType(),
                         redisConnectionFactory,
                         properties.getCounterHoldingTime(),
-                        properties.getCounterHoldingTimeUnit());
+                        properties.getCounterHoldingTimeUnit(),
+                        false);
+                cacheHelper.buildLocalMemoryBudget(properties.getLocalMemoryBudget());
+                cacheHelper.buildLocalCounterTable(properties.getLocalCounterCapacity(), properties.getLocalCounterFile());
+                cacheHelper.buildSketch(properties.getSketchWidth());
             } else {
-                return null;
+                //没有Redis时使用本地缓存，否则GCRA、令牌桶等限流器的Redis操作全部失败，请求会被全部放行
+                cacheHelper = new FlowLimitCacheHelper(ObjectUtils.isNotEmpty(redisConnectionFactory)
+                        ? CacheDataSourceTypeEnum.Redis : CacheDataSourceTypeEnum.Local,
+                        redisConnectionFactory,
+                        Collections.emptyList(),
+                        TimeUnit.MILLISECONDS,
+                        false);
             }
+            FlowLimitProperties.CircuitBreakerProperties breaker = Optional.ofNullable(flowLimitProperties.getCircuitBreakerProperties())
+                    .orElseGet(FlowLimitProperties.CircuitBreakerProperties::new);
+            cacheHelper.buildCircuitBreaker(breaker.getFailureRateThreshold(),
+                    breaker.getSlowCallRateThreshold(),
+                    breaker.getSlowCallDuration(),
+                    breaker.getSlidingWindowSize(),
+                    breaker.getMinimumNumberOfCalls(),
+                    breaker.getWaitDurationInOpenState(),
+                    breaker.getProbeInterval(),
+                    breaker.getPermittedCallsInHalfOpenState());
+            cacheHelper.buildLatencyBudget(flowLimitProperties.getLatencyBudget(),
+                    Optional.ofNullable(flowLimitProperties.getLatencyBudgetUnit()).orElse(TimeUnit.MILLISECONDS));
+            return cacheHelper;
         }
 
 
@@ -76,7 +111,11 @@ abstract class FlowLimitConfiguration {
                     properties.getPrefixKey(),
                     properties.getCounterKeys(),
                     properties.getCounterHoldingTime(),
-                    properties.getCounterLimitNumber());
+                    properties.getCounterLimitNumber(),
+                    properties.getCounterAlgorithm());
+            aspect.buildKeyLayout(properties.getKeyLayout(), properties.getGlobalKeyShards());
+            aspect.buildQuotaLease(properties.getLeaseSize(), properties.getLeaseTime());
+            aspect.buildDenyCache(properties.getDenyCacheSize());
 
         }
 
@@ -94,7 +133,11 @@ abstract class FlowLimitConfiguration {
                     properties.getPrefixKey(),
                     properties.getCounterKeys(),
                     properties.getCounterHoldingTime(),
-                    properties.getCounterLimitNumber());
+                    properties.getCounterLimitNumber(),
+                    properties.getCounterAlgorithm());
+            interceptor.buildKeyLayout(properties.getKeyLayout(), properties.getGlobalKeyShards());
+            interceptor.buildQuotaLease(properties.getLeaseSize(), properties.getLeaseTime());
+            interceptor.buildDenyCache(properties.getDenyCacheSize());
         }
 
     }
@@ -120,12 +163,29 @@ abstract class FlowLimitConfiguration {
          */
         @Autowired(required = false)
         public void globalTokenBucketFlowLimitAspect(AbstractGlobalTokenBucketFlowLimitAspect aspect,
-                                                     FlowLimitProperties.GlobalTokenBucketFlowLimitProperties properties) {
-            aspect.build(Math.max(properties.getPermitsPerSecond(), 1L),
-                    Math.max(properties.getWarmupPeriod(), 1L),
-                    Math.max(properties.getTimeout(), 1L),
-                    1);
-
+                                                     FlowLimitProperties.GlobalTokenBucketFlowLimitProperties properties,
+                                                     ObjectProvider<FlowLimitCacheHelper> cacheHelper) {
+            if (properties.isDistributed()) {
+                aspect.build(Math.max(properties.getPermitsPerSecond(), 1L),
+                        Math.max(properties.getWarmupPeriod(), 1L),
+                        Math.max(properties.getTimeout(), 1L),
+                        1,
+                        cacheHelper.getIfAvailable(),
+                        properties.getBucketKey(),
+                        Math.max(properties.getPrefetch(), 1));
+            } else {
+                aspect.build(Math.max(properties.getPermitsPerSecond(), 1L),
+                        Math.max(properties.getWarmupPeriod(), 1L),
+                        Math.max(properties.getTimeout(), 1L),
+                        1);
+            }
+            aspect.buildUserBucket(properties.getUserPermitsPerSecond(),
+                    Math.max(properties.getUserBurst(), 1),
+                    Math.max(properties.getUserBucketCapacity(), 1));
+            properties.getEndpoints().forEach((endpoint, endpointProperties) ->
+                    aspect.buildEndpoint(endpoint,
+                            Math.max(endpointProperties.getPermitsPerSecond(), 1L),
+                            Math.max(endpointProperties.getWarmupPeriod(), 1L)));
         }
 
         /**
@@ -136,14 +196,79 @@ abstract class FlowLimitConfiguration {
          */
         @Autowired(required = false)
         public void globalTokenBucketFlowLimitInterceptor(AbstractGlobalTokenBucketFlowLimitInterceptor interceptor,
-                                                          FlowLimitProperties.GlobalTokenBucketFlowLimitProperties properties) {
-            interceptor.build(interceptor,
-                    Math.max(properties.getPermitsPerSecond(), 1L),
-                    Math.max(properties.getWarmupPeriod(), 1L),
-                    Math.max(properties.getTimeout(), 1L),
-                    1);
+                                                          FlowLimitProperties.GlobalTokenBucketFlowLimitProperties properties,
+                                                          ObjectProvider<FlowLimitCacheHelper> cacheHelper) {
+            if (properties.isDistributed()) {
+                interceptor.build(interceptor,
+                        Math.max(properties.getPermitsPerSecond(), 1L),
+                        Math.max(properties.getWarmupPeriod(), 1L),
+                        Math.max(properties.getTimeout(), 1L),
+                        1,
+                        cacheHelper.getIfAvailable(),
+                        properties.getBucketKey(),
+                        Math.max(properties.getPrefetch(), 1));
+            } else {
+                interceptor.build(interceptor,
+                        Math.max(properties.getPermitsPerSecond(), 1L),
+                        Math.max(properties.getWarmupPeriod(), 1L),
+                        Math.max(properties.getTimeout(), 1L),
+                        1);
+            }
+            interceptor.buildAsyncWait(properties.getAsyncWaitCapacity());
+            interceptor.buildUserBucket(properties.getUserPermitsPerSecond(),
+                    Math.max(properties.getUserBurst(), 1),
+                    Math.max(properties.getUserBucketCapacity(), 1));
+            properties.getEndpoints().forEach((endpoint, endpointProperties) ->
+                    interceptor.buildEndpoint(endpoint,
+                            Math.max(endpointProperties.getPermitsPerSecond(), 1L),
+                            Math.max(endpointProperties.getWarmupPeriod(), 1L)));
+        }
+
+    }
+
+    @Configuration
+    @ConditionalOnProperty(prefix = "flowlimit", value = {"enabled"}, havingValue = "true")
+    static class GcraConfiguration {
+        @Bean
+        public FlowLimitProperties.GcraFlowLimitProperties gcraFlowLimitProperties(FlowLimitProperties flowLimitProperties) {
+            return flowLimitProperties.getGcraFlowLimitProperties();
         }
 
+        /**
+         * 初始化
+         */
+        @Autowired(required = false)
+        public void gcraFlowLimitAspect(AbstractGcraFlowLimitAspect aspect,
+                                        FlowLimitCacheHelper cacheHelper,
+                                        FlowLimitProperties.GcraFlowLimitProperties properties) {
+            aspect.build(cacheHelper,
+                    properties.isEnabledGlobalLimit(),
+                    properties.getPrefixKey(),
+                    Math.max(Optional.ofNullable(properties.getRate()).orElse(0L), 0L),
+                    Math.max(properties.getPeriod(), 1L),
+                    properties.getPeriodUnit(),
+                    Math.max(properties.getBurst(), 1));
+        }
+
+        /**
+         * 设置拦截器的自我字段，自我字段保存的是用户的实现类，为了将用户实现的列注册到MVC中<br/>
+         * 初始化拦截器的属性配置
+         *
+         * @param interceptor
+         */
+        @Autowired(required = false)
+        public void gcraFlowLimitInterceptor(AbstractGcraFlowLimitInterceptor interceptor,
+                                             FlowLimitCacheHelper cacheHelper,
+                                             FlowLimitProperties.GcraFlowLimitProperties properties) {
+            interceptor.build(interceptor,
+                    cacheHelper,
+                    properties.isEnabledGlobalLimit(),
+                    properties.getPrefixKey(),
+                    Math.max(Optional.ofNullable(properties.getRate()).orElse(0L), 0L),
+                    Math.max(properties.getPeriod(), 1L),
+                    properties.getPeriodUnit(),
+                    Math.max(properties.getBurst(), 1));
+        }
     }
 
     @Configuration
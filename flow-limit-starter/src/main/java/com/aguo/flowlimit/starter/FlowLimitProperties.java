@@ -1,10 +1,15 @@
 package com.aguo.flowlimit.starter;
 
 import com.aguo.flowlimit.core.enums.CacheDataSourceTypeEnum;
+import com.aguo.flowlimit.core.enums.CounterAlgorithmEnum;
+import com.aguo.flowlimit.core.enums.CounterKeyLayoutEnum;
+import com.aguo.flowlimit.core.utils.FlowLimitCircuitBreaker;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -19,6 +24,15 @@ public class FlowLimitProperties {
      * 是否启用流量限制
      */
     private boolean enabled = false;
+    /**
+     * 每次限流判断等待Redis的延迟预算，默认0即一直等待。<br/>
+     * 超出预算则由本地数据源判断，Redis的自增在后台继续完成，Redis变慢时限流器的耗时仍然有上限。需要Lettuce客户端。
+     */
+    private long latencyBudget = 0L;
+    /**
+     * 延迟预算的时间单位，默认毫秒
+     */
+    private TimeUnit latencyBudgetUnit = TimeUnit.MILLISECONDS;
 
 
     /**
@@ -29,6 +43,14 @@ public class FlowLimitProperties {
      * google 令牌桶算法，配置类
      */
     private GlobalTokenBucketFlowLimitProperties GlobalTokenBucketFlowLimitProperties;
+    /**
+     * GCRA（通用信元速率算法）限流配置类
+     */
+    private GcraFlowLimitProperties gcraFlowLimitProperties;
+    /**
+     * Redis数据源熔断器配置类
+     */
+    private CircuitBreakerProperties circuitBreakerProperties = new CircuitBreakerProperties();
 
     public boolean isEnabled() {
         return enabled;
@@ -56,6 +78,9 @@ public class FlowLimitProperties {
         private boolean enabledGlobalLimit = true;
         /**
          * 计数器模式下的数据源，默认是Redis数据源
+         * <br/>
+         * 本地数据源（包括Redis不可用时的降级）的窗口按时间对齐，即从时长的整数倍开始；
+         * Redis的固定窗口从第一次自增开始计时。降级与恢复的前后窗口边界不一致，切换时最多多放行一个窗口的限流次数
          */
         private CacheDataSourceTypeEnum dataSourceType = CacheDataSourceTypeEnum.Redis;
 
@@ -87,6 +112,71 @@ public class FlowLimitProperties {
          */
         private List<Integer> counterLimitNumber;
 
+        /**
+         * 每个计数器使用的算法，与计数器一一对应，默认固定窗口。
+         * <br/>
+         * 固定窗口在窗口交界处最多允许2倍的突发流量；滑动窗口按上一窗口的剩余比例估算计数，没有这个问题，
+         * 因此可以把限流次数设置得更接近真实容量。
+         */
+        private List<CounterAlgorithmEnum> counterAlgorithm;
+
+        /**
+         * 配额租借时单个租约的最大许可数，默认0即不开启。<br/>
+         * 开启后每个节点一次从Redis预留一批许可在本地消费，租约大小根据本地的请求速度自适应，且不超过计数器上限的1/10。
+         * 只支持固定窗口计数器。
+         */
+        private int leaseSize = 0;
+
+        /**
+         * 配额租借时单个租约的最长有效时长，单位毫秒，默认100毫秒
+         */
+        private long leaseTime = 100L;
+
+        /**
+         * 计数器key的布局，默认default。<br/>
+         * 使用Redis集群时可以配置为cluster-hash-tag：同一用户的所有计数器使用同一个哈希标签，落在同一个槽上，
+         * 一次脚本调用即可完成判断。<br/>
+         * 用户量很大时可以配置为subject-hash：同一用户的所有计数器打包在一个Hash中，每个用户只占用一个key，
+         * 窗口按时间对齐。不支持配额租借。
+         */
+        private CounterKeyLayoutEnum keyLayout = CounterKeyLayoutEnum.Default;
+
+        /**
+         * 哈希标签布局下全局计数器的分片数，默认1。<br/>
+         * 大于1时全局计数器拆分到多个槽上，避免热点集中在一个节点，每个分片的限流次数为总数均分。
+         * 一个分片用完后请求依次尝试其他分片，总的限流次数不变；所有分片都用完时一次拒绝最多访问每个分片一次，
+         * 建议同时开启本地拒绝缓存。
+         */
+        private int globalKeyShards = 1;
+
+        /**
+         * 本地拒绝缓存最多记录的计数器数量，默认0，即不开启，建议设置为10000左右。<br/>
+         * 计数器达到上限后，在其放行之前本节点直接拒绝，不再访问Redis。
+         * 其他节点重置计数器时，本节点要等到拒绝期结束才会放行。
+         */
+        private long denyCacheSize = 0L;
+        /**
+         * 本地计数器的预计数量，默认0，即使用堆内存储。<br/>
+         * 大于0时本地计数器存放在堆外的计数器表中，适用于按用户限流且用户量极大的场景。
+         */
+        private int localCounterCapacity = 0;
+        /**
+         * 堆外计数器表映射的文件路径，默认为空，即不映射。只在localCounterCapacity大于0时生效。<br/>
+         * 重启后重新映射同一文件即可恢复计数，只使用本地数据源时滚动发布不会让限流失效。
+         */
+        private String localCounterFile;
+        /**
+         * 本地计数器的内存预算，单位字节，默认0，即不限制。使用堆外计数器表时不生效。<br/>
+         * 超出预算时新的key按访问频率准入，大量一次性的key无法挤掉活跃的计数器；
+         * 未准入的key共用固定数量的溢出计数器，哈希冲突时可能被多算而提前限流。
+         */
+        private long localMemoryBudget = 0L;
+        /**
+         * Count-Min Sketch数据源每行的计数数量，默认131072，只在数据源为Sketch时生效。<br/>
+         * 越大误差越小，每个窗口时长占用 3*4*4*sketchWidth 字节。
+         */
+        private int sketchWidth = 1 << 17;
+
         public boolean isEnabledGlobalLimit() {
             return enabledGlobalLimit;
         }
@@ -135,6 +225,86 @@ public class FlowLimitProperties {
             this.counterHoldingTimeUnit = counterHoldingTimeUnit;
         }
 
+        public int getLeaseSize() {
+            return leaseSize;
+        }
+
+        public void setLeaseSize(int leaseSize) {
+            this.leaseSize = leaseSize;
+        }
+
+        public long getLeaseTime() {
+            return leaseTime;
+        }
+
+        public void setLeaseTime(long leaseTime) {
+            this.leaseTime = leaseTime;
+        }
+
+        public long getDenyCacheSize() {
+            return denyCacheSize;
+        }
+
+        public void setDenyCacheSize(long denyCacheSize) {
+            this.denyCacheSize = denyCacheSize;
+        }
+
+        public int getLocalCounterCapacity() {
+            return localCounterCapacity;
+        }
+
+        public void setLocalCounterCapacity(int localCounterCapacity) {
+            this.localCounterCapacity = localCounterCapacity;
+        }
+
+        public String getLocalCounterFile() {
+            return localCounterFile;
+        }
+
+        public void setLocalCounterFile(String localCounterFile) {
+            this.localCounterFile = localCounterFile;
+        }
+
+        public long getLocalMemoryBudget() {
+            return localMemoryBudget;
+        }
+
+        public void setLocalMemoryBudget(long localMemoryBudget) {
+            this.localMemoryBudget = localMemoryBudget;
+        }
+
+        public int getSketchWidth() {
+            return sketchWidth;
+        }
+
+        public void setSketchWidth(int sketchWidth) {
+            this.sketchWidth = sketchWidth;
+        }
+
+        public CounterKeyLayoutEnum getKeyLayout() {
+            return keyLayout;
+        }
+
+        public void setKeyLayout(CounterKeyLayoutEnum keyLayout) {
+            this.keyLayout = keyLayout;
+        }
+
+        public int getGlobalKeyShards() {
+            return globalKeyShards;
+        }
+
+        public void setGlobalKeyShards(int globalKeyShards) {
+            this.globalKeyShards = globalKeyShards;
+        }
+
+        public List<CounterAlgorithmEnum> getCounterAlgorithm() {
+            return counterAlgorithm;
+        }
+
+        public void setCounterAlgorithm(List<CounterAlgorithmEnum> counterAlgorithm) {
+            this.counterAlgorithm = counterAlgorithm;
+        }
+
         public CacheDataSourceTypeEnum getDataSourceType() {
             return dataSourceType;
         }
@@ -163,6 +333,109 @@ public class FlowLimitProperties {
          * 当某一请求不能立即获取令牌，意味着整个API达到了限流门槛，设置这个时间来控制请求获取令牌的最大超时时长。
          */
         private Long timeout = 1000L;
+        /**
+         * 是否启用集群模式，默认不启用。<br/>
+         * 不启用时每个节点各自一个令牌桶，整个集群的QPS是permitsPerSecond乘以节点数；
+         * 启用后令牌桶的状态保存在Redis中，所有节点共享同一个令牌桶。
+         */
+        private boolean distributed = false;
+        /**
+         * 集群模式下令牌桶的key
+         */
+        private String bucketKey = "flowlimit:token-bucket";
+        /**
+         * 集群模式下每次从Redis预取的令牌数，默认1即不预取。<br/>
+         * 预取的令牌在本地消费，QPS很高时可以大大减少Redis的访问次数
+         */
+        private Integer prefetch = 1;
+        /**
+         * 单独配置令牌桶的接口，未配置的接口共用上面的令牌桶。<br/>
+         * key是接口标识：处理方法“类名.方法名”，或者请求路径的Ant风格匹配模式（仅拦截器模式）。
+         * key中含有“.”或“/”时需要用中括号包裹，比如 flowlimit.global-token-bucket-flow-limit-properties.endpoints.[/order/**].permits-per-second=10
+         */
+        private Map<String, EndpointProperties> endpoints = new LinkedHashMap<>();
+        /**
+         * 每个用户的QPS，默认0即不对用户单独限流。<br/>
+         * 启用时需要实现appendCounterKeyWithUserId()方法，并返回当前登录用户的ID。用户的令牌桶保存在本地，不依赖Redis。
+         */
+        private Double userPermitsPerSecond = 0D;
+        /**
+         * 每个用户允许连续突发的请求数，默认1
+         */
+        private Integer userBurst = 1;
+        /**
+         * 最多同时保存的用户令牌桶数量，每个占用16字节，默认65536。超出后淘汰最久没有访问的用户
+         */
+        private Integer userBucketCapacity = 1 << 16;
+        /**
+         * 最多同时挂起等待令牌的请求数，默认0即不启用，仅拦截器模式有效。<br/>
+         * 启用后需要等待令牌的请求通过Servlet异步挂起，不阻塞线程；挂起的请求数达到上限后，需要等待的请求直接拒绝。
+         */
+        private Integer asyncWaitCapacity = 0;
+
+        public Integer getAsyncWaitCapacity() {
+            return asyncWaitCapacity;
+        }
+
+        public void setAsyncWaitCapacity(Integer asyncWaitCapacity) {
+            this.asyncWaitCapacity = asyncWaitCapacity;
+        }
+
+        public Double getUserPermitsPerSecond() {
+            return userPermitsPerSecond;
+        }
+
+        public void setUserPermitsPerSecond(Double userPermitsPerSecond) {
+            this.userPermitsPerSecond = userPermitsPerSecond;
+        }
+
+        public Integer getUserBurst() {
+            return userBurst;
+        }
+
+        public void setUserBurst(Integer userBurst) {
+            this.userBurst = userBurst;
+        }
+
+        public Integer getUserBucketCapacity() {
+            return userBucketCapacity;
+        }
+
+        public void setUserBucketCapacity(Integer userBucketCapacity) {
+            this.userBucketCapacity = userBucketCapacity;
+        }
+
+        public Map<String, EndpointProperties> getEndpoints() {
+            return endpoints;
+        }
+
+        public void setEndpoints(Map<String, EndpointProperties> endpoints) {
+            this.endpoints = endpoints;
+        }
+
+        public boolean isDistributed() {
+            return distributed;
+        }
+
+        public void setDistributed(boolean distributed) {
+            this.distributed = distributed;
+        }
+
+        public String getBucketKey() {
+            return bucketKey;
+        }
+
+        public void setBucketKey(String bucketKey) {
+            this.bucketKey = bucketKey;
+        }
+
+        public Integer getPrefetch() {
+            return prefetch;
+        }
+
+        public void setPrefetch(Integer prefetch) {
+            this.prefetch = prefetch;
+        }
 
         public Double getPermitsPerSecond() {
             return permitsPerSecond;
@@ -187,5 +460,208 @@ public class FlowLimitProperties {
         public void setTimeout(Long timeout) {
             this.timeout = timeout;
         }
+
+        public static class EndpointProperties {
+            /**
+             * 本接口的QPS
+             */
+            private Double permitsPerSecond = (double) Integer.MAX_VALUE;
+            /**
+             * 本接口的预热期时长，单位毫秒，默认3秒
+             */
+            private Long warmupPeriod = 3000L;
+
+            public Double getPermitsPerSecond() {
+                return permitsPerSecond;
+            }
+
+            public void setPermitsPerSecond(Double permitsPerSecond) {
+                this.permitsPerSecond = permitsPerSecond;
+            }
+
+            public Long getWarmupPeriod() {
+                return warmupPeriod;
+            }
+
+            public void setWarmupPeriod(Long warmupPeriod) {
+                this.warmupPeriod = warmupPeriod;
+            }
+        }
+    }
+
+    public static class GcraFlowLimitProperties {
+        /**
+         * 是否启用全局限制，即所有用户共用一个限流器.
+         * <br/>
+         * 不启用：则需要实现appendCounterKeyWithUserId()方法，并返回当前登录用户的ID。
+         */
+        private boolean enabledGlobalLimit = false;
+        /**
+         * 限流器的key前缀，可以为空，但不建议
+         */
+        private String prefixKey;
+        /**
+         * 每个周期允许的请求数
+         */
+        private Long rate;
+        /**
+         * 周期时长，默认1
+         */
+        private Long period = 1L;
+        /**
+         * 周期时长的单位，默认是秒
+         */
+        private TimeUnit periodUnit = TimeUnit.SECONDS;
+        /**
+         * 允许连续突发的请求数，默认1，即严格按照速率放行
+         */
+        private Integer burst = 1;
+
+        public boolean isEnabledGlobalLimit() {
+            return enabledGlobalLimit;
+        }
+
+        public void setEnabledGlobalLimit(boolean enabledGlobalLimit) {
+            this.enabledGlobalLimit = enabledGlobalLimit;
+        }
+
+        public String getPrefixKey() {
+            return prefixKey;
+        }
+
+        public void setPrefixKey(String prefixKey) {
+            this.prefixKey = prefixKey;
+        }
+
+        public Long getRate() {
+            return rate;
+        }
+
+        public void setRate(Long rate) {
+            this.rate = rate;
+        }
+
+        public Long getPeriod() {
+            return period;
+        }
+
+        public void setPeriod(Long period) {
+            this.period = period;
+        }
+
+        public TimeUnit getPeriodUnit() {
+            return periodUnit;
+        }
+
+        public void setPeriodUnit(TimeUnit periodUnit) {
+            this.periodUnit = periodUnit;
+        }
+
+        public Integer getBurst() {
+            return burst;
+        }
+
+        public void setBurst(Integer burst) {
+            this.burst = burst;
+        }
+    }
+
+    public static class CircuitBreakerProperties {
+        /**
+         * 失败率阈值，百分比，默认50。最近的调用中失败的比例达到该值则熔断，使用本地数据源
+         */
+        private int failureRateThreshold = FlowLimitCircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD;
+        /**
+         * 慢调用率阈值，百分比，默认80
+         */
+        private int slowCallRateThreshold = FlowLimitCircuitBreaker.DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+        /**
+         * 慢调用时长，单位毫秒，默认100毫秒
+         */
+        private long slowCallDuration = FlowLimitCircuitBreaker.DEFAULT_SLOW_CALL_DURATION;
+        /**
+         * 统计最近多少次调用，默认100
+         */
+        private int slidingWindowSize = FlowLimitCircuitBreaker.DEFAULT_SLIDING_WINDOW_SIZE;
+        /**
+         * 至少记录多少次调用才计算失败率，默认20
+         */
+        private int minimumNumberOfCalls = FlowLimitCircuitBreaker.DEFAULT_MINIMUM_NUMBER_OF_CALLS;
+        /**
+         * 熔断后多久开始探测Redis，单位毫秒，默认5秒
+         */
+        private long waitDurationInOpenState = FlowLimitCircuitBreaker.DEFAULT_WAIT_DURATION_IN_OPEN_STATE;
+        /**
+         * 探测Redis的间隔，单位毫秒，默认1秒
+         */
+        private long probeInterval = FlowLimitCircuitBreaker.DEFAULT_PROBE_INTERVAL;
+        /**
+         * 探测成功后放行多少个请求试探Redis，全部成功才切回Redis，默认10
+         */
+        private int permittedCallsInHalfOpenState = FlowLimitCircuitBreaker.DEFAULT_PERMITTED_CALLS_IN_HALF_OPEN_STATE;
+
+        public int getFailureRateThreshold() {
+            return failureRateThreshold;
+        }
+
+        public void setFailureRateThreshold(int failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+        }
+
+        public int getSlowCallRateThreshold() {
+            return slowCallRateThreshold;
+        }
+
+        public void setSlowCallRateThreshold(int slowCallRateThreshold) {
+            this.slowCallRateThreshold = slowCallRateThreshold;
+        }
+
+        public long getSlowCallDuration() {
+            return slowCallDuration;
+        }
+
+        public void setSlowCallDuration(long slowCallDuration) {
+            this.slowCallDuration = slowCallDuration;
+        }
+
+        public int getSlidingWindowSize() {
+            return slidingWindowSize;
+        }
+
+        public void setSlidingWindowSize(int slidingWindowSize) {
+            this.slidingWindowSize = slidingWindowSize;
+        }
+
+        public int getMinimumNumberOfCalls() {
+            return minimumNumberOfCalls;
+        }
+
+        public void setMinimumNumberOfCalls(int minimumNumberOfCalls) {
+            this.minimumNumberOfCalls = minimumNumberOfCalls;
+        }
+
+        public long getWaitDurationInOpenState() {
+            return waitDurationInOpenState;
+        }
+
+        public void setWaitDurationInOpenState(long waitDurationInOpenState) {
+            this.waitDurationInOpenState = waitDurationInOpenState;
+        }
+
+        public long getProbeInterval() {
+            return probeInterval;
+        }
+
+        public void setProbeInterval(long probeInterval) {
+            this.probeInterval = probeInterval;
+        }
+
+        public int getPermittedCallsInHalfOpenState() {
+            return permittedCallsInHalfOpenState;
+        }
+
+        public void setPermittedCallsInHalfOpenState(int permittedCallsInHalfOpenState) {
+            this.permittedCallsInHalfOpenState = permittedCallsInHalfOpenState;
+        }
     }
 }